@@ -0,0 +1,12 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+/**
+ * Marker interface of session attribute values written to distributed cache asynchronously.
+ *
+ * @see AttributeReplication#ASYNC
+ */
+public interface AsyncSessionAttribute {
+}
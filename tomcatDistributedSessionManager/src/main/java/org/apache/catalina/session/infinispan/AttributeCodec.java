@@ -0,0 +1,283 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serialize session attribute values of one application. Values are stored in cache as MarshalledAttribute,
+ * so cache marshaller, state transfer and cache stores never load application classes.
+ * Classes are resolved against class loader of application, resolved classes are cached by name.
+ * <p/>
+ * Class descriptor of class registered in class dictionary is written as its int id, serialVersionUID
+ * and hash of serialized fields instead of full descriptor (name, serialVersionUID, fields). Reader uses descriptor
+ * of local class if both match, otherwise read fails with InvalidClassException as with full descriptor
+ * of incompatible class.
+ * <p/>
+ * Attribute names registered in attribute name dictionary are stored in cache as int ids.
+ * Common scalar values (Integer, Long, Boolean, short String, Date) are written by ScalarCodec.
+ */
+class AttributeCodec {
+
+    /**
+     * Full class descriptor follows
+     */
+    private static final int FULL_DESCRIPTOR = 0;
+
+    /**
+     * Id of class in class dictionary follows
+     */
+    private static final int DICTIONARY_ID = 1;
+
+    private final ClassLoader classLoader;
+
+    /**
+     * Dictionary of class names, null - full class descriptors are written
+     */
+    private final StringDictionary classDictionary;
+
+    /**
+     * Dictionary of attribute names, null - names are stored as they are
+     */
+    private final StringDictionary nameDictionary;
+
+    /**
+     * Resolved classes of application, key is class name
+     */
+    private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+    /**
+     * Constructor
+     *
+     * @param classLoader class loader of web application
+     */
+    AttributeCodec(ClassLoader classLoader) {
+        this(classLoader, null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param classLoader     class loader of web application
+     * @param classDictionary cluster dictionary of class names, null - full class descriptors are written
+     * @param nameDictionary  cluster dictionary of attribute names, null - names are stored as they are
+     */
+    AttributeCodec(ClassLoader classLoader, StringDictionary classDictionary, StringDictionary nameDictionary) {
+        this.classLoader = classLoader;
+        this.classDictionary = classDictionary;
+        this.nameDictionary = nameDictionary;
+    }
+
+    /**
+     * Key of attribute in cache for write, name is registered in attribute name dictionary
+     *
+     * @return id of name or name if it can't be registered
+     */
+    Object nameKey(String name) {
+        Integer id = nameDictionary == null ? null : nameDictionary.getId(name);
+        return id == null ? name : id;
+    }
+
+    /**
+     * Key of attribute in cache for read, name is not registered
+     *
+     * @return id of name or name if it is not registered
+     */
+    Object findNameKey(String name) {
+        Integer id = nameDictionary == null ? null : nameDictionary.findId(name);
+        return id == null ? name : id;
+    }
+
+    /**
+     * Attribute name of key in cache
+     */
+    String attributeName(Object key) {
+        if (!(key instanceof Integer)) {
+            return (String) key;
+        }
+        String name = nameDictionary == null ? null : nameDictionary.getString((Integer) key);
+        if (name == null) {
+            throw new IllegalStateException("Attribute name id " + key + " is not in attribute name dictionary");
+        }
+        return name;
+    }
+
+    /**
+     * Serialize attribute value
+     *
+     * @param name  attribute name, used in error message
+     * @param value attribute value
+     * @return value stored in cache
+     */
+    MarshalledAttribute marshall(String name, Object value) {
+        byte[] scalar = ScalarCodec.write(value);
+        if (scalar != null) {
+            return new MarshalledAttribute(scalar, value);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            ObjectOutputStream oos = new DictionaryObjectOutputStream(bytes);
+            oos.writeObject(value);
+            oos.close();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Can't serialize session attribute " + name, ex);
+        }
+        return new MarshalledAttribute(bytes.toByteArray(), value);
+    }
+
+    /**
+     * Get attribute value of value stored in cache. Values not marshalled by codec are returned as they are.
+     *
+     * @param name   attribute name, used in error message
+     * @param stored value stored in cache
+     * @return attribute value
+     */
+    Object unmarshall(String name, Object stored) {
+        if (!(stored instanceof MarshalledAttribute)) {
+            return stored;
+        }
+        MarshalledAttribute marshalled = (MarshalledAttribute) stored;
+        Object value = marshalled.getValue();
+        if (value == null) {
+            value = this.readValue(name, marshalled.getBytes());
+            marshalled.setValue(value);
+        }
+        return value;
+    }
+
+    private Object readValue(String name, byte[] bytes) {
+        try {
+            if (ScalarCodec.isScalar(bytes)) {
+                return ScalarCodec.read(bytes);
+            }
+            ObjectInputStream ois = new ResolvingObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return ois.readObject();
+            } finally {
+                ois.close();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Can't deserialize session attribute " + name, ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Can't deserialize session attribute " + name, ex);
+        }
+    }
+
+    /**
+     * Find class of application, cached after first lookup
+     */
+    Class<?> resolveClass(String className) throws ClassNotFoundException {
+        Class<?> type = classes.get(className);
+        if (type == null) {
+            type = Class.forName(className, false, classLoader);
+            classes.putIfAbsent(className, type);
+        }
+        return type;
+    }
+
+    /**
+     * Number of cached classes
+     */
+    int getResolvedClasses() {
+        return classes.size();
+    }
+
+    /**
+     * Hash of names and types of serialized fields, detects class changed without change of serialVersionUID
+     */
+    private static int fieldsHash(ObjectStreamClass desc) {
+        int hash = 1;
+        for (ObjectStreamField field : desc.getFields()) {
+            hash = 31 * hash + field.getName().hashCode();
+            hash = 31 * hash + (field.isPrimitive() ? field.getTypeCode() : field.getTypeString().hashCode());
+        }
+        return hash;
+    }
+
+    /**
+     * Object stream writing ids of classes registered in class dictionary
+     */
+    private class DictionaryObjectOutputStream extends ObjectOutputStream {
+
+        DictionaryObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            Integer id = classDictionary == null ? null : classDictionary.getId(desc.getName());
+            if (id == null) {
+                write(FULL_DESCRIPTOR);
+                super.writeClassDescriptor(desc);
+            } else {
+                write(DICTIONARY_ID);
+                writeInt(id);
+                writeLong(desc.getSerialVersionUID());
+                writeInt(fieldsHash(desc));
+            }
+        }
+    }
+
+    /**
+     * Object stream resolving classes by codec
+     */
+    private class ResolvingObjectInputStream extends ObjectInputStream {
+
+        ResolvingObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int type = read();
+            if (type == FULL_DESCRIPTOR) {
+                return super.readClassDescriptor();
+            }
+            if (type != DICTIONARY_ID) {
+                throw new StreamCorruptedException("Invalid class descriptor type " + type);
+            }
+            int id = readInt();
+            String className = classDictionary == null ? null : classDictionary.getString(id);
+            if (className == null) {
+                throw new InvalidClassException("Class id " + id + " is not in class dictionary");
+            }
+            long serialVersionUID = readLong();
+            int fieldsHash = readInt();
+            ObjectStreamClass local = ObjectStreamClass.lookupAny(AttributeCodec.this.resolveClass(className));
+            if (local.getSerialVersionUID() != serialVersionUID) {
+                throw new InvalidClassException(className, "local class incompatible: stream classdesc "
+                        + "serialVersionUID = " + serialVersionUID + ", local class serialVersionUID = "
+                        + local.getSerialVersionUID());
+            }
+            if (fieldsHash(local) != fieldsHash) {
+                throw new InvalidClassException(className,
+                        "local class incompatible: serialized fields differ, serialVersionUID = " + serialVersionUID);
+            }
+            return local;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return AttributeCodec.this.resolveClass(desc.getName());
+            } catch (ClassNotFoundException ex) {
+                //primitive types
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+/**
+ * How session attribute is stored in cluster.
+ */
+public enum AttributeReplication {
+    /**
+     * Attribute is stored only in session object of the node, never replicated. Lost on failover.
+     */
+    LOCAL,
+    /**
+     * Attribute is written to distributed cache by background thread, request doesn't wait for replication.
+     * Attribute could be lost if node fails before write.
+     */
+    ASYNC,
+    /**
+     * Attribute is written to distributed cache by request thread. Default.
+     */
+    SYNC
+}
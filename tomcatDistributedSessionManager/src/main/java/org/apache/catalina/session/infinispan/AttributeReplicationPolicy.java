@@ -0,0 +1,85 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects replication of session attribute by value marker interface or attribute name pattern.
+ * Marker interface wins over name pattern, attributes not matched are replicated synchronously.
+ * Pattern is exact attribute name, name prefix followed by '*' or '*' followed by name suffix.
+ */
+class AttributeReplicationPolicy {
+
+    private final List<String> localPatterns;
+    private final List<String> asyncPatterns;
+
+    /**
+     * Constructor
+     *
+     * @param localPatterns comma separated patterns of local attributes, could be null
+     * @param asyncPatterns comma separated patterns of asynchronously replicated attributes, could be null
+     */
+    public AttributeReplicationPolicy(String localPatterns, String asyncPatterns) {
+        this.localPatterns = parse(localPatterns);
+        this.asyncPatterns = parse(asyncPatterns);
+    }
+
+    /**
+     * Get replication of attribute
+     *
+     * @param name  attribute name
+     * @param value attribute value
+     * @return replication
+     */
+    public AttributeReplication getReplication(String name, Object value) {
+        if (value instanceof LocalSessionAttribute) {
+            return AttributeReplication.LOCAL;
+        }
+        if (value instanceof AsyncSessionAttribute) {
+            return AttributeReplication.ASYNC;
+        }
+        if (matches(localPatterns, name)) {
+            return AttributeReplication.LOCAL;
+        }
+        if (matches(asyncPatterns, name)) {
+            return AttributeReplication.ASYNC;
+        }
+        return AttributeReplication.SYNC;
+    }
+
+    private static boolean matches(List<String> patterns, String name) {
+        for (String pattern : patterns) {
+            if (pattern.equals("*")) {
+                return true;
+            } else if (pattern.endsWith("*")) {
+                if (name.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                    return true;
+                }
+            } else if (pattern.startsWith("*")) {
+                if (name.endsWith(pattern.substring(1))) {
+                    return true;
+                }
+            } else if (pattern.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> parse(String patterns) {
+        List<String> result = new ArrayList<String>();
+        if (patterns == null) {
+            return result;
+        }
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.length() > 0) {
+                result.add(pattern);
+            }
+        }
+        return result;
+    }
+}
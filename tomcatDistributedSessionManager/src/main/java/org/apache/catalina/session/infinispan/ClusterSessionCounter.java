@@ -0,0 +1,284 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.infinispan.Cache;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate cluster wide number of active sessions.
+ * Every node counts sessions it primarily owns (anchor) after cluster topology changed and in long anchor interval,
+ * in shorter publish interval it publishes its value to the cache.
+ * Sessions created and removed by node since last anchor are counted in striped local counter
+ * (no contention between request threads) only if the node is primary owner of session metadata, so every session
+ * is counted by one node. Sessions created or removed by other nodes and removals not seen by counter
+ * (e.g. expiration of cache entry) are counted by next anchor of owner, the counter is replaced by every anchor,
+ * so errors don't accumulate beyond one anchor interval.
+ * Cluster value is sum of the last published values of other nodes and actual local value.
+ * Session creation never waits for any remote call.
+ * <p/>
+ * Anchor starts new epoch of striped counter, changes of previous epoch are replaced by the count.
+ * Scan counts only sessions created before anchor started, creations by this node during scan are counted once - by
+ * the new epoch, creations by other nodes during scan by next anchor.
+ * Sessions created before anchor and removed by this node during scan are skipped by scan and added to the count,
+ * their removal is counted by the new epoch. Session removed just while scan passes its entry could be counted
+ * by one more until next anchor.
+ */
+class ClusterSessionCounter {
+
+    private final Log log = LogFactory.getLog(ClusterSessionCounter.class);
+
+    /**
+     * Shared cache namespace
+     */
+    private static final String NAMESPACE = "counter";
+
+    /**
+     * Number of stripes, power of two
+     */
+    private static final int STRIPES = 16;
+
+    private Cache<String, Object> cache;
+
+    /**
+     * Owned sessions and epochs of changes, replaced as whole so readers see consistent value
+     */
+    private volatile State state = new State(0, null, new Epoch(0, false));
+
+    /**
+     * Sum of counters published by other nodes during last aggregation
+     */
+    private volatile long remoteValue = 0;
+
+    /**
+     * Time of last publish, milliseconds
+     */
+    private volatile long lastPublished = 0;
+
+    /**
+     * Time of last anchor, milliseconds
+     */
+    private volatile long lastAnchored = 0;
+
+    /**
+     * Cluster topology changed since last anchor
+     */
+    private volatile boolean anchorRequested = true;
+
+    /**
+     * Constructor
+     *
+     * @param cache cache to publish node counters
+     */
+    public ClusterSessionCounter(Cache<String, Object> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Session created by this node, counted if this node is primary owner of session
+     *
+     * @param metadataCacheId cache id of session metadata
+     */
+    public void increment(String metadataCacheId) {
+        if (OwnedSessionEntries.isPrimaryOwner(cache, metadataCacheId)) {
+            state.current.stripes.incrementAndGet(this.stripe());
+        }
+    }
+
+    /**
+     * Session removed by this node, counted if this node is primary owner of session
+     *
+     * @param metadataCacheId cache id of session metadata
+     * @param creationTime    creation time of session, zero if not known
+     */
+    public void decrement(String metadataCacheId, long creationTime) {
+        if (!OwnedSessionEntries.isPrimaryOwner(cache, metadataCacheId)) {
+            return;
+        }
+        Epoch epoch = state.current;
+        Set<String> removed = epoch.removed;
+        if (removed != null && creationTime < epoch.start) {
+            removed.add(metadataCacheId);
+        }
+        epoch.stripes.decrementAndGet(this.stripe());
+    }
+
+    /**
+     * Number of sessions owned by this node during last anchor plus net number of owned sessions created
+     * by this node since.
+     */
+    public long getLocalValue() {
+        State s = state;
+        long value = s.owned + s.current.getChanges();
+        if (s.previous != null) {
+            value += s.previous.getChanges();
+        }
+        return value;
+    }
+
+    /**
+     * Count owned sessions again on next publish, e.g. after cluster topology changed
+     */
+    public void requestAnchor() {
+        anchorRequested = true;
+    }
+
+    /**
+     * Replace local changes by number of sessions owned by this node
+     */
+    void anchor() {
+        State s = state;
+        Epoch epoch = new Epoch(System.currentTimeMillis(), true);
+        //changes of previous epoch are counted until scan finishes
+        state = new State(s.owned, s.current, epoch);
+        Set<String> removed = epoch.removed;
+        long owned;
+        try {
+            owned = OwnedSessionEntries.countOwned(cache, epoch.start, removed);
+        } catch (RuntimeException ex) {
+            //keep value of last anchor and all changes since
+            epoch.removed = null;
+            state = new State(s.owned + s.current.getChanges(), null, epoch);
+            throw ex;
+        }
+        epoch.removed = null;
+        for (String cacheId : removed) {
+            //existed when scan started
+            if (OwnedSessionEntries.isPrimaryOwner(cache, cacheId)) {
+                owned++;
+            }
+        }
+        state = new State(owned, null, epoch);
+        lastAnchored = epoch.start;
+    }
+
+    /**
+     * Approximate number of active sessions in cluster.
+     */
+    public long getClusterValue() {
+        return Math.max(0, remoteValue + this.getLocalValue());
+    }
+
+    /**
+     * Publish local counter and read counters of other nodes if interval elapsed.
+     * Local counter is anchored before if requested or anchor interval elapsed.
+     *
+     * @param interval       publish interval in milliseconds, published value expires after three intervals,
+     *                       zero or negative interval publishes on every call and value never expires
+     * @param anchorInterval max interval of counting owned sessions in milliseconds,
+     *                       zero or negative interval anchors on every publish
+     */
+    public void publish(long interval, long anchorInterval) {
+        long now = System.currentTimeMillis();
+        if (now - lastPublished < interval) {
+            return;
+        }
+        lastPublished = now;
+
+        if (anchorRequested || now - lastAnchored >= anchorInterval) {
+            anchorRequested = false;
+            try {
+                this.anchor();
+            } catch (RuntimeException ex) {
+                log.warn("Can't count owned sessions", ex);
+            }
+        }
+
+        EmbeddedCacheManager cacheManager = cache.getCacheManager();
+        Address localAddress = cacheManager.getAddress();
+        List<Address> members = cacheManager.getMembers();
+        if (localAddress == null || members == null) {
+            //local cache - local counter is cluster counter
+            return;
+        }
+
+        try {
+            //value of crashed node disappears after three intervals
+            long lifespan = interval > 0 ? 3 * interval : -1;
+            cache.put(createCacheId(localAddress), this.getLocalValue(), lifespan, TimeUnit.MILLISECONDS);
+
+            long sum = 0;
+            for (Address member : members) {
+                if (member.equals(localAddress)) {
+                    continue;
+                }
+                Object memberValue = cache.get(createCacheId(member));
+                if (memberValue instanceof Long) {
+                    sum += (Long) memberValue;
+                }
+            }
+            remoteValue = sum;
+        } catch (RuntimeException ex) {
+            log.warn("Can't publish session counter of node " + localAddress, ex);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Session counter published. Local: " + this.getLocalValue() + " cluster: " + this.getClusterValue());
+        }
+    }
+
+    private int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    /**
+     * Striped changes of local counter since start of epoch
+     */
+    private static final class Epoch {
+        final long start;
+        final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+        /**
+         * Metadata cache ids of sessions created before start and removed during anchor scan, null after scan
+         */
+        volatile Set<String> removed;
+
+        Epoch(long start, boolean scan) {
+            this.start = start;
+            this.removed = scan ? Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()) : null;
+        }
+
+        long getChanges() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += stripes.get(i);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Owned sessions counted by last anchor, epoch replaced by running anchor and current epoch
+     */
+    private static final class State {
+        final long owned;
+        final Epoch previous;
+        final Epoch current;
+
+        State(long owned, Epoch previous, Epoch current) {
+            this.owned = owned;
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+
+    /**
+     * Get cache id of node counter.
+     * @param address cluster node address
+     * @return
+     */
+    public static String createCacheId(Address address) {
+        return NAMESPACE + address;
+    }
+}
@@ -0,0 +1,146 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Session lifecycle or attribute event delivered to servlet listeners of node owning the session.
+ * Events are delivered at most once, see ClusterSessionEvents.
+ */
+class ClusterSessionEvent implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int CREATED = 1;
+    static final int DESTROYED = 2;
+    static final int ATTRIBUTE_ADDED = 3;
+    static final int ATTRIBUTE_REPLACED = 4;
+    static final int ATTRIBUTE_REMOVED = 5;
+
+    private final int type;
+    private final String sessionId;
+    private String name;
+    private Object value;
+
+    private long creationTime;
+    private long lastAccessedTime;
+    private int maxInactiveInterval;
+
+    /**
+     * Distributed attributes of destroyed session
+     */
+    private HashMap<String, Object> attributes;
+
+    private ClusterSessionEvent(int type, InfinispanSession session) {
+        this.type = type;
+        this.sessionId = session.getIdInternal();
+        //metadata of read only session view on receiver
+        this.creationTime = session.getCreationTimeInternal();
+        this.lastAccessedTime = session.getLastAccessedTimeInternal();
+        this.maxInactiveInterval = session.getMaxInactiveInterval();
+    }
+
+    /**
+     * Session created
+     */
+    static ClusterSessionEvent created(InfinispanSession session) {
+        return new ClusterSessionEvent(CREATED, session);
+    }
+
+    /**
+     * Session destroyed, event keeps metadata and distributed attributes because session is removed from cache
+     */
+    static ClusterSessionEvent destroyed(InfinispanSession session) {
+        ClusterSessionEvent event = new ClusterSessionEvent(DESTROYED, session);
+        event.attributes = session.getDistributedAttributes();
+        return event;
+    }
+
+    /**
+     * Attribute added, replaced or removed
+     *
+     * @param value new value (added), old value (replaced, removed)
+     */
+    static ClusterSessionEvent attribute(int type, InfinispanSession session, String name, Object value) {
+        ClusterSessionEvent event = new ClusterSessionEvent(type, session);
+        event.name = name;
+        event.value = value;
+        return event;
+    }
+
+    /**
+     * Serialize attribute values by codec of application before event is sent to other node
+     */
+    void marshall(AttributeCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        if (value != null && !(value instanceof MarshalledAttribute)) {
+            value = codec.marshall(name, value);
+        }
+        if (attributes != null) {
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                if (entry.getValue() != null && !(entry.getValue() instanceof MarshalledAttribute)) {
+                    entry.setValue(codec.marshall(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Deserialize attribute values received from other node
+     */
+    void unmarshall(AttributeCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        value = codec.unmarshall(name, value);
+        if (attributes != null) {
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                entry.setValue(codec.unmarshall(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    int getType() {
+        return type;
+    }
+
+    String getSessionId() {
+        return sessionId;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    long getCreationTime() {
+        return creationTime;
+    }
+
+    long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterSessionEvent{type=" + type + ", sessionId=" + sessionId
+                + (name == null ? "" : ", name=" + name) + "}";
+    }
+}
@@ -0,0 +1,49 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedCallable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Delivers session events to servlet listeners of node owning the sessions.
+ */
+class ClusterSessionEventTask implements DistributedCallable<String, Object, Integer>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<ClusterSessionEvent> events;
+
+    private transient Cache<String, Object> cache;
+
+    /**
+     * Constructor
+     *
+     * @param events events in order of publication
+     */
+    ClusterSessionEventTask(ArrayList<ClusterSessionEvent> events) {
+        this.events = events;
+    }
+
+    @Override
+    public void setEnvironment(Cache<String, Object> cache, Set<String> inputKeys) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return number of delivered events
+     */
+    @Override
+    public Integer call() throws Exception {
+        InfinispanSessionManager manager = SessionManagerRegistry.lookup(cache);
+        if (manager == null || manager.getClusterSessionEvents() == null) {
+            return 0;
+        }
+        return manager.getClusterSessionEvents().deliver(events);
+    }
+}
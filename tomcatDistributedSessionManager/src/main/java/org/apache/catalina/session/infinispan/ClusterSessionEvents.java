@@ -0,0 +1,352 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.Context;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedExecutorService;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.remoting.transport.Address;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster wide delivery of servlet session listener events. Request thread only queues event,
+ * background thread sends events to primary owner of session metadata which notifies listeners.
+ * Delivery is at most once: events are kept only in memory and sent once, event is lost if queue is full,
+ * node stops before dispatch or delivery to owner fails or times out (see dropped and failed counters).
+ * Events of one node are delivered in order of publication.
+ * Listeners get read only view of session, no local session is created on owner.
+ */
+class ClusterSessionEvents implements Runnable {
+
+    private final Log log = LogFactory.getLog(ClusterSessionEvents.class);
+
+    /**
+     * Max number of events sent in one task
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Min interval between warnings about dropped events in milliseconds
+     */
+    private static final long DROP_LOG_INTERVAL = 60000L;
+
+    private final InfinispanSessionManager manager;
+    private final Cache<String, Object> cache;
+    private final DistributedExecutorService executorService;
+    private final long timeout;
+
+    private final BlockingQueue<ClusterSessionEvent> queue;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lastDropLog = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param manager         session manager
+     * @param cache           session metadata cache
+     * @param executorService executor of cluster tasks, null - not clustered cache, events are delivered locally
+     * @param containerName   application name, used in name of dispatcher thread
+     * @param capacity        max number of events waiting for dispatch
+     * @param timeout         max time of delivery to other node in milliseconds
+     */
+    ClusterSessionEvents(InfinispanSessionManager manager, Cache<String, Object> cache,
+                         DistributedExecutorService executorService, String containerName, int capacity,
+                         long timeout) {
+        this.manager = manager;
+        this.cache = cache;
+        this.executorService = executorService;
+        this.timeout = timeout;
+        this.queue = new ArrayBlockingQueue<ClusterSessionEvent>(Math.max(1, capacity));
+        this.dispatcher = new Thread(this, "SessionEventDispatcher-" + containerName);
+        this.dispatcher.setDaemon(true);
+    }
+
+    /**
+     * Start dispatcher thread
+     */
+    void start() {
+        dispatcher.start();
+    }
+
+    /**
+     * Dispatch queued events and stop dispatcher thread
+     */
+    void stop() {
+        running = false;
+        try {
+            dispatcher.join(timeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (dispatcher.isAlive()) {
+            dispatcher.interrupt();
+            log.warn("Session events not dispatched: " + queue.size());
+        }
+    }
+
+    /**
+     * Queue event, never blocks. Event is dropped if queue is full.
+     * Drops are logged at most once per DROP_LOG_INTERVAL.
+     *
+     * @return false if event was dropped
+     */
+    boolean publish(ClusterSessionEvent event) {
+        if (!running || !queue.offer(event)) {
+            long total = dropped.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long last = lastDropLog.get();
+            if (now - last >= DROP_LOG_INTERVAL && lastDropLog.compareAndSet(last, now)) {
+                log.warn("Session event queue full or dispatcher stopped, events dropped: " + total
+                        + ", last: " + event);
+            }
+            return false;
+        }
+        published.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            try {
+                ClusterSessionEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<ClusterSessionEvent> batch = new ArrayList<ClusterSessionEvent>(BATCH_SIZE);
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                this.dispatch(batch);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Throwable t) {
+                ExceptionUtils.handleThrowable(t);
+                log.error("Dispatch of session events failed", t);
+            }
+        }
+    }
+
+    /**
+     * Group events by primary owner of session and send them to owners
+     */
+    private void dispatch(List<ClusterSessionEvent> events) throws InterruptedException {
+        DistributionManager dm = executorService == null ? null : cache.getAdvancedCache().getDistributionManager();
+        if (dm == null) {
+            //local or replicated cache, every node owns all sessions
+            this.deliver(events);
+            return;
+        }
+
+        Address self = cache.getCacheManager().getAddress();
+        Map<Address, ArrayList<ClusterSessionEvent>> owners = new LinkedHashMap<Address, ArrayList<ClusterSessionEvent>>();
+        for (ClusterSessionEvent event : events) {
+            Address owner = dm.getPrimaryLocation(routingKey(event));
+            ArrayList<ClusterSessionEvent> ownerEvents = owners.get(owner);
+            if (ownerEvents == null) {
+                ownerEvents = new ArrayList<ClusterSessionEvent>();
+                owners.put(owner, ownerEvents);
+            }
+            ownerEvents.add(event);
+        }
+
+        for (Map.Entry<Address, ArrayList<ClusterSessionEvent>> entry : owners.entrySet()) {
+            if (self == null || self.equals(entry.getKey())) {
+                this.deliver(entry.getValue());
+            } else {
+                this.send(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Send events to owner and wait for delivery. Events are not resent, failed events are lost
+     * (owner could have notified listeners before failure).
+     */
+    private void send(ArrayList<ClusterSessionEvent> events) throws InterruptedException {
+        String key = routingKey(events.get(0));
+        //receiver resolves classes of attribute values by its application class loader
+        for (ClusterSessionEvent event : events) {
+            event.marshall(manager.getAttributeCodec());
+        }
+        Future<Integer> result = executorService.submit(new ClusterSessionEventTask(events), key);
+        try {
+            result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            result.cancel(true);
+            failed.addAndGet(events.size());
+            log.warn("Delivery of session events failed, events lost: " + events.size(), ex);
+        }
+    }
+
+    private String routingKey(ClusterSessionEvent event) {
+        return SessionMetaAttributes.createCacheId(manager.stripDotSuffix(event.getSessionId()));
+    }
+
+    /**
+     * Notify listeners of this node
+     *
+     * @param events events in order of publication
+     * @return number of delivered events
+     */
+    int deliver(List<ClusterSessionEvent> events) {
+        Context context = (Context) manager.getContainer();
+        if (context == null) {
+            return 0;
+        }
+
+        //listeners could be called outside of request
+        Thread thread = Thread.currentThread();
+        ClassLoader oldTccl = thread.getContextClassLoader();
+        if (context.getLoader() != null && context.getLoader().getClassLoader() != null) {
+            thread.setContextClassLoader(context.getLoader().getClassLoader());
+        }
+        int count = 0;
+        try {
+            for (ClusterSessionEvent event : events) {
+                try {
+                    event.unmarshall(manager.getAttributeCodec());
+                    this.notifyListeners(context, event);
+                    count++;
+                } catch (RuntimeException ex) {
+                    log.error("Delivery of session event failed: " + event, ex);
+                }
+            }
+        } finally {
+            thread.setContextClassLoader(oldTccl);
+        }
+        delivered.addAndGet(count);
+        return count;
+    }
+
+    private void notifyListeners(Context context, ClusterSessionEvent event) {
+        boolean lifecycle = event.getType() == ClusterSessionEvent.CREATED
+                || event.getType() == ClusterSessionEvent.DESTROYED;
+        Object listeners[] = lifecycle ? context.getApplicationLifecycleListeners()
+                : context.getApplicationEventListeners();
+        if (listeners == null || listeners.length == 0) {
+            return;
+        }
+
+        HttpSessionEvent sessionEvent;
+        if (event.getType() == ClusterSessionEvent.DESTROYED) {
+            sessionEvent = new HttpSessionEvent(new SessionView(event, context, null));
+        } else if (lifecycle) {
+            sessionEvent = new HttpSessionEvent(this.getSession(context, event));
+        } else {
+            sessionEvent = new HttpSessionBindingEvent(this.getSession(context, event), event.getName(),
+                    event.getValue());
+        }
+
+        for (int i = 0; i < listeners.length; i++) {
+            //session destroyed - reverse order
+            Object listener = event.getType() == ClusterSessionEvent.DESTROYED
+                    ? listeners[listeners.length - 1 - i] : listeners[i];
+            if (lifecycle ? listener instanceof HttpSessionListener : listener instanceof HttpSessionAttributeListener) {
+                this.notifyListener(context, listener, event, sessionEvent);
+            }
+        }
+    }
+
+    private void notifyListener(Context context, Object listener, ClusterSessionEvent event,
+                                HttpSessionEvent sessionEvent) {
+        String name = containerEventName(event.getType());
+        try {
+            context.fireContainerEvent("before" + name, listener);
+            switch (event.getType()) {
+                case ClusterSessionEvent.CREATED:
+                    ((HttpSessionListener) listener).sessionCreated(sessionEvent);
+                    break;
+                case ClusterSessionEvent.DESTROYED:
+                    ((HttpSessionListener) listener).sessionDestroyed(sessionEvent);
+                    break;
+                case ClusterSessionEvent.ATTRIBUTE_ADDED:
+                    ((HttpSessionAttributeListener) listener).attributeAdded((HttpSessionBindingEvent) sessionEvent);
+                    break;
+                case ClusterSessionEvent.ATTRIBUTE_REPLACED:
+                    ((HttpSessionAttributeListener) listener).attributeReplaced((HttpSessionBindingEvent) sessionEvent);
+                    break;
+                default:
+                    ((HttpSessionAttributeListener) listener).attributeRemoved((HttpSessionBindingEvent) sessionEvent);
+            }
+            context.fireContainerEvent("after" + name, listener);
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            try {
+                context.fireContainerEvent("after" + name, listener);
+            } catch (Exception e) {
+                // Ignore
+            }
+            context.getLogger().error("Session listener failed. Event: " + event, t);
+        }
+    }
+
+    /**
+     * Read only view of session of event, attributes are read from cache when listener asks for them
+     */
+    private HttpSession getSession(Context context, ClusterSessionEvent event) {
+        return new SessionView(event, context, new SessionAttributes(manager.getAttributesCache(),
+                manager.getAttributeCodec(), manager.stripDotSuffix(event.getSessionId())));
+    }
+
+    private static String containerEventName(int type) {
+        switch (type) {
+            case ClusterSessionEvent.CREATED:
+                return "SessionCreated";
+            case ClusterSessionEvent.DESTROYED:
+                return "SessionDestroyed";
+            case ClusterSessionEvent.ATTRIBUTE_ADDED:
+                return "SessionAttributeAdded";
+            case ClusterSessionEvent.ATTRIBUTE_REPLACED:
+                return "SessionAttributeReplaced";
+            default:
+                return "SessionAttributeRemoved";
+        }
+    }
+
+    long getPublished() {
+        return published.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,31 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
+
+/**
+ * Notify session manager about nodes joining and leaving cluster.
+ */
+@Listener(sync = false)
+public class ClusterViewListener {
+
+    private final InfinispanSessionManager manager;
+
+    /**
+     * Constructor
+     *
+     * @param manager session manager
+     */
+    public ClusterViewListener(InfinispanSessionManager manager) {
+        this.manager = manager;
+    }
+
+    @ViewChanged
+    public void viewChanged(ViewChangedEvent event) {
+        manager.membersChanged(event.getOldMembers(), event.getNewMembers());
+    }
+}
@@ -46,16 +46,20 @@ import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Distributed session implementation. Uses one cache for both data and metadata.
+ * Distributed session implementation. Uses one cache for both data and metadata,
+ * attributes are stored in separate cache if manager splits caches.
  * Key is NAMESPACE+session id
  * This session object is "shell" which is instantiated locally in server node which request session to get or
  * write session data.
@@ -75,7 +79,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
     protected static final boolean LAST_ACCESS_AT_START;
 
     /**
-     * attributes and metadata cache, shared using namespaces
+     * metadata cache, shared with attributes using namespaces unless manager splits caches
      */
     private Cache<String, ?> cache;
 
@@ -125,7 +129,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
         while ( attributeNames.hasMoreElements()){
             String attrName = attributeNames.nextElement();
 
-            this.attributes.put(attrName, session.getAttribute(attrName));
+            this.putAttributeValue(attrName, session.getAttribute(attrName));
         }
 
         //copy metadata
@@ -157,7 +161,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
      * Construct a new Session associated with the specified Manager.
      *
      * @param manager The manager with which this Session is associated
-     * @param cache  attributes and metadata cache
+     * @param cache  metadata cache, attributes cache is provided by manager
      * @param sessionId id of newly created session
      */
     public InfinispanSession(InfinispanSessionManager manager, Cache<String, ?> cache, String sessionId) {
@@ -168,10 +172,13 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
         this.cache = cache;
         //store session without suffix to avoid session rename after cluster node disabled by load balancer
         String sessionIdWithoutJvmRoute = manager.stripDotSuffix(sessionId);
-        this.attributes = new SessionAttributes(cache, sessionIdWithoutJvmRoute);
+        this.attributes = new SessionAttributes(manager.getAttributesCache(), manager.getAttributeCodec(),
+                sessionIdWithoutJvmRoute);
 
         this.metadata = new SessionMetaAttributes(cache, sessionIdWithoutJvmRoute);
-
+        if (manager.getSessionSizeAccounting() && manager.getDistributable()) {
+            this.attributes.enableSizeAccounting(manager.getSessionSizeWarnLimit(), manager.getSessionSizeMaxLimit());
+        }
 
         // Initialize access count
         if (ACTIVITY_CHECK) {
@@ -202,6 +209,18 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
      */
     private SessionAttributes attributes;
 
+    /**
+     * Attributes stored only in this node, see {@link AttributeReplication#LOCAL}
+     */
+    private final Map<String, Object> localAttributes = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Attributes waiting for write to distributed cache, see {@link AttributeReplication#ASYNC}.
+     * Monitor of this map serializes writes to distributed attributes with write-behind,
+     * so queued write never overwrites newer synchronous write.
+     */
+    private final ConcurrentMap<String, Object> pendingAttributes = new ConcurrentHashMap<String, Object>();
+
 
     /**
      * The authentication type used to authenticate our cached Principal,
@@ -315,6 +334,40 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
     protected transient AtomicInteger accessCount = null;
 
 
+    /**
+     * Overlapping requests share access time writes, set by SessionCoalescingValve.
+     */
+    protected transient volatile boolean coalesceAccess = false;
+
+
+    /**
+     * Number of requests accessing this session on this node. Every access is counted, also before coalescing
+     * was enabled, so every end of access decrements access it counted.
+     */
+    protected transient AtomicInteger inFlightRequests = new AtomicInteger();
+
+
+    /**
+     * Number of accesses which failed (e.g. session lock timeout) and weren't counted, their endAccess()
+     * called by request recycle doesn't decrement counters.
+     */
+    protected transient AtomicInteger failedAccesses = new AtomicInteger();
+
+
+    /**
+     * First access time of coalesced requests in flight.
+     */
+    protected transient volatile long coalescedAccessTime = 0L;
+
+
+    /**
+     * Earliest expiration time known from last metadata read. Access times only grow, so background
+     * expiration doesn't read metadata (and doesn't activate passivated metadata) before this time.
+     * Requests always read metadata, session could be invalidated or changed by other node.
+     */
+    protected transient volatile long validUntil = 0L;
+
+
     // ----------------------------------------------------- Session Properties
 
 
@@ -422,10 +475,16 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
      *
      */
     public void tellNew() {
-        //TODO distributed mode notify other nodes too -- use infinispan listener add item to cache
         // Notify interested session event listeners
         fireSessionEvent(Session.SESSION_CREATED_EVENT, null);
 
+        // Servlet listeners of session owner are notified in distributed mode
+        ClusterSessionEvents clusterEvents = manager.getClusterSessionEvents();
+        if (clusterEvents != null) {
+            clusterEvents.publish(ClusterSessionEvent.created(this));
+            return;
+        }
+
         // Notify interested application event listeners
         Context context = (Context) manager.getContainer();
         Object listeners[] = context.getApplicationLifecycleListeners();
@@ -575,6 +634,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
     @Override
     public void setMaxInactiveInterval(int interval) {
         this.metadata.setMaxInactiveInterval( interval );
+        validUntil = 0L;
     }
 
 
@@ -651,10 +711,24 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
 
 
     /**
-     * Return the <code>isValid</code> flag for this session.
+     * Return the <code>isValid</code> flag for this session. Metadata is read, session removed
+     * by other node is removed from local sessions.
      */
     @Override
     public boolean isValid() {
+        return this.isValid(false);
+    }
+
+
+    /**
+     * Validation of background expiration, metadata is not read before earliest known expiration time.
+     */
+    boolean isValidInBackground() {
+        return this.isValid(true);
+    }
+
+
+    private boolean isValid(boolean background) {
 
         if (this.expiring) {
             return true;
@@ -668,21 +742,34 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
             return true;
         }
 
+        //validated by access of overlapping request in flight
+        if (coalesceAccess && inFlightRequests.get() > 0) {
+            return true;
+        }
+
+        long timeNow = System.currentTimeMillis();
+        if (background && timeNow < validUntil) {
+            return this.isValid;
+        }
+
         try{
+            //invalidated or expired by other node, its listeners were notified there
+            if (!this.metadata.exists()) {
+                this.setValid(false);
+                manager.removeLocalSession(this.id);
+                return false;
+            }
             long maxInactiveInterval = this.metadata.getMaxInactiveInterval();
             long lastAccessedTime = this.metadata.getLastAccessedTime();
             long thisAccessedTime = this.metadata.getThisAccessedTime();
 
             if (maxInactiveInterval > 0) {
-                long timeNow = System.currentTimeMillis();
-                int timeIdle;
-                if (LAST_ACCESS_AT_START) {
-                    timeIdle = (int) ((timeNow - lastAccessedTime) / 1000L);
-                } else {
-                    timeIdle = (int) ((timeNow - thisAccessedTime) / 1000L);
-                }
+                long accessedTime = LAST_ACCESS_AT_START ? lastAccessedTime : thisAccessedTime;
+                int timeIdle = (int) ((timeNow - accessedTime) / 1000L);
                 if (timeIdle >= maxInactiveInterval) {
                     expire(true);
+                } else {
+                    validUntil = accessedTime + maxInactiveInterval * 1000L;
                 }
             }
         } catch (Exception ex ){
@@ -717,8 +804,27 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
     @Override
     public void access() {
 
+        manager.beginSessionAccess();
+        try {
+            manager.lockSessionAccess(this.id);
+        } catch (RuntimeException ex) {
+            //not counted, request still calls endAccess()
+            manager.endSessionAccess();
+            failedAccesses.incrementAndGet();
+            throw ex;
+        }
+
         long thisAccessedTime = System.currentTimeMillis();
-        this.metadata.setThisAccessedTime(thisAccessedTime);
+        boolean first = inFlightRequests.incrementAndGet() == 1;
+        if (first) {
+            coalescedAccessTime = thisAccessedTime;
+        }
+        if (!coalesceAccess || first) {
+            this.metadata.setThisAccessedTime(thisAccessedTime);
+        } else {
+            //overlapping request
+            manager.countCoalescedAccess();
+        }
 
         if (ACTIVITY_CHECK) {
             accessCount.incrementAndGet();
@@ -735,24 +841,34 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
 
         isNew = false;
 
+        if (decrementIfPositive(failedAccesses) >= 0) {
+            //end of failed access, lock of this thread is released if held
+            manager.unlockSession(this.id);
+            return;
+        }
+
         /**
          * The servlet spec mandates to ignore request handling time
          * in lastAccessedTime.
+         * Overlapping coalesced requests write metadata once, when the last one ends.
          */
-        if (LAST_ACCESS_AT_START) {
-            this.metadata.setLastAccessedTime(this.metadata.getThisAccessedTime());
-            long thisAccessedTime = System.currentTimeMillis();
-            this.metadata.setThisAccessedTime( thisAccessedTime );
-        } else {
-            long thisAccessedTime = System.currentTimeMillis();
-            this.metadata.setThisAccessedTime( thisAccessedTime);
-            this.metadata.setLastAccessedTime( thisAccessedTime );
+        long thisAccessedTime = System.currentTimeMillis();
+        boolean last = decrementIfPositive(inFlightRequests) <= 0;
+        if (!coalesceAccess) {
+            long lastAccessedTime = LAST_ACCESS_AT_START ? this.metadata.getThisAccessedTime() : thisAccessedTime;
+            this.metadata.setAccessedTimes(lastAccessedTime, thisAccessedTime);
+        } else if (last) {
+            long lastAccessedTime = LAST_ACCESS_AT_START ? coalescedAccessTime : thisAccessedTime;
+            this.metadata.setAccessedTimes(lastAccessedTime, thisAccessedTime);
         }
 
         if (ACTIVITY_CHECK) {
             accessCount.decrementAndGet();
         }
 
+        manager.unlockSession(this.id);
+        manager.endSessionAccess();
+
     }
 
 
@@ -826,7 +942,10 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
             }
             try {
                 Object listeners[] = context.getApplicationLifecycleListeners();
-                if (notify && (listeners != null)) {
+                ClusterSessionEvents clusterEvents = manager.getClusterSessionEvents();
+                if (notify && clusterEvents != null) {
+                    clusterEvents.publish(ClusterSessionEvent.destroyed(this));
+                } else if (notify && (listeners != null)) {
                     HttpSessionEvent event =
                         new HttpSessionEvent(getSession());
                     for (int i = 0; i < listeners.length; i++) {
@@ -939,6 +1058,8 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
         //TODO better recycle - will be used in remove session to remove cached metadata and attributes from cache
         // Reset the instance variables associated with this Session
         attributes.clear();
+        localAttributes.clear();
+        pendingAttributes.clear();
         setAuthType(null);
         this.metadata.setCreationTime(0L);
         expiring = false;
@@ -1099,7 +1220,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
 
         if (name == null) return null;
 
-        return (attributes.get(name));
+        return this.getAttributeValue(name);
 
     }
 
@@ -1118,9 +1239,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
             throw new IllegalStateException
                 (sm.getString("standardSession.getAttributeNames.ise"));
 
-        Set<String> names = new HashSet<String>();
-        names.addAll(attributes.getAll().keySet());
-        return Collections.enumeration(names);
+        return Collections.enumeration(this.getAttributeNameSet());
     }
 
 
@@ -1369,6 +1488,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
             throw new IllegalStateException(sm.getString(
                     "standardSession.setAttribute.ise", getIdInternal()));
         if ((manager != null) && manager.getDistributable() &&
+          manager.getAttributeReplication(name, value) != AttributeReplication.LOCAL &&
           !isAttributeDistributable(name, value))
             throw new IllegalArgumentException
                 (sm.getString("standardSession.setAttribute.iae", name));
@@ -1378,7 +1498,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
         // Call the valueBound() method if necessary
         if (notify && value instanceof HttpSessionBindingListener) {
             // Don't call any notification if replacing with the same value
-            Object oldValue = attributes.get(name);
+            Object oldValue = this.getAttributeValue(name);
             if (value != oldValue) {
                 event = new HttpSessionBindingEvent(getSession(), name, value);
                 try {
@@ -1391,7 +1511,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
         }
 
         // Replace or add this attribute
-        Object unbound = attributes.put(name, value);
+        Object unbound = this.putAttributeValue(name, value);
 
         // Call the valueUnbound() method if necessary
         if (notify && (unbound != null) && (unbound != value) &&
@@ -1408,6 +1528,15 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
 
         if ( !notify ) return;
 
+        // Servlet listeners of session owner are notified in distributed mode, local attributes stay local
+        ClusterSessionEvents clusterEvents = manager.getClusterSessionEvents();
+        if (clusterEvents != null && manager.getAttributeReplication(name, value) != AttributeReplication.LOCAL) {
+            clusterEvents.publish(unbound != null
+                    ? ClusterSessionEvent.attribute(ClusterSessionEvent.ATTRIBUTE_REPLACED, this, name, unbound)
+                    : ClusterSessionEvent.attribute(ClusterSessionEvent.ATTRIBUTE_ADDED, this, name, value));
+            return;
+        }
+
         // Notify interested application event listeners
         Context context = (Context) manager.getContainer();
         Object listeners[] = context.getApplicationEventListeners();
@@ -1500,6 +1629,188 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
     }
 
 
+    /**
+     * Get attribute from local, pending or distributed attributes.
+     */
+    private Object getAttributeValue(String name) {
+        Object value = localAttributes.get(name);
+        if (value == null) {
+            value = pendingAttributes.get(name);
+        }
+        if (value == null) {
+            value = attributes.get(name);
+        }
+        return value;
+    }
+
+    /**
+     * Copy of distributed attributes including attributes waiting for asynchronous write.
+     */
+    HashMap<String, Object> getDistributedAttributes() {
+        HashMap<String, Object> copy = new HashMap<String, Object>(attributes.getAll());
+        copy.putAll(pendingAttributes);
+        return copy;
+    }
+
+    /**
+     * Coalesce access time writes of overlapping requests of this session, see SessionCoalescingValve.
+     * Requests already in flight are counted, the last ending request writes access times.
+     */
+    void enableAccessCoalescing() {
+        this.coalesceAccess = true;
+    }
+
+    /**
+     * Decrement counter which is positive, e.g. end of access without access (of new session) doesn't
+     * decrement requests in flight below zero.
+     *
+     * @return decremented value, -1 if counter was zero
+     */
+    private static int decrementIfPositive(AtomicInteger counter) {
+        while (true) {
+            int count = counter.get();
+            if (count <= 0) {
+                return -1;
+            }
+            if (counter.compareAndSet(count, count - 1)) {
+                return count - 1;
+            }
+        }
+    }
+
+    /**
+     * Number of requests accessing this session on this node.
+     */
+    int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    /**
+     * Set jvmRoute of node which created or took over session.
+     */
+    void setJvmRoute(String jvmRoute) {
+        this.metadata.setJvmRoute(jvmRoute);
+    }
+
+    /**
+     * Read metadata and distributed attributes. Remote entries are kept in L1 cache of this node if enabled.
+     *
+     * @return number of distributed attributes
+     */
+    int prefetch() {
+        this.metadata.getJvmRoute();
+        return this.attributes.getAll().size();
+    }
+
+    /**
+     * Names of local, pending and distributed attributes.
+     */
+    private Set<String> getAttributeNameSet() {
+        Set<String> names = new HashSet<String>();
+        names.addAll(localAttributes.keySet());
+        names.addAll(pendingAttributes.keySet());
+        names.addAll(attributes.getAll().keySet());
+        return names;
+    }
+
+    /**
+     * Store attribute according to its replication and remove it from other places.
+     *
+     * @return previous attribute value
+     */
+    private Object putAttributeValue(String name, Object value) {
+        AttributeReplication replication = manager.getAttributeReplication(name, value);
+        Object previous;
+
+        if (replication == AttributeReplication.LOCAL) {
+            previous = localAttributes.put(name, value);
+            if (previous == null) {
+                previous = this.removeDistributedValue(name);
+            }
+        } else if (replication == AttributeReplication.ASYNC) {
+            //size limit is checked before write is queued
+            attributes.checkSize(name, value);
+            previous = localAttributes.remove(name);
+            Object pending = pendingAttributes.put(name, value);
+            if (previous == null) {
+                previous = pending != null ? pending : attributes.get(name);
+            }
+            manager.writeBehind(new AttributeWriteBehind(name, value));
+        } else {
+            previous = localAttributes.remove(name);
+            Object replaced;
+            synchronized (pendingAttributes) {
+                pendingAttributes.remove(name);
+                replaced = attributes.put(name, value);
+            }
+            if (previous == null) {
+                previous = replaced;
+            }
+        }
+
+        return previous;
+    }
+
+    /**
+     * Remove attribute from all places.
+     *
+     * @return removed value
+     */
+    private Object removeAttributeValue(String name) {
+        Object value = localAttributes.remove(name);
+        if (value != null) {
+            return value;
+        }
+        return this.removeDistributedValue(name);
+    }
+
+    /**
+     * Remove pending and distributed attribute.
+     */
+    private Object removeDistributedValue(String name) {
+        Object pending;
+        Object value;
+        synchronized (pendingAttributes) {
+            pending = pendingAttributes.remove(name);
+            value = attributes.remove(name);
+        }
+        return pending != null ? pending : value;
+    }
+
+    /**
+     * Write pending attribute to distributed cache, if it was not replaced or removed meanwhile.
+     */
+    private class AttributeWriteBehind implements Runnable {
+        private final String name;
+        private final Object value;
+
+        AttributeWriteBehind(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            synchronized (pendingAttributes) {
+                if (pendingAttributes.get(name) != value) {
+                    return;
+                }
+                try {
+                    if (isValidInternal()) {
+                        attributes.put(name, value);
+                    }
+                } catch (RuntimeException ex) {
+                    manager.getContainer().getLogger().error("Asynchronous write of session attribute " + name
+                            + " failed. Session id: " + getIdInternal(), ex);
+                } finally {
+                    //newer value queued meanwhile stays pending
+                    pendingAttributes.remove(name, value);
+                }
+            }
+        }
+    }
+
+
     // ------------------------------------------------------ Protected Methods
 
 
@@ -1559,7 +1870,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
      */
     protected String[] keys() {
 
-        return attributes.getAll().keySet().toArray(EMPTY_ARRAY);
+        return this.getAttributeNameSet().toArray(EMPTY_ARRAY);
 
     }
 
@@ -1583,7 +1894,7 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
         if (name == null) return;
 
         // Remove this attribute from our collection
-        Object value = attributes.remove(name);
+        Object value = this.removeAttributeValue(name);
 
         // Do we need to do valueUnbound() and attributeRemoved() notification?
         if (!notify || (value == null)) {
@@ -1597,6 +1908,14 @@ public class InfinispanSession implements HttpSession, Session, Serializable {
             ((HttpSessionBindingListener) value).valueUnbound(event);
         }
 
+        // Servlet listeners of session owner are notified in distributed mode, local attributes stay local
+        ClusterSessionEvents clusterEvents = manager.getClusterSessionEvents();
+        if (clusterEvents != null && manager.getAttributeReplication(name, value) != AttributeReplication.LOCAL) {
+            clusterEvents.publish(
+                    ClusterSessionEvent.attribute(ClusterSessionEvent.ATTRIBUTE_REMOVED, this, name, value));
+            return;
+        }
+
         // Notify interested application event listeners
         Context context = (Context) manager.getContainer();
         Object listeners[] = context.getApplicationEventListeners();
@@ -5,77 +5,169 @@ package org.apache.catalina.session.infinispan;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
-import org.infinispan.Cache;
 import org.infinispan.notifications.Listener;
-import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
 import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
-import org.infinispan.notifications.cachelistener.annotation.CacheEntryVisited;
-import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
-import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
 import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Listen to session attributes cache events.
- * Remove local session object if session removed from session.
+ * Listen to removals of session metadata.
+ * Remove local session object if session removed from cache (invalidated or expired by other node).
+ * Notification thread only filters key and queues session id, local session is removed by own bounded executor.
+ * Removals of the same session waiting in queue are coalesced. If queue is full notification thread waits
+ * max offerTimeout (backpressure), then removal is dropped.
  *
  * @author zhenek
  */
-@Listener(sync = false)
+@Listener(sync = true)
 public class InfinispanSessionListener {
 
     protected Log log = LogFactory.getLog(InfinispanSessionListener.class);
     private InfinispanSessionManager manager;
 
+    /**
+     * Session ids waiting in queue
+     */
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong backpressured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
     /**
      * Construct listener.
      *
-     * @param manager session manager
+     * @param manager       session manager
+     * @param containerName application name, used in name of processing thread
+     * @param queueCapacity max number of queued removals
+     * @param offerTimeout  max wait of notification thread for space in full queue, milliseconds
      */
-    public InfinispanSessionListener(InfinispanSessionManager manager) {
+    public InfinispanSessionListener(InfinispanSessionManager manager, String containerName, int queueCapacity,
+                                     final long offerTimeout) {
         this.manager = manager;
+        final String name = "SessionEventProcessor-" + containerName;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (!executor.isShutdown()) {
+                            backpressured.incrementAndGet();
+                            try {
+                                if (executor.getQueue().offer(r, offerTimeout, TimeUnit.MILLISECONDS)) {
+                                    return;
+                                }
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        drop(((RemoveLocalSession) r).sessionId);
+                    }
+                });
     }
 
-    @CacheEntryRemoved()
+    @CacheEntryRemoved
     public void removeSession(CacheEntryRemovedEvent<String, Object> event) {
-        if (!event.isPre()) {
+        if (event.isPre() || !SessionMetaAttributes.isCacheId(event.getKey())) {
             return;
         }
+        received.incrementAndGet();
 
-        // only session prefix
-        String sessionId = event.getKey();
+        String sessionId = SessionMetaAttributes.getSessionId(event.getKey());
+        if (pending.putIfAbsent(sessionId, Boolean.TRUE) != null) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        executor.execute(new RemoveLocalSession(sessionId));
+    }
 
-        Cache<String, Object> cache = event.getCache();
-        String cacheName = cache.getName();
-        log.info("REMOVED event Cache : " + cacheName
-                + " removed session. Session id: " + sessionId);
+    /**
+     * Stop processing of queued removals
+     */
+    public void stop() {
+        executor.shutdownNow();
+        pending.clear();
+    }
 
-        manager.removeLocalSession( sessionId );
+    /**
+     * Number of received metadata removals
+     */
+    public long getReceived() {
+        return received.get();
     }
 
-    @CacheEntryVisited
-    public void visitSession(CacheEntryEvent<String, Object> event) {
-        if (!event.isPre()) {
-            return;
-        }
-        String sessionId = event.getKey();
+    /**
+     * Number of removals merged with removal of the same session waiting in queue
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
 
-        Cache<String, Object> cache = event.getCache();
-        String cacheName = cache.getName();
-        log.debug("VISITED event Cache : " + cacheName
-                + " visited session. Session id: " + sessionId);
+    /**
+     * Number of removals which found queue full, notification thread waited
+     */
+    public long getBackpressured() {
+        return backpressured.get();
     }
 
-    @CacheEntryCreated
-    public void addSession(CacheEntryCreatedEvent<String, Object> event) {
-        if (!event.isPre()) {
-            return;
+    /**
+     * Number of removals dropped, queue stayed full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Number of removals waiting in queue
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    private void drop(String sessionId) {
+        pending.remove(sessionId);
+        dropped.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Session event queue full, removal of local session dropped. Session id: " + sessionId);
         }
-        String sessionId = event.getKey();
+    }
+
+    /**
+     * Remove local session object
+     */
+    private class RemoveLocalSession implements Runnable {
+        private final String sessionId;
 
-        Cache<String, Object> cache = event.getCache();
-        String cacheName = cache.getName();
-        log.info("CREATED event Cache : " + cacheName
-                + " added session. Session id: " + sessionId);
+        RemoveLocalSession(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void run() {
+            pending.remove(sessionId);
+            if (log.isDebugEnabled()) {
+                log.debug("Session removed from cache, removing local session. Session id: " + sessionId);
+            }
+            manager.removeLocalSession(sessionId);
+        }
     }
 }
-
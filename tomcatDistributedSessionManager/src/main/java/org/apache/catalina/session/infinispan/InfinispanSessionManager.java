@@ -14,15 +14,25 @@ import org.apache.catalina.session.StandardSession;
 import org.apache.catalina.session.TooManyActiveSessionsException;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
 import org.infinispan.Cache;
-import org.infinispan.DecoratedCache;
 import org.infinispan.atomic.AtomicMapLookup;
 import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.Configuration;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.distexec.DistributedCallable;
+import org.infinispan.distexec.DistributedExecutorService;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.ch.ConsistentHash;
+import org.infinispan.distribution.ch.ConsistentHashHelper;
 import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.transaction.LockingMode;
 
 import javax.transaction.TransactionManager;
 import java.io.File;
@@ -30,9 +40,28 @@ import java.io.IOException;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * InfinispanSessionManager
@@ -55,78 +84,2024 @@ public class    InfinispanSessionManager extends ManagerBase {
      */
     Cache<String, Object> cache;
 
+    /**
+     * distributed session attributes cache, the same as metadata cache if caches are not split
+     */
+    Cache<String, Object> attributesCache;
+
+    /**
+     * Serializes attribute values with class loader of application
+     */
+    private AttributeCodec attributeCodec;
+
+    /**
+     * Write ids of class dictionary instead of class descriptors to serialized attribute values.
+     */
+    protected boolean classDictionary = false;
+
+    /**
+     * Replicated cache of dictionaries, null - dictionaries are not used
+     */
+    private Cache<String, Object> dictionaryCache;
+
+    /**
+     * Class names of serialized attribute values
+     */
+    private StringDictionary classNames;
+
+    /**
+     * Store attribute names as ids of attribute name dictionary.
+     */
+    protected boolean attributeNameDictionary = false;
+
+    /**
+     * Attribute names of sessions
+     */
+    private StringDictionary attributeNames;
+
+
+    /**
+     * Iterates cluster sessions page by page
+     */
+    private class ClusterSessionIterator implements Iterator<SessionSummary> {
+        private final int pageSize;
+        private final SessionFilter filter;
+        private Iterator<SessionSummary> page;
+        private String cursor;
+        private boolean lastPage = false;
+
+        ClusterSessionIterator(int pageSize, SessionFilter filter) {
+            this.pageSize = pageSize;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((page == null || !page.hasNext()) && !lastPage) {
+                SessionSummaryPage nextPage = getClusterSessionPage(cursor, pageSize, filter);
+                page = nextPage.getSessions().iterator();
+                cursor = nextPage.getNextCursor();
+                lastPage = cursor == null;
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public SessionSummary next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Cluster session listing of calling node: sessions read from nodes but not returned in page yet
+     */
+    private static final class ClusterListing {
+        final TreeSet<SessionSummary> remainder = new TreeSet<SessionSummary>();
+
+        /**
+         * True if nodes keep position of listing and may have more sessions, guarded by listing
+         */
+        boolean more;
+
+        /**
+         * True if nodes started listing, guarded by listing
+         */
+        boolean started;
+
+        /**
+         * Time of last page, guarded by listing
+         */
+        long lastUsed = System.currentTimeMillis();
+
+        ClusterListing(boolean more) {
+            this.more = more;
+        }
+
+        /**
+         * True if listing wasn't continued in timeout
+         */
+        synchronized boolean isExpired(long now) {
+            return now - lastUsed > SessionListingTask.LISTING_TIMEOUT;
+        }
+    }
+
+
+    // ---------------------------------------------------- Security Classes
+    private class PrivilegedDoLoad
+            implements PrivilegedExceptionAction<Void> {
+
+        PrivilegedDoLoad() {
+            // NOOP
+        }
+
+        @Override
+        public Void run() throws Exception{
+            doLoad();
+            return null;
+        }
+    }
+
+    private class PrivilegedDoUnload
+            implements PrivilegedExceptionAction<Void> {
+
+        PrivilegedDoUnload() {
+            // NOOP
+        }
+
+        @Override
+        public Void run() throws Exception{
+            doUnload();
+            return null;
+        }
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    protected static final String info = "InfinispanSessionManager/1.0";
+
+
+    /**
+     * The descriptive name of this Manager implementation (for logging).
+     */
+    protected static final String name = "InfinispanSessionManager";
+
+    /**
+     * Lock session in cluster between access() and endAccess(). Default is lock-free mode.
+     */
+    protected boolean sessionLocking = false;
+
+    /**
+     * Max time to wait for session lock in milliseconds.
+     */
+    protected long sessionLockTimeout = 10000L;
+
+    /**
+     * Max time session lock could be held in milliseconds, older locks are released by background process.
+     */
+    protected long sessionLockLeaseTime = 300000L;
+
+    /**
+     * Request continues without session lock after lock timeout, false - access of session fails.
+     */
+    protected boolean sessionLockFallback = false;
+
+    /**
+     * Session lock, null if session locking is disabled
+     */
+    private SessionLock sessionLock;
+
+    /**
+     * Interval of publishing local session counter to other nodes in milliseconds.
+     */
+    protected long clusterCounterInterval = 10000L;
+
+    /**
+     * Max interval of counting sessions owned by this node in milliseconds. Sessions are counted after cluster
+     * topology changes, in between only sessions created and removed by this node are added.
+     */
+    protected long clusterCounterAnchorInterval = 600000L;
+
+    /**
+     * Number of rehashes when owned sessions were counted last time
+     */
+    private long counterRehashCount = 0;
+
+    /**
+     * Positions of cluster session listings on this node by listing id
+     */
+    private final ConcurrentMap<String, SessionListingTask.Listing> sessionListings =
+            new ConcurrentHashMap<String, SessionListingTask.Listing>();
+
+    /**
+     * Cluster session listings started by this node by listing id, cursor of page is listing id
+     */
+    private final ConcurrentMap<String, ClusterListing> clusterListings =
+            new ConcurrentHashMap<String, ClusterListing>();
+
+    /**
+     * Approximate cluster wide session counter, null if application is not distributable
+     */
+    private ClusterSessionCounter clusterSessionCounter;
+
+    /**
+     * State transfer statistics of session cache on this node
+     */
+    private final RehashStatistics rehashStatistics = new RehashStatistics();
+
+    /**
+     * Time to reuse computed cluster statistics in milliseconds.
+     */
+    protected long clusterStatisticsCacheTime = 60000L;
+
+    /**
+     * Max time to wait for result of task executed on other cluster nodes in milliseconds.
+     */
+    protected long clusterTaskTimeout = 30000L;
+
+    /**
+     * Last computed cluster statistics
+     */
+    private volatile SessionStatistics clusterStatistics;
+
+    /**
+     * Executes tasks on cluster nodes, null if cache is not clustered
+     */
+    private DistributedExecutorService executorService;
+
+    /**
+     * Track serialized size of session attributes in session metadata.
+     */
+    protected boolean sessionSizeAccounting = false;
+
+    /**
+     * Session size in bytes to log warning, 0 - no limit. Requires size accounting.
+     */
+    protected long sessionSizeWarnLimit = 0L;
+
+    /**
+     * Max session size in bytes, larger attribute writes are rejected, 0 - no limit. Requires size accounting.
+     */
+    protected long sessionSizeMaxLimit = 0L;
+
+    /**
+     * Comma separated name patterns of attributes stored only on local node.
+     */
+    protected String localAttributes = null;
+
+    /**
+     * Comma separated name patterns of attributes replicated asynchronously.
+     */
+    protected String asyncAttributes = null;
+
+    /**
+     * Selects replication of session attributes
+     */
+    private volatile AttributeReplicationPolicy attributeReplicationPolicy = new AttributeReplicationPolicy(null, null);
+
+    /**
+     * Writes asynchronously replicated attributes, null until first asynchronous write
+     * if no asyncAttributes pattern is set
+     */
+    private volatile ThreadPoolExecutor attributeWriter;
+
+    /**
+     * Name of application in thread name of attribute writer, null if writer can't be created (not started)
+     */
+    private String attributeWriterName;
+
+    /**
+     * Max number of attribute writes waiting for asynchronous replication
+     */
+    protected int attributeWriteQueueCapacity = 10000;
+
+    /**
+     * Guards creation and stop of attribute writer
+     */
+    private final Object attributeWriterLock = new Object();
+
+    /**
+     * Number of asynchronous attribute writes done synchronously because write queue was full
+     */
+    private final AtomicLong attributeWritesOverflowed = new AtomicLong();
+
+    /**
+     * Use one cache manager for all web applications in JVM, configured by sessionInfinispanConfig.xml.
+     */
+    protected boolean sharedCacheManager = false;
+
+    /**
+     * Store metadata and attributes in separate caches tc_session_meta_&lt;app&gt; and tc_session_attr_&lt;app&gt;.
+     */
+    protected boolean splitCaches = false;
+
+    /**
+     * Cache mode of metadata cache if caches are split, null - cacheMode.
+     */
+    protected String metadataCacheMode = null;
+
+    /**
+     * Number of copies of session metadata if caches are split, 0 - numOwners.
+     */
+    protected int metadataNumOwners = 0;
+
+    /**
+     * L1 lifespan of metadata cache if caches are split, negative - l1Lifespan.
+     */
+    protected long metadataL1Lifespan = -1L;
+
+    /**
+     * Synchronous replication of metadata cache if caches are split, null - syncReplication.
+     */
+    protected Boolean metadataSyncReplication = null;
+
+    /**
+     * Max number of metadata entries in memory if caches are split, 0 - evictionMaxEntries.
+     */
+    protected int metadataEvictionMaxEntries = 0;
+
+    /**
+     * Cache mode of attributes cache if caches are split, null - cacheMode.
+     */
+    protected String attributesCacheMode = null;
+
+    /**
+     * Number of copies of session attributes if caches are split, 0 - numOwners.
+     */
+    protected int attributesNumOwners = 0;
+
+    /**
+     * L1 lifespan of attributes cache if caches are split, negative - l1Lifespan.
+     */
+    protected long attributesL1Lifespan = -1L;
+
+    /**
+     * Synchronous replication of attributes cache if caches are split, null - syncReplication.
+     */
+    protected Boolean attributesSyncReplication = null;
+
+    /**
+     * Max number of attributes entries in memory if caches are split, 0 - evictionMaxEntries.
+     */
+    protected int attributesEvictionMaxEntries = 0;
+
+    /**
+     * Cache mode of session caches (LOCAL, REPL_SYNC, REPL_ASYNC, DIST_SYNC, DIST_ASYNC), null - keep configured mode.
+     */
+    protected String cacheMode = null;
+
+    /**
+     * Number of copies of distributed session, 0 - keep configured value.
+     */
+    protected int numOwners = 0;
+
+    /**
+     * L1 cache lifespan in milliseconds, 0 - disable L1, negative - keep configured value.
+     */
+    protected long l1Lifespan = -1L;
+
+    /**
+     * Synchronous or asynchronous replication, null - keep configured value.
+     */
+    protected Boolean syncReplication = null;
+
+    /**
+     * Timeout of synchronous remote calls in milliseconds, 0 - keep configured value.
+     */
+    protected long remoteTimeout = 0L;
+
+    /**
+     * Max number of entries in memory of one node, 0 - keep configured value.
+     */
+    protected int evictionMaxEntries = 0;
+
+    /**
+     * Lock concurrency level, 0 - keep configured value.
+     */
+    protected int lockConcurrencyLevel = 0;
+
+    /**
+     * Use lock striping, null - keep configured value.
+     */
+    protected Boolean useLockStriping = null;
+
+    /**
+     * Number of entries transferred in one state transfer chunk, 0 - keep configured value.
+     */
+    protected int stateTransferChunkSize = 0;
+
+    /**
+     * Timeout of state transfer (rehash) in milliseconds, 0 - keep configured value.
+     */
+    protected long stateTransferTimeout = 0L;
+
+    /**
+     * Drain node (see {@link #drain()}) when manager stops.
+     */
+    protected boolean drainOnStop = false;
+
+    /**
+     * Max time of drain in milliseconds.
+     */
+    protected long drainTimeout = 30000L;
+
+    /**
+     * Number of session entries handed off to other node in one batch.
+     */
+    protected int drainBatchSize = 500;
+
+    /**
+     * Pause between hand off batches in milliseconds.
+     */
+    protected long drainBatchPause = 10L;
+
+    /**
+     * Node is draining, new sessions are rejected
+     */
+    private volatile boolean draining = false;
+
+    /**
+     * Number of requests accessing local sessions now
+     */
+    private final AtomicInteger activeAccesses = new AtomicInteger();
+
+    /**
+     * Drain waits on this monitor until requests accessing sessions end
+     */
+    private final Object accessMonitor = new Object();
+
+    /**
+     * Max number of session removals from other nodes (and session listener events) waiting for processing.
+     */
+    protected int sessionEventQueueCapacity = 10000;
+
+    /**
+     * Max wait of cache notification thread for space in full session event queue, milliseconds.
+     */
+    protected long sessionEventOfferTimeout = 100L;
+
+    /**
+     * Listener of session removals in other nodes
+     */
+    private InfinispanSessionListener sessionListener;
+
+    /**
+     * Listener recording rehash statistics
+     */
+    private RehashListener rehashListener;
+
+    /**
+     * Deliver servlet session listener events once in cluster, on primary owner of session.
+     */
+    protected boolean clusterListeners = false;
+
+    /**
+     * Dispatcher of servlet session listener events, null - listeners are notified on node of change
+     */
+    private ClusterSessionEvents clusterSessionEvents;
+
+    /**
+     * Prefetch session after failover from other jvmRoute, and other sessions of the same jvmRoute.
+     */
+    protected boolean failoverPrefetch = false;
+
+    /**
+     * Number of threads prefetching sessions after failover.
+     */
+    protected int prefetchThreads = 2;
+
+    /**
+     * Max number of sessions of failed jvmRoute prefetched by this node.
+     */
+    protected int prefetchRouteLimit = 1000;
+
+    /**
+     * Sessions of one jvmRoute are prefetched again only after this interval in milliseconds.
+     */
+    private static final long PREFETCH_ROUTE_INTERVAL = 300000L;
+
+    /**
+     * Executor of session prefetch, null - prefetch disabled
+     */
+    private ThreadPoolExecutor prefetchExecutor;
+
+    /**
+     * Departed jvmRoute to time of last prefetch of its sessions, expired by background process
+     */
+    private final ConcurrentMap<String, Long> prefetchedRoutes = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong prefetchedSessions = new AtomicLong();
+
+    private final AtomicLong prefetchDropped = new AtomicLong();
+
+    /**
+     * Take over sessions of node which left cluster in background batches.
+     */
+    protected boolean failoverBatch = false;
+
+    /**
+     * Number of sessions taken over in one batch.
+     */
+    protected int failoverBatchSize = 500;
+
+    /**
+     * Pause between take over batches in milliseconds.
+     */
+    protected long failoverBatchPause = 10L;
+
+    /**
+     * jvmRoutes of cluster nodes
+     */
+    private JvmRouteRegistry jvmRouteRegistry;
+
+    /**
+     * Listener of cluster membership
+     */
+    private ClusterViewListener clusterViewListener;
+
+    private final AtomicLong failoverSessions = new AtomicLong();
+
+    /**
+     * Session accesses of overlapping requests which didn't write metadata
+     */
+    private final AtomicLong coalescedAccesses = new AtomicLong();
+
+    /**
+     * Directory of local file store of passivated sessions, null - no passivation.
+     */
+    protected String passivationDirectory = null;
+
+    /**
+     * Store of passivated sessions: file - Infinispan file store, mapped - memory mapped segment store.
+     */
+    protected String passivationStore = "file";
+
+    /**
+     * Snapshot file of sessions written on stop and loaded on start, null - no snapshot.
+     */
+    protected String snapshotFile = null;
+
+    /**
+     * Number of threads serializing and loading snapshot blocks.
+     */
+    protected int snapshotThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Cache configuration file doesn't exist, default cache configuration is used
+     */
+    private boolean defaultCacheConfiguration;
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return descriptive information about this Manager implementation and
+     * the corresponding version number, in the format
+     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     */
+    @Override
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    /**
+     * Return the descriptive short name of this Manager implementation.
+     */
+    @Override
+    public String getName() {
+
+        return (name);
+
+    }
+
+
+    /**
+     * Return true if session is locked in cluster during request.
+     */
+    public boolean getSessionLocking() {
+        return this.sessionLocking;
+    }
+
+
+    /**
+     * Enable cluster lock of session between access() and endAccess().
+     * Cache has to use PESSIMISTIC locking mode.
+     *
+     * @param sessionLocking true to serialize requests of one session in cluster
+     */
+    public void setSessionLocking(boolean sessionLocking) {
+        this.sessionLocking = sessionLocking;
+    }
+
+
+    /**
+     * Return max time to wait for session lock in milliseconds.
+     */
+    public long getSessionLockTimeout() {
+        return this.sessionLockTimeout;
+    }
+
+
+    /**
+     * Set max time to wait for session lock in milliseconds. Access of session fails
+     * after timeout unless sessionLockFallback is enabled.
+     */
+    public void setSessionLockTimeout(long sessionLockTimeout) {
+        this.sessionLockTimeout = sessionLockTimeout;
+    }
+
+
+    /**
+     * Return max time session lock could be held in milliseconds.
+     */
+    public long getSessionLockLeaseTime() {
+        return this.sessionLockLeaseTime;
+    }
+
+
+    /**
+     * Set max time session lock could be held in milliseconds.
+     */
+    public void setSessionLockLeaseTime(long sessionLockLeaseTime) {
+        this.sessionLockLeaseTime = sessionLockLeaseTime;
+    }
+
+
+    /**
+     * Return true if request continues without session lock after lock timeout.
+     */
+    public boolean getSessionLockFallback() {
+        return this.sessionLockFallback;
+    }
+
+
+    /**
+     * Set true to continue request without session lock after lock timeout (logged),
+     * false - access of session fails with IllegalStateException.
+     */
+    public void setSessionLockFallback(boolean sessionLockFallback) {
+        this.sessionLockFallback = sessionLockFallback;
+    }
+
+
+    /**
+     * Number of session lock requests.
+     */
+    public long getSessionLockCount() {
+        return sessionLock == null ? 0 : sessionLock.getAcquiredCount();
+    }
+
+
+    /**
+     * Number of session lock requests not satisfied in timeout.
+     */
+    public long getSessionLockTimeouts() {
+        return sessionLock == null ? 0 : sessionLock.getTimeoutCount();
+    }
+
+
+    /**
+     * Sum of time spent waiting for session locks in milliseconds.
+     */
+    public long getSessionLockWaitTime() {
+        return sessionLock == null ? 0 : sessionLock.getWaitTime();
+    }
+
+
+    /**
+     * Average time spent waiting for session lock in milliseconds.
+     */
+    public long getSessionLockAverageWaitTime() {
+        long count = this.getSessionLockCount();
+        return count == 0 ? 0 : this.getSessionLockWaitTime() / count;
+    }
+
+
+    /**
+     * Longest time spent waiting for session lock in milliseconds.
+     */
+    public long getSessionLockMaxWaitTime() {
+        return sessionLock == null ? 0 : sessionLock.getMaxWaitTime();
+    }
+
+
+    /**
+     * Number of session locks held by this node.
+     */
+    public int getSessionLocksHeld() {
+        return sessionLock == null ? 0 : sessionLock.getHeldCount();
+    }
+
+
+
+    /**
+     * Return interval of publishing local session counter in milliseconds.
+     */
+    public long getClusterCounterInterval() {
+        return this.clusterCounterInterval;
+    }
+
+
+    /**
+     * Set interval of publishing local session counter in milliseconds.
+     * Cluster wide number of active sessions is updated with the same period.
+     */
+    public void setClusterCounterInterval(long clusterCounterInterval) {
+        this.clusterCounterInterval = clusterCounterInterval;
+    }
+
+
+    /**
+     * Return max interval of counting sessions owned by this node in milliseconds.
+     */
+    public long getClusterCounterAnchorInterval() {
+        return this.clusterCounterAnchorInterval;
+    }
+
+
+    /**
+     * Set max interval of counting sessions owned by this node in milliseconds.
+     * Owned sessions are counted also after every cluster topology change.
+     */
+    public void setClusterCounterAnchorInterval(long clusterCounterAnchorInterval) {
+        this.clusterCounterAnchorInterval = clusterCounterAnchorInterval;
+    }
+
+
+    /**
+     * Approximate number of active sessions in whole cluster. Used to enforce maxActiveSessions.
+     * Returns local number of active sessions if application is not distributable.
+     */
+    public long getClusterActiveSessions() {
+        if (clusterSessionCounter == null) {
+            return this.getActiveSessions();
+        }
+        return clusterSessionCounter.getClusterValue();
+    }
+
+
+
+    /**
+     * Return time to reuse computed cluster statistics in milliseconds.
+     */
+    public long getClusterStatisticsCacheTime() {
+        return this.clusterStatisticsCacheTime;
+    }
+
+
+    /**
+     * Set time to reuse computed cluster statistics in milliseconds.
+     */
+    public void setClusterStatisticsCacheTime(long clusterStatisticsCacheTime) {
+        this.clusterStatisticsCacheTime = clusterStatisticsCacheTime;
+    }
+
+
+    /**
+     * Return max time to wait for result of cluster task in milliseconds.
+     */
+    public long getClusterTaskTimeout() {
+        return this.clusterTaskTimeout;
+    }
+
+
+    /**
+     * Set max time to wait for result of cluster task in milliseconds.
+     */
+    public void setClusterTaskTimeout(long clusterTaskTimeout) {
+        this.clusterTaskTimeout = clusterTaskTimeout;
+    }
+
+
+    /**
+     * Session statistics of whole cluster. Computed by all nodes from owned session metadata,
+     * reused for clusterStatisticsCacheTime milliseconds.
+     */
+    public SessionStatistics getClusterStatistics() {
+        SessionStatistics statistics = clusterStatistics;
+        if (statistics == null
+                || System.currentTimeMillis() - statistics.getComputedAt() >= clusterStatisticsCacheTime) {
+            statistics = this.computeClusterStatistics();
+            clusterStatistics = statistics;
+        }
+        return statistics;
+    }
+
+
+    /**
+     * Number of sessions stored in cluster, including sessions without local session on any node.
+     */
+    public long getClusterSessionCount() {
+        return this.getClusterStatistics().getActiveSessions();
+    }
+
+
+    /**
+     * Number of sessions expired by all cluster nodes.
+     */
+    public long getClusterExpiredSessions() {
+        return this.getClusterStatistics().getExpiredSessions();
+    }
+
+
+    /**
+     * Average alive time of sessions expired by all cluster nodes in seconds.
+     */
+    public long getClusterSessionAverageAliveTime() {
+        return this.getClusterStatistics().getExpiredAverageAliveTime();
+    }
+
+
+    /**
+     * Average age of sessions stored in cluster in seconds.
+     */
+    public long getClusterSessionAverageAge() {
+        return this.getClusterStatistics().getAverageAge();
+    }
+
+
+    /**
+     * Number of sessions created in cluster per minute.
+     */
+    public long getClusterSessionCreateRate() {
+        return this.getClusterStatistics().getCreateRate();
+    }
+
+
+    /**
+     * Number of stored sessions exceeding max inactive interval which were not expired yet.
+     */
+    public long getClusterTimedOutSessions() {
+        return this.getClusterStatistics().getTimedOutSessions();
+    }
+
+
+
+    /**
+     * Return true if serialized size of session attributes is tracked.
+     */
+    public boolean getSessionSizeAccounting() {
+        return this.sessionSizeAccounting;
+    }
+
+
+    /**
+     * Check session size on every attribute write. Size is sum of sizes of serialized attribute values.
+     */
+    public void setSessionSizeAccounting(boolean sessionSizeAccounting) {
+        this.sessionSizeAccounting = sessionSizeAccounting;
+    }
+
+
+    /**
+     * Return session size in bytes to log warning.
+     */
+    public long getSessionSizeWarnLimit() {
+        return this.sessionSizeWarnLimit;
+    }
+
+
+    /**
+     * Set session size in bytes to log warning, 0 - no limit.
+     */
+    public void setSessionSizeWarnLimit(long sessionSizeWarnLimit) {
+        this.sessionSizeWarnLimit = sessionSizeWarnLimit;
+    }
+
+
+    /**
+     * Return max session size in bytes.
+     */
+    public long getSessionSizeMaxLimit() {
+        return this.sessionSizeMaxLimit;
+    }
+
+
+    /**
+     * Set max session size in bytes, 0 - no limit. Attribute write exceeding limit throws IllegalArgumentException.
+     */
+    public void setSessionSizeMaxLimit(long sessionSizeMaxLimit) {
+        this.sessionSizeMaxLimit = sessionSizeMaxLimit;
+    }
+
+
+
+    /**
+     * Return true if cache manager is shared by all web applications in JVM.
+     */
+    public boolean getSharedCacheManager() {
+        return this.sharedCacheManager;
+    }
+
+
+    /**
+     * Share one cache manager (JGroups channel, thread pools) by all web applications in JVM.
+     * Every application uses its own cache in shared cache manager.
+     */
+    public void setSharedCacheManager(boolean sharedCacheManager) {
+        this.sharedCacheManager = sharedCacheManager;
+    }
+
+
+    /**
+     * Return cache mode of session caches.
+     */
+    public String getCacheMode() {
+        return this.cacheMode;
+    }
+
+
+    /**
+     * Set cache mode of session caches: LOCAL, REPL_SYNC, REPL_ASYNC, DIST_SYNC or DIST_ASYNC.
+     * Overrides default configuration and configuration file.
+     */
+    public void setCacheMode(String cacheMode) {
+        this.cacheMode = cacheMode;
+    }
+
+
+    /**
+     * Return number of copies of distributed session.
+     */
+    public int getNumOwners() {
+        return this.numOwners;
+    }
+
+
+    /**
+     * Set number of copies of distributed session.
+     */
+    public void setNumOwners(int numOwners) {
+        this.numOwners = numOwners;
+    }
+
+
+    /**
+     * Return L1 cache lifespan in milliseconds.
+     */
+    public long getL1Lifespan() {
+        return this.l1Lifespan;
+    }
+
+
+    /**
+     * Set L1 cache lifespan in milliseconds, 0 disables L1 cache. Used only in distributed mode.
+     */
+    public void setL1Lifespan(long l1Lifespan) {
+        this.l1Lifespan = l1Lifespan;
+    }
+
+
+    /**
+     * Return true if replication is synchronous, null if configured by cache configuration.
+     */
+    public Boolean getSyncReplication() {
+        return this.syncReplication;
+    }
+
+
+    /**
+     * Set synchronous or asynchronous replication, keeps replicated or distributed mode.
+     */
+    public void setSyncReplication(boolean syncReplication) {
+        this.syncReplication = syncReplication;
+    }
+
+
+    /**
+     * Return timeout of synchronous remote calls in milliseconds.
+     */
+    public long getRemoteTimeout() {
+        return this.remoteTimeout;
+    }
+
+
+    /**
+     * Set timeout of synchronous remote calls in milliseconds.
+     */
+    public void setRemoteTimeout(long remoteTimeout) {
+        this.remoteTimeout = remoteTimeout;
+    }
+
+
+    /**
+     * Return max number of session cache entries in memory of one node.
+     */
+    public int getEvictionMaxEntries() {
+        return this.evictionMaxEntries;
+    }
+
+
+    /**
+     * Set max number of session cache entries in memory of one node, least recently used entries are evicted.
+     * Without cache store evicted sessions are lost on this node.
+     */
+    public void setEvictionMaxEntries(int evictionMaxEntries) {
+        this.evictionMaxEntries = evictionMaxEntries;
+    }
+
+
+    /**
+     * Return lock concurrency level.
+     */
+    public int getLockConcurrencyLevel() {
+        return this.lockConcurrencyLevel;
+    }
+
+
+    /**
+     * Set lock concurrency level, number of lock stripes if lock striping is used.
+     */
+    public void setLockConcurrencyLevel(int lockConcurrencyLevel) {
+        this.lockConcurrencyLevel = lockConcurrencyLevel;
+    }
+
+
+    /**
+     * Return true if lock striping is used, null if configured by cache configuration.
+     */
+    public Boolean getUseLockStriping() {
+        return this.useLockStriping;
+    }
+
+
+    /**
+     * Share locks of entries in lock stripes (less memory) or use lock per entry (less contention).
+     */
+    public void setUseLockStriping(boolean useLockStriping) {
+        this.useLockStriping = useLockStriping;
+    }
+
+
+    /**
+     * Return number of entries in one state transfer chunk.
+     */
+    public int getStateTransferChunkSize() {
+        return this.stateTransferChunkSize;
+    }
+
+
+    /**
+     * Set number of entries transferred in one state transfer chunk.
+     */
+    public void setStateTransferChunkSize(int stateTransferChunkSize) {
+        this.stateTransferChunkSize = stateTransferChunkSize;
+    }
+
+
+    /**
+     * Return timeout of state transfer in milliseconds.
+     */
+    public long getStateTransferTimeout() {
+        return this.stateTransferTimeout;
+    }
+
+
+    /**
+     * Set timeout of state transfer (rehash) in milliseconds. Infinispan uses it also as rehash remote call timeout.
+     */
+    public void setStateTransferTimeout(long stateTransferTimeout) {
+        this.stateTransferTimeout = stateTransferTimeout;
+    }
+
+
+    /**
+     * State transfer statistics of session cache on this node.
+     */
+    public RehashStatistics getRehashStatistics() {
+        return this.rehashStatistics;
+    }
+
+
+    /**
+     * True if state transfer of session cache is running on this node.
+     */
+    public boolean isRehashInProgress() {
+        return this.rehashStatistics.isInProgress();
+    }
+
+
+    /**
+     * Duration of last state transfer of session cache in milliseconds.
+     */
+    public long getLastRehashDuration() {
+        return this.rehashStatistics.getLastDuration();
+    }
+
+
+    /**
+     * Number of sessions received by this node in all state transfers.
+     */
+    public long getRehashSessionsReceived() {
+        return this.rehashStatistics.getSessionsReceived();
+    }
+
+
+    /**
+     * Serialized size of attributes of sessions received by this node in all state transfers,
+     * counted if attributes are stored in the same cache as metadata.
+     */
+    public long getRehashBytesReceived() {
+        return this.rehashStatistics.getBytesReceived();
+    }
+
+
+    /**
+     * Return true if node is drained when manager stops.
+     */
+    public boolean getDrainOnStop() {
+        return this.drainOnStop;
+    }
+
+
+    /**
+     * Drain node before it leaves cluster, see {@link #drain()}.
+     */
+    public void setDrainOnStop(boolean drainOnStop) {
+        this.drainOnStop = drainOnStop;
+    }
+
+
+    /**
+     * Return max time of drain in milliseconds.
+     */
+    public long getDrainTimeout() {
+        return this.drainTimeout;
+    }
+
+
+    /**
+     * Set max time of drain in milliseconds.
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+
+    /**
+     * Return number of session entries handed off in one batch.
+     */
+    public int getDrainBatchSize() {
+        return this.drainBatchSize;
+    }
+
+
+    /**
+     * Set number of session entries handed off to other node in one batch.
+     */
+    public void setDrainBatchSize(int drainBatchSize) {
+        this.drainBatchSize = drainBatchSize;
+    }
+
+
+    /**
+     * Return pause between hand off batches in milliseconds.
+     */
+    public long getDrainBatchPause() {
+        return this.drainBatchPause;
+    }
+
+
+    /**
+     * Set pause between hand off batches in milliseconds, throttles load of surviving nodes.
+     */
+    public void setDrainBatchPause(long drainBatchPause) {
+        this.drainBatchPause = drainBatchPause;
+    }
+
+
+    /**
+     * True if node is draining and rejects new sessions.
+     */
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+
+    /**
+     * Number of requests accessing sessions of this node now.
+     */
+    public int getActiveSessionAccesses() {
+        return this.activeAccesses.get();
+    }
+
+
+    /**
+     * Return max number of queued session removals.
+     */
+    public int getSessionEventQueueCapacity() {
+        return this.sessionEventQueueCapacity;
+    }
+
+
+    /**
+     * Set max number of session removals (from other nodes) waiting for removal of local session.
+     */
+    public void setSessionEventQueueCapacity(int sessionEventQueueCapacity) {
+        this.sessionEventQueueCapacity = sessionEventQueueCapacity;
+    }
+
+
+    /**
+     * Return max wait for space in full session event queue in milliseconds.
+     */
+    public long getSessionEventOfferTimeout() {
+        return this.sessionEventOfferTimeout;
+    }
+
+
+    /**
+     * Set max wait of cache notification thread for space in full session event queue in milliseconds,
+     * event is dropped after timeout.
+     */
+    public void setSessionEventOfferTimeout(long sessionEventOfferTimeout) {
+        this.sessionEventOfferTimeout = sessionEventOfferTimeout;
+    }
+
+
+    /**
+     * True if servlet session listeners are notified once in cluster, on owner of session.
+     */
+    public boolean getClusterListeners() {
+        return this.clusterListeners;
+    }
+
+
+    /**
+     * Set true to notify HttpSessionListener and HttpSessionAttributeListener once in cluster, on primary owner
+     * of session, asynchronously. Must be set on all nodes.
+     */
+    public void setClusterListeners(boolean clusterListeners) {
+        this.clusterListeners = clusterListeners;
+    }
+
+
+    /**
+     * Dispatcher of cluster wide session listener events, null if disabled.
+     */
+    ClusterSessionEvents getClusterSessionEvents() {
+        return this.clusterSessionEvents;
+    }
+
+
+    /**
+     * Number of session listener events published by this node.
+     */
+    public long getListenerEventsPublished() {
+        return clusterSessionEvents == null ? 0 : clusterSessionEvents.getPublished();
+    }
+
+
+    /**
+     * Number of session listener events delivered to listeners of this node.
+     */
+    public long getListenerEventsDelivered() {
+        return clusterSessionEvents == null ? 0 : clusterSessionEvents.getDelivered();
+    }
+
+
+    /**
+     * Number of session listener events dropped because dispatch queue was full or dispatcher was stopped.
+     */
+    public long getListenerEventsDropped() {
+        return clusterSessionEvents == null ? 0 : clusterSessionEvents.getDropped();
+    }
+
+
+    /**
+     * Number of session listener events lost because delivery to owner of session failed.
+     */
+    public long getListenerEventsFailed() {
+        return clusterSessionEvents == null ? 0 : clusterSessionEvents.getFailed();
+    }
+
+
+    /**
+     * Number of session listener events waiting for dispatch.
+     */
+    public int getListenerEventQueueSize() {
+        return clusterSessionEvents == null ? 0 : clusterSessionEvents.getQueueSize();
+    }
+
+
+    /**
+     * True if sessions are prefetched after failover.
+     */
+    public boolean getFailoverPrefetch() {
+        return this.failoverPrefetch;
+    }
+
+
+    /**
+     * Set true to prefetch session (and other sessions of the same failed jvmRoute) when request with session id
+     * of other jvmRoute is rewritten by {@link StickySessionFailOverRewriteValve}.
+     */
+    public void setFailoverPrefetch(boolean failoverPrefetch) {
+        this.failoverPrefetch = failoverPrefetch;
+    }
+
+
+    /**
+     * Return number of threads prefetching sessions.
+     */
+    public int getPrefetchThreads() {
+        return this.prefetchThreads;
+    }
+
+
+    /**
+     * Set number of threads prefetching sessions after failover.
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+
+    /**
+     * Return max number of sessions of failed jvmRoute prefetched by this node.
+     */
+    public int getPrefetchRouteLimit() {
+        return this.prefetchRouteLimit;
+    }
+
+
+    /**
+     * Set max number of sessions of failed jvmRoute prefetched by this node, 0 - prefetch only requested sessions.
+     */
+    public void setPrefetchRouteLimit(int prefetchRouteLimit) {
+        this.prefetchRouteLimit = prefetchRouteLimit;
+    }
+
+
+    /**
+     * Number of sessions prefetched after failover.
+     */
+    public long getPrefetchedSessions() {
+        return this.prefetchedSessions.get();
+    }
+
+
+    /**
+     * Number of prefetch requests dropped because prefetch queue was full.
+     */
+    public long getPrefetchDropped() {
+        return this.prefetchDropped.get();
+    }
+
+
+    /**
+     * True if sessions of node leaving cluster are taken over in background batches.
+     */
+    public boolean getFailoverBatch() {
+        return this.failoverBatch;
+    }
+
+
+    /**
+     * Set true to take over sessions of node which left cluster. Every surviving node creates local sessions
+     * (with local jvmRoute) of failed node sessions it owns, in batches, before users of failed node arrive.
+     */
+    public void setFailoverBatch(boolean failoverBatch) {
+        this.failoverBatch = failoverBatch;
+    }
+
+
+    /**
+     * Return number of sessions taken over in one batch.
+     */
+    public int getFailoverBatchSize() {
+        return this.failoverBatchSize;
+    }
+
+
+    /**
+     * Set number of sessions taken over in one batch.
+     */
+    public void setFailoverBatchSize(int failoverBatchSize) {
+        this.failoverBatchSize = failoverBatchSize;
+    }
+
+
+    /**
+     * Return pause between take over batches in milliseconds.
+     */
+    public long getFailoverBatchPause() {
+        return this.failoverBatchPause;
+    }
+
+
+    /**
+     * Set pause between take over batches in milliseconds.
+     */
+    public void setFailoverBatchPause(long failoverBatchPause) {
+        this.failoverBatchPause = failoverBatchPause;
+    }
+
+
+    /**
+     * Number of sessions of failed nodes taken over by this node.
+     */
+    public long getFailoverSessions() {
+        return this.failoverSessions.get();
+    }
+
+
+    /**
+     * Number of session accesses merged with overlapping request of the same session (SessionCoalescingValve).
+     */
+    public long getCoalescedAccesses() {
+        return this.coalescedAccesses.get();
+    }
+
+    void countCoalescedAccess() {
+        coalescedAccesses.incrementAndGet();
+    }
+
+
+    /**
+     * True if serialized attribute values contain ids of class dictionary instead of class descriptors.
+     */
+    public boolean getClassDictionary() {
+        return this.classDictionary;
+    }
+
+
+    /**
+     * Set true to replace class descriptors of serialized attribute values by ids of cluster class dictionary,
+     * stored in replicated cache tc_session_dict_&lt;app&gt;. All nodes must deploy the same application classes.
+     */
+    public void setClassDictionary(boolean classDictionary) {
+        this.classDictionary = classDictionary;
+    }
+
+
+    /**
+     * Number of classes in class dictionary used by this node.
+     */
+    public int getClassDictionarySize() {
+        return classNames == null ? 0 : classNames.size();
+    }
+
+
+    /**
+     * True if attribute names are stored as ids of attribute name dictionary.
+     */
+    public boolean getAttributeNameDictionary() {
+        return this.attributeNameDictionary;
+    }
+
+
+    /**
+     * Set true to store attribute names in session attributes cache as int ids of cluster attribute name dictionary,
+     * stored in replicated cache tc_session_dict_&lt;app&gt;. Must be set on all nodes.
+     */
+    public void setAttributeNameDictionary(boolean attributeNameDictionary) {
+        this.attributeNameDictionary = attributeNameDictionary;
+    }
+
+
+    /**
+     * Number of attribute names in attribute name dictionary used by this node.
+     */
+    public int getAttributeNameDictionarySize() {
+        return attributeNames == null ? 0 : attributeNames.size();
+    }
+
+
+    /**
+     * Number of session removals received from cache.
+     */
+    public long getSessionEventsReceived() {
+        return sessionListener == null ? 0 : sessionListener.getReceived();
+    }
+
+
+    /**
+     * Number of session removals merged with queued removal of the same session.
+     */
+    public long getSessionEventsCoalesced() {
+        return sessionListener == null ? 0 : sessionListener.getCoalesced();
+    }
+
+
+    /**
+     * Number of session removals which waited for space in full queue.
+     */
+    public long getSessionEventsBackpressured() {
+        return sessionListener == null ? 0 : sessionListener.getBackpressured();
+    }
+
+
+    /**
+     * Number of session removals dropped because queue stayed full.
+     */
+    public long getSessionEventsDropped() {
+        return sessionListener == null ? 0 : sessionListener.getDropped();
+    }
+
+
+    /**
+     * Number of session removals waiting in queue.
+     */
+    public int getSessionEventQueueSize() {
+        return sessionListener == null ? 0 : sessionListener.getQueueSize();
+    }
+
+
+    /**
+     * Return directory of local file store of passivated sessions.
+     */
+    public String getPassivationDirectory() {
+        return this.passivationDirectory;
+    }
+
+
+    /**
+     * Set directory of local file store. Entries evicted from memory (see evictionMaxEntries) are passivated
+     * to the store and activated on access. Relative path is resolved against CATALINA_BASE.
+     */
+    public void setPassivationDirectory(String passivationDirectory) {
+        this.passivationDirectory = passivationDirectory;
+    }
+
+
+    /**
+     * Return store of passivated sessions.
+     */
+    public String getPassivationStore() {
+        return this.passivationStore;
+    }
+
+
+    /**
+     * Set store of passivated sessions: file (default) - one file per entry bucket,
+     * mapped - append-only memory mapped segments, see {@link MappedSessionCacheStore}.
+     */
+    public void setPassivationStore(String passivationStore) {
+        this.passivationStore = passivationStore;
+    }
+
+
+    /**
+     * Return snapshot file of sessions.
+     */
+    public String getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+
+    /**
+     * Set snapshot file. Sessions owned by this node are written to the file on stop and loaded
+     * to the cluster on start, sessions survive restart of all nodes. Relative path is resolved against CATALINA_BASE.
+     */
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+
+    /**
+     * Return number of threads writing and loading snapshot.
+     */
+    public int getSnapshotThreads() {
+        return this.snapshotThreads;
+    }
+
+
+    /**
+     * Set number of threads serializing and loading snapshot blocks.
+     */
+    public void setSnapshotThreads(int snapshotThreads) {
+        this.snapshotThreads = snapshotThreads;
+    }
+
+
+    /**
+     * Return true if metadata and attributes are stored in separate caches.
+     */
+    public boolean getSplitCaches() {
+        return this.splitCaches;
+    }
 
-    // ---------------------------------------------------- Security Classes
-    private class PrivilegedDoLoad
-            implements PrivilegedExceptionAction<Void> {
 
-        PrivilegedDoLoad() {
-            // NOOP
-        }
+    /**
+     * Store metadata and attributes in separate caches, each configured by own named cache
+     * tc_session_meta_&lt;app&gt; and tc_session_attr_&lt;app&gt;.
+     * Default is one cache tc_session_&lt;app&gt;.
+     */
+    public void setSplitCaches(boolean splitCaches) {
+        this.splitCaches = splitCaches;
+    }
 
-        @Override
-        public Void run() throws Exception{
-            return null;
-        }
+
+    /**
+     * Return cache mode of metadata cache.
+     */
+    public String getMetadataCacheMode() {
+        return this.metadataCacheMode;
     }
 
-    private class PrivilegedDoUnload
-            implements PrivilegedExceptionAction<Void> {
 
-        PrivilegedDoUnload() {
-            // NOOP
-        }
+    /**
+     * Set cache mode of metadata cache if caches are split, overrides cacheMode.
+     */
+    public void setMetadataCacheMode(String metadataCacheMode) {
+        this.metadataCacheMode = metadataCacheMode;
+    }
 
-        @Override
-        public Void run() throws Exception{
-            return null;
-        }
 
+    /**
+     * Return number of copies of session metadata.
+     */
+    public int getMetadataNumOwners() {
+        return this.metadataNumOwners;
     }
 
 
-    // ----------------------------------------------------- Instance Variables
+    /**
+     * Set number of copies of session metadata if caches are split, overrides numOwners.
+     */
+    public void setMetadataNumOwners(int metadataNumOwners) {
+        this.metadataNumOwners = metadataNumOwners;
+    }
 
 
     /**
-     * The descriptive information about this implementation.
+     * Return L1 lifespan of metadata cache in milliseconds.
      */
-    protected static final String info = "InfinispanSessionManager/1.0";
+    public long getMetadataL1Lifespan() {
+        return this.metadataL1Lifespan;
+    }
 
 
     /**
-     * The descriptive name of this Manager implementation (for logging).
+     * Set L1 lifespan of metadata cache in milliseconds if caches are split, overrides l1Lifespan.
      */
-    protected static final String name = "InfinispanSessionManager";
+    public void setMetadataL1Lifespan(long metadataL1Lifespan) {
+        this.metadataL1Lifespan = metadataL1Lifespan;
+    }
 
-    // ------------------------------------------------------------- Properties
+
+    /**
+     * Return true if metadata cache replication is synchronous, null if not set.
+     */
+    public Boolean getMetadataSyncReplication() {
+        return this.metadataSyncReplication;
+    }
 
 
     /**
-     * Return descriptive information about this Manager implementation and
-     * the corresponding version number, in the format
-     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     * Set synchronous or asynchronous replication of metadata cache if caches are split, overrides syncReplication.
      */
-    @Override
-    public String getInfo() {
+    public void setMetadataSyncReplication(boolean metadataSyncReplication) {
+        this.metadataSyncReplication = metadataSyncReplication;
+    }
 
-        return (info);
 
+    /**
+     * Return max number of metadata entries in memory of one node.
+     */
+    public int getMetadataEvictionMaxEntries() {
+        return this.metadataEvictionMaxEntries;
     }
 
 
     /**
-     * Return the descriptive short name of this Manager implementation.
+     * Set max number of metadata entries in memory of one node if caches are split, overrides evictionMaxEntries.
      */
-    @Override
-    public String getName() {
+    public void setMetadataEvictionMaxEntries(int metadataEvictionMaxEntries) {
+        this.metadataEvictionMaxEntries = metadataEvictionMaxEntries;
+    }
+
+
+    /**
+     * Return cache mode of attributes cache.
+     */
+    public String getAttributesCacheMode() {
+        return this.attributesCacheMode;
+    }
+
+
+    /**
+     * Set cache mode of attributes cache if caches are split, overrides cacheMode.
+     */
+    public void setAttributesCacheMode(String attributesCacheMode) {
+        this.attributesCacheMode = attributesCacheMode;
+    }
+
+
+    /**
+     * Return number of copies of session attributes.
+     */
+    public int getAttributesNumOwners() {
+        return this.attributesNumOwners;
+    }
+
+
+    /**
+     * Set number of copies of session attributes if caches are split, overrides numOwners.
+     */
+    public void setAttributesNumOwners(int attributesNumOwners) {
+        this.attributesNumOwners = attributesNumOwners;
+    }
+
+
+    /**
+     * Return L1 lifespan of attributes cache in milliseconds.
+     */
+    public long getAttributesL1Lifespan() {
+        return this.attributesL1Lifespan;
+    }
+
+
+    /**
+     * Set L1 lifespan of attributes cache in milliseconds if caches are split, overrides l1Lifespan.
+     */
+    public void setAttributesL1Lifespan(long attributesL1Lifespan) {
+        this.attributesL1Lifespan = attributesL1Lifespan;
+    }
+
+
+    /**
+     * Return true if attributes cache replication is synchronous, null if not set.
+     */
+    public Boolean getAttributesSyncReplication() {
+        return this.attributesSyncReplication;
+    }
+
+
+    /**
+     * Set synchronous or asynchronous replication of attributes cache if caches are split, overrides syncReplication.
+     */
+    public void setAttributesSyncReplication(boolean attributesSyncReplication) {
+        this.attributesSyncReplication = attributesSyncReplication;
+    }
+
+
+    /**
+     * Return max number of attributes entries in memory of one node.
+     */
+    public int getAttributesEvictionMaxEntries() {
+        return this.attributesEvictionMaxEntries;
+    }
+
+
+    /**
+     * Set max number of attributes entries in memory of one node if caches are split, overrides evictionMaxEntries.
+     */
+    public void setAttributesEvictionMaxEntries(int attributesEvictionMaxEntries) {
+        this.attributesEvictionMaxEntries = attributesEvictionMaxEntries;
+    }
+
+
+    /**
+     * Return name patterns of attributes stored only on local node.
+     */
+    public String getLocalAttributes() {
+        return this.localAttributes;
+    }
+
+
+    /**
+     * Set comma separated name patterns of attributes stored only on local node, never replicated.
+     * Pattern is attribute name, prefix followed by '*' or '*' followed by suffix.
+     */
+    public void setLocalAttributes(String localAttributes) {
+        this.localAttributes = localAttributes;
+        this.attributeReplicationPolicy = new AttributeReplicationPolicy(this.localAttributes, this.asyncAttributes);
+    }
+
+
+    /**
+     * Return name patterns of attributes replicated asynchronously.
+     */
+    public String getAsyncAttributes() {
+        return this.asyncAttributes;
+    }
+
+
+    /**
+     * Set comma separated name patterns of attributes written to distributed cache by background thread.
+     */
+    public void setAsyncAttributes(String asyncAttributes) {
+        this.asyncAttributes = asyncAttributes;
+        this.attributeReplicationPolicy = new AttributeReplicationPolicy(this.localAttributes, this.asyncAttributes);
+    }
+
+
+    /**
+     * Number of attribute writes waiting for asynchronous replication.
+     */
+    public int getPendingAttributeWrites() {
+        ThreadPoolExecutor writer = attributeWriter;
+        return writer == null ? 0 : writer.getQueue().size() + writer.getActiveCount();
+    }
+
+
+    /**
+     * Return max number of attribute writes waiting for asynchronous replication.
+     */
+    public int getAttributeWriteQueueCapacity() {
+        return this.attributeWriteQueueCapacity;
+    }
+
+
+    /**
+     * Set max number of attribute writes waiting for asynchronous replication.
+     * Writes over capacity are replicated synchronously by request thread.
+     */
+    public void setAttributeWriteQueueCapacity(int attributeWriteQueueCapacity) {
+        this.attributeWriteQueueCapacity = attributeWriteQueueCapacity;
+    }
+
+
+    /**
+     * Number of asynchronous attribute writes replicated synchronously because write queue was full.
+     */
+    public long getAttributeWritesOverflowed() {
+        return attributeWritesOverflowed.get();
+    }
 
-        return (name);
 
+    /**
+     * Get replication of session attribute, marker interface of value wins over name pattern.
+     *
+     * @param name  attribute name
+     * @param value attribute value
+     * @return replication of attribute
+     */
+    public AttributeReplication getAttributeReplication(String name, Object value) {
+        return attributeReplicationPolicy.getReplication(name, value);
     }
 
     // --------------------------------------------------------- Public Methods
 
+    /**
+     * Get next page of sessions stored in whole cluster. Page is ordered by session id.
+     * Every node continues scan of sessions it owns where previous page stopped and returns its part of page,
+     * so listing never loads all sessions into one node and every session is scanned once per listing.
+     * Sessions returned by nodes over pageSize are kept by this node and returned in next pages.
+     * Without distribution local sessions are listed. Cursor is id of listing kept by this node
+     * in both modes, listing not continued in 5 minutes is dropped.
+     *
+     * @param cursor   next cursor of previous page returned by this node, null to get first page
+     * @param pageSize max number of sessions in page
+     * @param filter   session filter evaluated by session owner
+     * @return page of sessions, empty last page if listing was dropped
+     */
+    public SessionSummaryPage getClusterSessionPage(String cursor, int pageSize, SessionFilter filter) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        if (filter == null) {
+            filter = SessionFilter.ALL;
+        }
+
+        String listingId = cursor;
+        ClusterListing listing;
+        if (cursor == null) {
+            listingId = UUID.randomUUID().toString();
+            listing = new ClusterListing(this.getDistributable());
+            if (!this.getDistributable()) {
+                listing.remainder.addAll(this.getLocalSessionSummaries(filter));
+            }
+            clusterListings.put(listingId, listing);
+        } else {
+            //finished or dropped after timeout
+            listing = clusterListings.get(cursor);
+            if (listing == null) {
+                return new SessionSummaryPage(new ArrayList<SessionSummary>(), null);
+            }
+        }
+
+        synchronized (listing) {
+            listing.lastUsed = System.currentTimeMillis();
+            if (listing.remainder.size() < pageSize && listing.more) {
+                List<Address> members = cache.getCacheManager().getMembers();
+                int nodePageSize = Math.max(1, pageSize / (members != null ? Math.max(1, members.size()) : 1));
+                SessionListingTask task = new SessionListingTask(listingId, !listing.started, nodePageSize, filter);
+                listing.started = true;
+                listing.more = false;
+                for (List<SessionSummary> nodePage : this.executeOnAllNodes(task)) {
+                    listing.remainder.addAll(nodePage);
+                    //node with less sessions finished listing
+                    listing.more |= nodePage.size() >= nodePageSize;
+                }
+            }
+
+            List<SessionSummary> sessions = new ArrayList<SessionSummary>(Math.min(pageSize, listing.remainder.size()));
+            while (sessions.size() < pageSize && !listing.remainder.isEmpty()) {
+                sessions.add(listing.remainder.pollFirst());
+            }
+            if (listing.remainder.isEmpty() && !listing.more) {
+                clusterListings.remove(listingId);
+                listingId = null;
+            }
+            return new SessionSummaryPage(sessions, listingId);
+        }
+    }
+
+    /**
+     * Summaries of local sessions accepted by filter
+     */
+    private List<SessionSummary> getLocalSessionSummaries(SessionFilter filter) {
+        List<SessionSummary> summaries = new ArrayList<SessionSummary>();
+        long now = System.currentTimeMillis();
+        for (Session session : this.findSessions()) {
+            long idleTime = now - session.getThisAccessedTimeInternal();
+            if (filter.getMinIdleTime() > idleTime) {
+                continue;
+            }
+            if (filter.getAttributeName() != null
+                    && session.getSession().getAttribute(filter.getAttributeName()) == null) {
+                continue;
+            }
+            summaries.add(new SessionSummary(session.getIdInternal(), session.getCreationTimeInternal(),
+                    session.getLastAccessedTimeInternal(), idleTime, session.getMaxInactiveInterval()));
+        }
+        return summaries;
+    }
+
+    /**
+     * Iterate sessions stored in whole cluster. Pages are loaded lazily.
+     *
+     * @param pageSize number of sessions loaded in one page
+     * @param filter   session filter evaluated by session owner
+     * @return iterator of session summaries
+     */
+    public Iterator<SessionSummary> clusterSessionIterator(int pageSize, SessionFilter filter) {
+        return new ClusterSessionIterator(pageSize, filter);
+    }
+
+    /**
+     * List ids of sessions stored in cluster, for JMX.
+     *
+     * @param cursor         next cursor of previous page, empty or null to get first page
+     * @param pageSize       max number of sessions
+     * @param minIdleSeconds list only sessions idle at least minIdleSeconds
+     * @return space separated session ids, last item is "next=" + cursor of next page if there are more sessions
+     */
+    public String listClusterSessionIds(String cursor, int pageSize, long minIdleSeconds) {
+        if (cursor != null && cursor.length() == 0) {
+            cursor = null;
+        }
+        SessionSummaryPage page = this.getClusterSessionPage(cursor, pageSize,
+                new SessionFilter(minIdleSeconds * 1000L, null));
+
+        StringBuilder sb = new StringBuilder();
+        for (SessionSummary summary : page.getSessions()) {
+            sb.append(summary.getSessionId()).append(' ');
+        }
+        if (page.getNextCursor() != null) {
+            sb.append("next=").append(page.getNextCursor());
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Find largest sessions and attributes in whole cluster. Every node reports largest sessions it owns.
+     * Requires size accounting, sessions created without size accounting are not reported.
+     *
+     * @param count max number of sessions and attributes
+     * @return largest sessions and attributes
+     */
+    public SessionSizeReport getLargestSessions(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive: " + count);
+        }
+
+        SessionSizeReport report = new SessionSizeReport(count);
+        if (this.getDistributable()) {
+            for (SessionSizeReport nodeReport : this.executeOnAllNodes(new SessionSizeTask(count))) {
+                report.merge(nodeReport);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * List largest sessions in cluster, for JMX.
+     *
+     * @param count max number of sessions
+     * @return space separated sessionId=size in bytes
+     */
+    public String listLargestSessions(int count) {
+        return this.toString(this.getLargestSessions(count).getSessions());
+    }
+
+    /**
+     * List largest session attributes in cluster, for JMX.
+     *
+     * @param count max number of attributes
+     * @return space separated sessionId/attribute=size in bytes
+     */
+    public String listLargestAttributes(int count) {
+        return this.toString(this.getLargestSessions(count).getAttributes());
+    }
+
+    private String toString(List<SessionSize> sizes) {
+        StringBuilder sb = new StringBuilder();
+        for (SessionSize size : sizes) {
+            sb.append(size).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
     /**
      * Load any currently active sessions that were previously unloaded
      * to the appropriate persistence mechanism, if any.  If persistence is not
@@ -153,8 +2128,70 @@ public class    InfinispanSessionManager extends ManagerBase {
                             + exception);
             }
         } else {
-            log.debug("Init " + this.getName());
+            doLoad();
+        }
+    }
+
+    /**
+     * Load snapshot of sessions to cache, snapshot is deleted when loaded. Snapshot is loaded only on cold start
+     * of cluster, node joining running cluster deletes it: missing session can't be told apart from session
+     * invalidated or expired while this node was down.
+     *
+     * @throws ClassNotFoundException if a serialized class cannot be found
+     * @throws IOException if an input/output error occurs
+     */
+    protected void doLoad() throws ClassNotFoundException, IOException {
+        log.debug("Init " + this.getName());
+        File file = this.getSnapshotFile(snapshotFile);
+        if (file == null || cache == null || !file.isFile()) {
+            return;
         }
+        if (!this.isColdStart()) {
+            log.info("Cluster already holds sessions, session snapshot " + file + " is not loaded.");
+            if (!file.delete()) {
+                log.warn("Can't delete session snapshot " + file);
+            }
+            return;
+        }
+
+        ClassLoader classLoader = null;
+        if (container != null && container.getLoader() != null) {
+            classLoader = container.getLoader().getClassLoader();
+        }
+        long start = System.currentTimeMillis();
+        int count = new SessionSnapshot(file, snapshotThreads).read(cache, attributesCache, dictionaryCache,
+                classLoader);
+        if (count < 0) {
+            return;
+        }
+        //loaded sessions are owned by all members, counted by anchor
+        clusterSessionCounter.requestAnchor();
+        if (!file.delete()) {
+            log.warn("Can't delete loaded session snapshot " + file);
+        }
+        log.info("Sessions loaded from snapshot " + file + ": " + count + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * True if this node is the only cluster member or no member holds sessions.
+     * Start is not cold if any member didn't answer.
+     */
+    private boolean isColdStart() {
+        List<Address> members = cache.getCacheManager().getMembers();
+        if (executorService == null || members == null || members.size() < 2) {
+            return true;
+        }
+        List<SessionStatistics> nodes = this.executeOnAllNodes(new SessionStatisticsTask());
+        if (nodes.size() < members.size()) {
+            return false;
+        }
+        for (SessionStatistics node : nodes) {
+            if (node.getActiveSessions() > 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -179,8 +2216,51 @@ public class    InfinispanSessionManager extends ManagerBase {
                             + exception);
             }
         } else {
-            log.debug("Stop " + this.getName());
+            doUnload();
+        }
+    }
+
+    /**
+     * Write snapshot of sessions owned by this node.
+     *
+     * @throws IOException if an input/output error occurs
+     */
+    protected void doUnload() throws IOException {
+        log.debug("Stop " + this.getName());
+        File file = this.getSnapshotFile(snapshotFile);
+        if (file == null || cache == null || !cache.getStatus().allowInvocations()) {
+            return;
+        }
+
+        List<Cache<String, Object>> caches = new ArrayList<Cache<String, Object>>();
+        caches.add(cache);
+        if (attributesCache != cache) {
+            caches.add(attributesCache);
+        }
+        if (dictionaryCache != null) {
+            //serialized attribute values contain ids of dictionary
+            caches.add(dictionaryCache);
+        }
+        long start = System.currentTimeMillis();
+        int count = new SessionSnapshot(file, snapshotThreads).write(caches);
+        log.info("Session entries written to snapshot " + file + ": " + count + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Resolve snapshot file against CATALINA_BASE
+     * @param path configured path, could be null
+     * @return file or null if snapshot is disabled
+     */
+    private File getSnapshotFile(String path) {
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(System.getProperty("catalina.base", "."), path);
         }
+        return file;
     }
 
     /**
@@ -198,6 +2278,14 @@ public class    InfinispanSessionManager extends ManagerBase {
         setState(LifecycleState.STARTING);
 
         log.debug("Starting " + info);
+        draining = false;
+
+        try {
+            load();
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            log.error("Can't load session snapshot", t);
+        }
     }
 
 
@@ -214,6 +2302,78 @@ public class    InfinispanSessionManager extends ManagerBase {
 
         setState(LifecycleState.STOPPING);
 
+        if (drainOnStop) {
+            this.drain();
+        }
+        if (clusterSessionEvents != null) {
+            clusterSessionEvents.stop();
+            clusterSessionEvents = null;
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        ThreadPoolExecutor writer;
+        synchronized (attributeWriterLock) {
+            writer = attributeWriter;
+            attributeWriterName = null;
+            attributeWriter = null;
+        }
+        if (writer != null) {
+            //flush pending attributes before leaving cluster
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(clusterTaskTimeout, TimeUnit.MILLISECONDS)) {
+                    log.warn("Pending session attribute writes not finished: " + writer.getQueue().size());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            unload();
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            log.error("Can't write session snapshot", t);
+        }
+        if (clusterViewListener != null) {
+            cache.getCacheManager().removeListener(clusterViewListener);
+            clusterViewListener = null;
+        }
+        if (jvmRouteRegistry != null && cache != null && cache.getCacheManager().getAddress() != null) {
+            jvmRouteRegistry.unregister(cache.getCacheManager().getAddress());
+        }
+        if (cache != null) {
+            SessionManagerRegistry.unregister(cache);
+            if (sessionListener != null) {
+                cache.removeListener(sessionListener);
+            }
+            if (rehashListener != null) {
+                cache.removeListener(rehashListener);
+                rehashListener = null;
+            }
+        }
+        if (sessionListener != null) {
+            sessionListener.stop();
+        }
+        if (sharedCacheManager && manager != null) {
+            //leave cache of this application, other applications still use cache manager
+            if (cache != null) {
+                cache.stop();
+            }
+            if (attributesCache != null && attributesCache != cache) {
+                attributesCache.stop();
+            }
+            if (dictionaryCache != null) {
+                dictionaryCache.stop();
+            }
+            SharedCacheManagerRegistry.release(manager);
+            manager = null;
+        }
+
         // Expire all active sessions
         //should expire if only one node in cluster?  - sessions are never persisted - than maybe it is ok not to invalidate sessions
 //        Session sessions[] = findSessions();
@@ -237,6 +2397,151 @@ public class    InfinispanSessionManager extends ManagerBase {
         super.stopInternal();
     }
 
+    /**
+     * Expire local sessions. Sessions trust earliest expiration time of their last metadata read,
+     * idle sessions don't read (and activate) metadata on every run.
+     */
+    @Override
+    public void processExpires() {
+        long timeNow = System.currentTimeMillis();
+        int expired = 0;
+        for (Session session : this.findSessions()) {
+            boolean valid = session instanceof InfinispanSession
+                    ? ((InfinispanSession) session).isValidInBackground() : session.isValid();
+            if (!valid) {
+                expired++;
+            }
+        }
+        long timeEnd = System.currentTimeMillis();
+        if (log.isDebugEnabled()) {
+            log.debug("End expire sessions " + this.getName() + " processingTime " + (timeEnd - timeNow)
+                    + " expired sessions: " + expired);
+        }
+        processingTime += timeEnd - timeNow;
+    }
+
+    /**
+     * Release session locks held longer than lease time and publish session counter.
+     */
+    @Override
+    public void backgroundProcess() {
+        super.backgroundProcess();
+
+        if (sessionLock != null) {
+            sessionLock.releaseExpired(sessionLockLeaseTime);
+        }
+
+        if (clusterSessionCounter != null) {
+            //ownership of sessions changed by finished rehash
+            long rehashCount = rehashStatistics.getRehashCount();
+            if (rehashCount != counterRehashCount && !rehashStatistics.isInProgress()) {
+                counterRehashCount = rehashCount;
+                clusterSessionCounter.requestAnchor();
+            }
+            clusterSessionCounter.publish(clusterCounterInterval, clusterCounterAnchorInterval);
+        }
+
+        if (jvmRouteRegistry != null) {
+            this.registerJvmRoute();
+            jvmRouteRegistry.expireDeparted();
+        }
+
+        //prefetched routes may be prefetched again
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> route : prefetchedRoutes.entrySet()) {
+            if (now - route.getValue() >= PREFETCH_ROUTE_INTERVAL) {
+                prefetchedRoutes.remove(route.getKey(), route.getValue());
+            }
+        }
+        //listings not continued by client
+        for (Map.Entry<String, SessionListingTask.Listing> listing : sessionListings.entrySet()) {
+            if (listing.getValue().isExpired(now)) {
+                sessionListings.remove(listing.getKey(), listing.getValue());
+            }
+        }
+        for (Map.Entry<String, ClusterListing> listing : clusterListings.entrySet()) {
+            if (listing.getValue().isExpired(now)) {
+                clusterListings.remove(listing.getKey(), listing.getValue());
+            }
+        }
+    }
+
+    /**
+     * Publish jvmRoute of this node and read jvmRoutes of other members.
+     */
+    void registerJvmRoute() {
+        Address address = cache.getCacheManager().getAddress();
+        if (address == null) {
+            return;
+        }
+        String jvmRoute = this.getJvmRoute();
+        if (jvmRoute != null && !jvmRoute.equals(jvmRouteRegistry.getRoute(address))) {
+            jvmRouteRegistry.register(address, jvmRoute);
+        }
+        jvmRouteRegistry.refresh(cache.getCacheManager().getMembers());
+    }
+
+    /**
+     * jvmRoute of primary owner of session in current consistent hash. Changes with cluster topology.
+     *
+     * @param sessionId session id with or without jvmRoute
+     * @return jvmRoute or null if cache is not distributed or jvmRoute of owner is not known
+     */
+    public String getOwnerJvmRoute(String sessionId) {
+        JvmRouteRegistry registry = jvmRouteRegistry;
+        if (registry == null || sessionId == null) {
+            return null;
+        }
+        DistributionManager dm = cache.getAdvancedCache().getDistributionManager();
+        if (dm == null) {
+            return null;
+        }
+        Address owner = dm.getPrimaryLocation(SessionMetaAttributes.createCacheId(this.stripDotSuffix(sessionId)));
+        return owner == null ? null : registry.getRoute(owner);
+    }
+
+    /**
+     * True if jvmRoute belonged to node which left cluster and is not used by any member now.
+     *
+     * @param jvmRoute jvmRoute
+     * @return false for unknown jvmRoute or jvmRoute of member
+     */
+    boolean isDepartedJvmRoute(String jvmRoute) {
+        JvmRouteRegistry registry = jvmRouteRegistry;
+        return registry != null && jvmRoute != null && registry.isDeparted(jvmRoute);
+    }
+
+    /**
+     * Cluster membership changed. Sessions of nodes which left cluster are taken over in background.
+     *
+     * @param oldMembers members before change
+     * @param newMembers current members
+     */
+    void membersChanged(List<Address> oldMembers, List<Address> newMembers) {
+        if (clusterSessionCounter != null) {
+            clusterSessionCounter.requestAnchor();
+        }
+        JvmRouteRegistry registry = jvmRouteRegistry;
+        if (registry == null) {
+            return;
+        }
+        registry.refresh(newMembers);
+        if (oldMembers == null) {
+            return;
+        }
+        String localJvmRoute = this.getJvmRoute();
+        for (Address member : oldMembers) {
+            if (newMembers.contains(member)) {
+                continue;
+            }
+            String jvmRoute = registry.remove(member);
+            if (failoverBatch && jvmRoute != null && !jvmRoute.equals(localJvmRoute)) {
+                log.info("Node " + member + " with jvmRoute " + jvmRoute + " left cluster, taking over its sessions.");
+                this.prefetch(new RouteTakeOver(jvmRoute, rehashStatistics.getRehashCount()));
+            }
+        }
+    }
+
     /**
      * initialize infinispan
      *
@@ -297,8 +2602,14 @@ public class    InfinispanSessionManager extends ManagerBase {
         sessionCounter++;
 
 
+        if (draining) {
+            rejectedSessions++;
+            throw new IllegalStateException("Session manager " + this.getName() + " is draining, new session rejected.");
+        }
+
+        //cluster wide limit in distributed mode
         if ((maxActiveSessions >= 0) &&
-                (getActiveSessions() >= maxActiveSessions)) {
+                (getClusterActiveSessions() >= maxActiveSessions)) {
             rejectedSessions++;
             throw new TooManyActiveSessionsException(
                     sm.getString("managerBase.createSession.ise"),
@@ -312,9 +2623,16 @@ public class    InfinispanSessionManager extends ManagerBase {
 
             //set initial metadata before listeners are propagated (through tellNew)
             this.setSessionInitialMetadata(ispnSession);
+            String jvmRoute = this.getJvmRoute();
+            if (jvmRoute != null) {
+                ispnSession.setJvmRoute(jvmRoute);
+            }
 
             ispnSession.tellNew();
             session = ispnSession;
+
+            String metadataCacheId = SessionMetaAttributes.createCacheId(this.stripDotSuffix(ispnSession.getId()));
+            clusterSessionCounter.increment(metadataCacheId);
         } else {
             session = new StandardSession(this);
 
@@ -397,68 +2715,483 @@ public class    InfinispanSessionManager extends ManagerBase {
     }
 
     /**
-     * Add infinispan session or transform session object to distributed infinispan session
-     * @param session
+     * Add infinispan session or transform session object to distributed infinispan session
+     * @param session
+     */
+    @Override
+    public void add(Session session){
+        Session newSession;
+
+        if (this.getDistributable()){
+            if ( session instanceof InfinispanSession){
+                newSession = session;
+            } else if (session instanceof StandardSessionWrapper){
+                newSession = new InfinispanSession(this, cache, (StandardSessionWrapper)session);
+            } else {
+                newSession = new InfinispanSession(this, cache, session.getId());
+            }
+        } else {
+            newSession = session;
+        }
+
+        super.add( newSession );
+    }
+
+    /**
+     * Find session and create new local session instance if session has meta attributes in cache.
+     * @param sessionId
+     * @return
+     */
+    @Override
+    public Session findSession(String sessionId) throws IOException{
+        if (sessionId == null)
+            return (null);
+
+        Session session = super.findSession(sessionId);
+        log.debug(" local session found? - " + session != null);
+
+        if ( session == null && this.sessionExists(sessionId) ){
+            log.debug(" try create only local session because session doesn't exist locally, but there is metadata entry in distributed cache");
+            session = this.createLocalSession(sessionId);
+            //add to local sessions to avoid re-initialization every request, keep shell created concurrently (prefetch)
+            if (this.sessions instanceof ConcurrentMap) {
+                Session existing = ((ConcurrentMap<String, Session>) this.sessions).putIfAbsent(session.getIdInternal(), session);
+                if (existing != null) {
+                    session = existing;
+                }
+            } else {
+                this.sessions.put(session.getIdInternal(), session);
+            }
+        }
+
+        return session;
+    }
+
+    /**
+     * Remove session from all cluster
+     * @param session
+     * @param update
+     */
+    @Override
+    public void remove(Session session, boolean update) {
+        super.remove(session, update);
+
+        if ( this.getDistributable()){
+            //remove attributes
+            String attributesCacheId = SessionAttributes.createCacheId(this.stripDotSuffix( session.getId() ) );
+            AtomicMapLookup.removeAtomicMap(attributesCache, attributesCacheId);
+
+            //remove metadata
+            String metadataCacheId = SessionMetaAttributes.createCacheId( this.stripDotSuffix( session.getId() ) );
+            //session removed by other node or already expired is not counted again
+            Object metadata = cache.remove(metadataCacheId);
+            if (metadata != null) {
+                Object creationTime = metadata instanceof Map
+                        ? ((Map<?, ?>) metadata).get(SessionMetaAttributes.CREATION_TIME) : null;
+                clusterSessionCounter.decrement(metadataCacheId, creationTime instanceof Long ? (Long) creationTime : 0L);
+            }
+        }
+    }
+
+    /**
+     * Lock session in cluster if session locking is enabled.
+     *
+     * @param sessionId session id, could contain jvmRoute
+     * @return false if lock was not acquired in timeout
+     */
+    protected boolean lockSession(String sessionId) {
+        if (sessionLock != null && sessionId != null) {
+            return sessionLock.lock(this.stripDotSuffix(sessionId));
+        }
+        return true;
+    }
+
+    /**
+     * Lock session accessed by request. Request continues without lock after timeout only if
+     * sessionLockFallback is enabled.
+     *
+     * @param sessionId session id, could contain jvmRoute
+     * @throws IllegalStateException if lock was not acquired in timeout and fallback is disabled
+     */
+    protected void lockSessionAccess(String sessionId) {
+        if (this.lockSession(sessionId)) {
+            return;
+        }
+        if (sessionLockFallback) {
+            log.warn("Request continues without session lock. Session id: " + sessionId);
+            return;
+        }
+        throw new IllegalStateException("Session lock not acquired in " + sessionLockTimeout
+                + "ms, session access rejected. Session id: " + sessionId);
+    }
+
+    /**
+     * Unlock session locked by current thread.
+     *
+     * @param sessionId session id, could contain jvmRoute
+     */
+    protected void unlockSession(String sessionId) {
+        if (sessionLock != null && sessionId != null) {
+            sessionLock.unlock(this.stripDotSuffix(sessionId));
+        }
+    }
+
+    /**
+     * Request starts accessing local session, requests in progress are finished before drain.
+     */
+    protected void beginSessionAccess() {
+        activeAccesses.incrementAndGet();
+    }
+
+    /**
+     * Request accessing local session ends, wakes up drain waiting for the last request.
+     */
+    protected void endSessionAccess() {
+        if (activeAccesses.decrementAndGet() <= 0 && draining) {
+            synchronized (accessMonitor) {
+                accessMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drain node before it leaves cluster. New sessions are rejected, requests accessing sessions of this node
+     * are finished (max drainTimeout) and session entries, which this node owns as primary owner, are copied
+     * in throttled batches to nodes which will own them after this node leaves.
+     * Surviving nodes don't need to recover the entries during rehash.
+     *
+     * @return number of session entries handed off to other nodes
+     */
+    public synchronized int drain() {
+        draining = true;
+        long start = System.currentTimeMillis();
+        long deadline = start + drainTimeout;
+        log.info("Draining session manager " + this.getName() + ", active requests: " + activeAccesses.get());
+
+        try {
+            synchronized (accessMonitor) {
+                for (long wait = deadline - System.currentTimeMillis(); activeAccesses.get() > 0 && wait > 0;
+                     wait = deadline - System.currentTimeMillis()) {
+                    accessMonitor.wait(wait);
+                }
+            }
+            if (activeAccesses.get() > 0) {
+                log.warn("Drain timeout, requests still accessing sessions: " + activeAccesses.get());
+            }
+
+            int handedOff = 0;
+            if (cache != null && executorService != null) {
+                handedOff += this.handOffSessions(cache, false, deadline);
+                if (attributesCache != cache) {
+                    handedOff += this.handOffSessions(attributesCache, true, deadline);
+                }
+            }
+            log.info("Session manager " + this.getName() + " drained in " + (System.currentTimeMillis() - start)
+                    + " ms, session entries handed off: " + handedOff);
+            return handedOff;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.warn("Drain of session manager " + this.getName() + " interrupted.");
+            return 0;
+        }
+    }
+
+    /**
+     * Copy session entries (including passivated entries) owned by this node as primary owner to nodes
+     * which will own them after this node leaves and don't store them now.
+     *
+     * @param sessionCache metadata or attributes cache
+     * @param attributes   true if cache is attributes cache
+     * @param deadline     drain deadline
+     * @return number of handed off entries
+     */
+    private int handOffSessions(Cache<String, Object> sessionCache, boolean attributes, long deadline)
+            throws InterruptedException {
+        DistributionManager dm = sessionCache.getAdvancedCache().getDistributionManager();
+        Address localAddress = sessionCache.getCacheManager().getAddress();
+        if (dm == null || localAddress == null || sessionCache.getCacheManager().getMembers().size() < 2) {
+            //replicated or local cache - nothing is lost when node leaves
+            return 0;
+        }
+
+        int numOwners = sessionCache.getConfiguration().getNumOwners();
+        ConsistentHash future = ConsistentHashHelper.removeAddress(dm.getConsistentHash(), localAddress,
+                sessionCache.getConfiguration());
+        Map<Address, String> routingKeys = this.getRoutingKeys(dm, sessionCache.getCacheManager().getMembers(),
+                localAddress);
+        Map<Address, HashMap<String, HashMap<Object, Object>>> batches =
+                new HashMap<Address, HashMap<String, HashMap<Object, Object>>>();
+        int handedOff = 0;
+        int notRouted = 0;
+
+        //entries in memory and passivated entries owned as primary owner
+        OwnedSessionEntries entries = new OwnedSessionEntries(sessionCache) {
+            @Override
+            boolean isSessionKey(Object key) {
+                return SessionMetaAttributes.isCacheId(key) || SessionAttributes.isCacheId(key);
+            }
+        };
+        while (entries.hasNext()) {
+            InternalCacheEntry entry = entries.next();
+            Object key = entry.getKey();
+            List<Address> owners = dm.locate(key);
+            for (Address target : future.locate(key, numOwners)) {
+                if (owners.contains(target)) {
+                    continue;
+                }
+                if (!routingKeys.containsKey(target)) {
+                    notRouted++;
+                    continue;
+                }
+                HashMap<String, HashMap<Object, Object>> batch = batches.get(target);
+                if (batch == null) {
+                    batch = new HashMap<String, HashMap<Object, Object>>();
+                    batches.put(target, batch);
+                }
+                batch.put((String) key, new HashMap<Object, Object>((Map<?, ?>) entry.getValue()));
+                if (batch.size() >= drainBatchSize) {
+                    handedOff += this.handOff(target, routingKeys.get(target), batches.remove(target),
+                            attributes, deadline);
+                    Thread.sleep(drainBatchPause);
+                }
+            }
+        }
+        for (Map.Entry<Address, HashMap<String, HashMap<Object, Object>>> batch : batches.entrySet()) {
+            handedOff += this.handOff(batch.getKey(), routingKeys.get(batch.getKey()), batch.getValue(),
+                    attributes, deadline);
+        }
+        if (notRouted > 0) {
+            log.warn("No routing key found for target nodes, session entries not handed off: " + notRouted);
+        }
+        return handedOff;
+    }
+
+    /**
+     * Find key primarily owned by every other member. Distributed executor runs task on primary owner of its key.
+     *
+     * @param dm           distribution manager of cache
+     * @param members      cluster members
+     * @param localAddress address of this node
+     * @return routing key by member, members without found key are missing
+     */
+    private Map<Address, String> getRoutingKeys(DistributionManager dm, List<Address> members, Address localAddress) {
+        Map<Address, String> routingKeys = new HashMap<Address, String>();
+        int targets = members.size() - 1;
+        for (int i = 0; i < 1000 * members.size() && routingKeys.size() < targets; i++) {
+            String key = "handOff" + i;
+            Address owner = dm.getPrimaryLocation(key);
+            if (!localAddress.equals(owner) && !routingKeys.containsKey(owner)) {
+                routingKeys.put(owner, key);
+            }
+        }
+        return routingKeys;
+    }
+
+    /**
+     * Send one batch of entries to target node and wait for result
+     */
+    private int handOff(Address target, String routingKey, HashMap<String, HashMap<Object, Object>> batch,
+                        boolean attributes, long deadline) {
+        Future<Integer> result = executorService.submit(new SessionHandOffTask(batch, attributes), routingKey);
+        try {
+            return result.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            result.cancel(true);
+            log.warn("Hand off of session entries to node " + target + " failed. Entries: " + batch.size(), ex);
+            return 0;
+        }
+    }
+
+    /**
+     * Request with session of other jvmRoute is served by this node. Session is prefetched in background,
+     * its jvmRoute is changed to local jvmRoute. Other sessions of previous jvmRoute are prefetched too
+     * if the jvmRoute belonged to node which left cluster, previous jvmRoute comes from client and other
+     * values are ignored.
+     *
+     * @param sessionId        session id with local jvmRoute
+     * @param previousJvmRoute jvmRoute of node which served session before
+     */
+    public void failOver(String sessionId, String previousJvmRoute) {
+        if (prefetchExecutor == null) {
+            return;
+        }
+        this.prefetch(new SessionPrefetch(sessionId, true));
+        if (prefetchRouteLimit > 0 && this.isDepartedJvmRoute(previousJvmRoute)) {
+            long now = System.currentTimeMillis();
+            Long previous = prefetchedRoutes.get(previousJvmRoute);
+            if (previous != null && now - previous < PREFETCH_ROUTE_INTERVAL) {
+                return;
+            }
+            boolean claimed = previous == null ? prefetchedRoutes.putIfAbsent(previousJvmRoute, now) == null
+                    : prefetchedRoutes.replace(previousJvmRoute, previous, now);
+            if (claimed) {
+                this.prefetch(new RoutePrefetch(previousJvmRoute));
+            }
+        }
+    }
+
+    private void prefetch(Runnable task) {
+        ThreadPoolExecutor executor = prefetchExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            prefetchDropped.incrementAndGet();
+            log.debug("Session prefetch queue full, prefetch dropped");
+        }
+    }
+
+    /**
+     * Create local session shell and read session data
+     *
+     * @param sessionId session id with local jvmRoute
+     * @param takeOver  change jvmRoute of session to local jvmRoute
+     * @return true if session exists
+     */
+    private boolean prefetchSession(String sessionId, boolean takeOver) throws IOException {
+        Session session = this.findSession(sessionId);
+        if (!(session instanceof InfinispanSession)) {
+            return false;
+        }
+        InfinispanSession ispnSession = (InfinispanSession) session;
+        ispnSession.prefetch();
+        String jvmRoute = this.getJvmRoute();
+        if (takeOver && jvmRoute != null) {
+            ispnSession.setJvmRoute(jvmRoute);
+        }
+        prefetchedSessions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Prefetch session served by this node after failover
+     */
+    private class SessionPrefetch implements Runnable {
+        private final String sessionId;
+        private final boolean takeOver;
+
+        SessionPrefetch(String sessionId, boolean takeOver) {
+            this.sessionId = sessionId;
+            this.takeOver = takeOver;
+        }
+
+        @Override
+        public void run() {
+            try {
+                prefetchSession(sessionId, takeOver);
+            } catch (Exception ex) {
+                log.debug("Prefetch of session " + sessionId + " failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Prefetch sessions of failed jvmRoute. Local shells use local jvmRoute which is set by
+     * {@link StickySessionFailOverRewriteValve} to session id of next request.
      */
-    @Override
-    public void add(Session session){
-        Session newSession;
+    private class RoutePrefetch implements Runnable {
+        private final String jvmRoute;
 
-        if (this.getDistributable()){
-            if ( session instanceof InfinispanSession){
-                newSession = session;
-            } else if (session instanceof StandardSessionWrapper){
-                newSession = new InfinispanSession(this, cache, (StandardSessionWrapper)session);
-            } else {
-                newSession = new InfinispanSession(this, cache, session.getId());
-            }
-        } else {
-            newSession = session;
+        RoutePrefetch(String jvmRoute) {
+            this.jvmRoute = jvmRoute;
         }
 
-        super.add( newSession );
+        @Override
+        public void run() {
+            String localJvmRoute = getJvmRoute();
+            String suffix = localJvmRoute == null ? "" : "." + localJvmRoute;
+            int count = 0;
+            try {
+                Iterator<SessionSummary> sessions = clusterSessionIterator(500, new SessionFilter(0, null, jvmRoute));
+                while (count < prefetchRouteLimit && sessions.hasNext() && !Thread.currentThread().isInterrupted()) {
+                    if (prefetchSession(sessions.next().getSessionId() + suffix, false)) {
+                        count++;
+                    }
+                }
+            } catch (Exception ex) {
+                log.warn("Prefetch of sessions of jvmRoute " + jvmRoute + " failed", ex);
+            }
+            log.info("Prefetched " + count + " sessions of jvmRoute " + jvmRoute);
+        }
     }
 
     /**
-     * Find session and create new local session instance if session has meta attributes in cache.
-     * @param sessionId
-     * @return
+     * Take over sessions of failed jvmRoute owned by this node after rehash. Local sessions with local jvmRoute
+     * are created in batches, jvmRoute of sessions is changed in one cache batch per batch of sessions.
      */
-    @Override
-    public Session findSession(String sessionId) throws IOException{
-        if (sessionId == null)
-            return (null);
+    private class RouteTakeOver implements Runnable {
+        private final String jvmRoute;
+        private final long rehashCount;
 
-        Session session = super.findSession(sessionId);
-        log.debug(" local session found? - " + session != null);
-
-        if ( session == null && this.sessionExists(sessionId) ){
-            log.debug(" try create only local session because session doesn't exist locally, but there is metadata entry in distributed cache");
-            session = this.createLocalSession(sessionId);
-            //add to local sessions to avoid re-initialization every request
-            this.sessions.put(session.getIdInternal(), session);
+        RouteTakeOver(String jvmRoute, long rehashCount) {
+            this.jvmRoute = jvmRoute;
+            this.rehashCount = rehashCount;
         }
 
-        return session;
-    }
+        @Override
+        public void run() {
+            try {
+                this.awaitRehash();
+
+                List<String> ids = new ArrayList<String>();
+                OwnedSessionEntries entries = new OwnedSessionEntries(cache);
+                while (entries.hasNext()) {
+                    InternalCacheEntry entry = entries.next();
+                    if (jvmRoute.equals(SessionMetaAttributes.getJvmRoute(OwnedSessionEntries.getMetadata(entry)))) {
+                        ids.add(OwnedSessionEntries.getSessionId(entry));
+                    }
+                }
 
-    /**
-     * Remove session from all cluster
-     * @param session
-     * @param update
-     */
-    @Override
-    public void remove(Session session, boolean update) {
-        super.remove(session, update);
+                String localJvmRoute = getJvmRoute();
+                String suffix = localJvmRoute == null ? "" : "." + localJvmRoute;
+                int batchSize = Math.max(1, failoverBatchSize);
+                int count = 0;
+                for (int start = 0; start < ids.size(); start += batchSize) {
+                    count += this.takeOver(ids.subList(start, Math.min(ids.size(), start + batchSize)), suffix);
+                    if (failoverBatchPause > 0 && start + batchSize < ids.size()) {
+                        Thread.sleep(failoverBatchPause);
+                    }
+                }
+                log.info("Taken over " + count + " sessions of jvmRoute " + jvmRoute);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                log.warn("Take over of sessions of jvmRoute " + jvmRoute + " failed", ex);
+            }
+        }
 
-        if ( this.getDistributable()){
-            //remove attributes
-            String attributesCacheId = SessionAttributes.createCacheId(this.stripDotSuffix( session.getId() ) );
-            AtomicMapLookup.removeAtomicMap(cache, attributesCacheId);
+        /**
+         * Wait until ownership of failed node sessions is moved to surviving nodes
+         */
+        private void awaitRehash() throws InterruptedException {
+            if (cache.getAdvancedCache().getDistributionManager() == null) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + clusterTaskTimeout;
+            while ((rehashStatistics.getRehashCount() <= rehashCount || rehashStatistics.isInProgress())
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+        }
 
-            //remove metadata
-            String metadataCacheId = SessionMetaAttributes.createCacheId( this.stripDotSuffix( session.getId() ) );
-            AtomicMapLookup.removeAtomicMap(cache, metadataCacheId);
+        private int takeOver(List<String> ids, String suffix) throws IOException {
+            int count = 0;
+            boolean success = false;
+            cache.startBatch();
+            try {
+                for (String id : ids) {
+                    if (prefetchSession(id + suffix, true)) {
+                        count++;
+                    }
+                }
+                success = true;
+            } finally {
+                cache.endBatch(success);
+            }
+            failoverSessions.addAndGet(count);
+            return count;
         }
     }
 
@@ -552,9 +3285,10 @@ public class    InfinispanSessionManager extends ManagerBase {
             sessions.remove(sessionId);
         } else {
             //sessionId with jvmRoute suffix, could be any jvmRoute not just local
+            String prefix = sessionId + ".";
             Set<String> keySet = new HashSet<String>(sessions.keySet());
             for (String key : keySet) {
-                if (key.startsWith(sessionId)) {
+                if (key.startsWith(prefix)) {
                     sessions.remove(key);
                     break;
                 }
@@ -585,6 +3319,11 @@ public class    InfinispanSessionManager extends ManagerBase {
                 .cacheStopTimeout(0);
         cb.invocationBatching().enable();
 
+        if (sessionLocking) {
+            //session lock is held by suspended transaction
+            cb.transaction().lockingMode(LockingMode.PESSIMISTIC);
+        }
+
         //cb.transaction().transactionManagerLookup(new DummyTransactionManagerLookup()).lockingMode(LockingMode.PESSIMISTIC);
         //default config
         //cb.name("_session_attr_" + appName);
@@ -620,22 +3359,24 @@ public class    InfinispanSessionManager extends ManagerBase {
      */
     private DefaultCacheManager initializeCacheManager(String appName)
             throws LifecycleException {
-        String configFileName = "sessionInfinispanConfig" + appName + ".xml";
+        String configFileName = sharedCacheManager
+                ? "sessionInfinispanConfig.xml" : "sessionInfinispanConfig" + appName + ".xml";
 
-        File configFile = this.getConfigFile(configFileName);
+        final File configFile = this.getConfigFile(configFileName);
         boolean useDefault = configFile == null;
+        defaultCacheConfiguration = useDefault;
 
         try {
-            if ( useDefault ){
-                   GlobalConfiguration globalDefaultConfig = this.createGlobalDefaultInfinispanConfiguration(appName);
-                Configuration cacheConfiguration = this.createDefaultInfinispanConfiguration(appName);
-
-                log.debug("Initialize infinispan cache manager. Default cache settings used.");
-                manager = new DefaultCacheManager(globalDefaultConfig, cacheConfiguration);
+            if ( sharedCacheManager ){
+                String key = useDefault ? "default" : configFile.getAbsolutePath();
+                manager = SharedCacheManagerRegistry.acquire(key, new SharedCacheManagerRegistry.CacheManagerFactory() {
+                    @Override
+                    public DefaultCacheManager create() throws Exception {
+                        return createCacheManager(configFile, "shared");
+                    }
+                });
             } else {
-
-                log.debug("Initialize infinispan cache manager. Config file: " + configFile.getAbsolutePath());
-                manager = new DefaultCacheManager(configFile.getAbsolutePath());
+                manager = this.createCacheManager(configFile, appName);
             }
         } catch (Exception ex) {
             String message = "Error initializing distributed session cache!";
@@ -652,6 +3393,26 @@ public class    InfinispanSessionManager extends ManagerBase {
         return manager;
     }
 
+    /**
+     * Create new cache manager
+     * @param configFile infinispan configuration file, null to use default configuration
+     * @param appName    application name used in default cluster name and JMX domain
+     * @return
+     * @throws IOException if configuration file can't be read
+     */
+    private DefaultCacheManager createCacheManager(File configFile, String appName) throws IOException {
+        if ( configFile == null ){
+            GlobalConfiguration globalDefaultConfig = this.createGlobalDefaultInfinispanConfiguration(appName);
+            Configuration cacheConfiguration = this.createDefaultInfinispanConfiguration(appName);
+
+            log.debug("Initialize infinispan cache manager. Default cache settings used.");
+            return new DefaultCacheManager(globalDefaultConfig, cacheConfiguration);
+        }
+
+        log.debug("Initialize infinispan cache manager. Config file: " + configFile.getAbsolutePath());
+        return new DefaultCacheManager(configFile.getAbsolutePath());
+    }
+
     /**
      * Find config file. Return null if config file doesn't exist or is not possible to read.
      * @param configFileName
@@ -696,18 +3457,52 @@ public class    InfinispanSessionManager extends ManagerBase {
      * @param manager   cache manager
      * @param cacheName name of cache to get
      *
-     * @return wrapped cache to use correct class loader
+     * @return cache, attribute values are serialized by AttributeCodec, cache doesn't need application class loader
      */
     private Cache<String, Object> getCacheObject(DefaultCacheManager manager,
                                                  String cacheName) {
         Cache<String, Object> cache = manager.getCache(cacheName);
-        //use war app class loader
-        Cache<String, Object> wrappedCache = new DecoratedCache<String, Object>(cache.getAdvancedCache(), Thread.currentThread().getContextClassLoader() );
-        org.infinispan.config.Configuration configuration = wrappedCache.getConfiguration();
-        configuration.setClassLoader(Thread.currentThread().getContextClassLoader());
-        manager.defineConfiguration(cacheName, configuration);
+        if (!cache.getStatus().allowInvocations()) {
+            //cache of redeployed application in shared cache manager
+            cache.start();
+        }
+        return cache;
+    }
+
+    /**
+     * Create codec of attribute values resolving classes of application
+     */
+    private AttributeCodec createAttributeCodec() {
+        ClassLoader classLoader = null;
+        if (container != null && container.getLoader() != null) {
+            classLoader = container.getLoader().getClassLoader();
+        }
+        if (classLoader == null) {
+            classLoader = Thread.currentThread().getContextClassLoader();
+        }
+        if (classLoader == null) {
+            classLoader = this.getClass().getClassLoader();
+        }
+        return new AttributeCodec(classLoader, classNames, attributeNames);
+    }
 
-        return wrappedCache;
+    /**
+     * Get replicated cache of dictionaries. Cache is defined if it is not configured.
+     * @param manager   cache manager
+     * @param cacheName cache name
+     * @return dictionary cache
+     */
+    private Cache<String, Object> getDictionaryCache(DefaultCacheManager manager, String cacheName) {
+        if (manager.getCacheConfiguration(cacheName) == null && !manager.isRunning(cacheName)) {
+            ConfigurationBuilder cb = new ConfigurationBuilder();
+            cb.clustering().cacheMode(manager.getTransport() == null ? CacheMode.LOCAL : CacheMode.REPL_SYNC)
+                    .stateTransfer().fetchInMemoryState(manager.getTransport() != null);
+            cb.invocationBatching().enable();
+            //new strings are registered under lock of dictionary
+            cb.transaction().lockingMode(LockingMode.PESSIMISTIC);
+            manager.defineConfiguration(cacheName, cb.build());
+        }
+        return getCacheObject(manager, cacheName);
     }
 
     /**
@@ -727,15 +3522,458 @@ public class    InfinispanSessionManager extends ManagerBase {
 
             log.info("Initialize infinispan cache. container name: " + container.getName());
             DefaultCacheManager manager = initializeCacheManager( containerName );
-
-            String cacheName = "tc_session_" + containerName;
-            cache = getCacheObject(manager, cacheName);
-            cache.addListener( new InfinispanSessionListener( this ) );
+            if (classDictionary || attributeNameDictionary) {
+                dictionaryCache = this.getDictionaryCache(manager, "tc_session_dict_" + containerName);
+            }
+            if (classDictionary) {
+                classNames = new StringDictionary(dictionaryCache, "classes");
+            }
+            if (attributeNameDictionary) {
+                attributeNames = new StringDictionary(dictionaryCache, "attributeNames");
+            }
+            attributeCodec = this.createAttributeCodec();
+
+            this.checkCacheMode("cacheMode", cacheMode);
+            this.checkCacheMode("metadataCacheMode", metadataCacheMode);
+            this.checkCacheMode("attributesCacheMode", attributesCacheMode);
+            CacheTuning tuning = new CacheTuning(cacheMode, numOwners, l1Lifespan, syncReplication, evictionMaxEntries);
+            if (splitCaches) {
+                cache = this.getSessionCache(manager, "tc_session_meta_" + containerName, containerName,
+                        tuning.override(metadataCacheMode, metadataNumOwners, metadataL1Lifespan,
+                                metadataSyncReplication, metadataEvictionMaxEntries));
+                attributesCache = this.getSessionCache(manager, "tc_session_attr_" + containerName, containerName,
+                        tuning.override(attributesCacheMode, attributesNumOwners, attributesL1Lifespan,
+                                attributesSyncReplication, attributesEvictionMaxEntries));
+            } else {
+                cache = this.getSessionCache(manager, "tc_session_" + containerName, containerName, tuning);
+                attributesCache = cache;
+            }
+            sessionListener = new InfinispanSessionListener(this, containerName, sessionEventQueueCapacity,
+                    sessionEventOfferTimeout);
+            cache.addListener(sessionListener);
+            rehashListener = new RehashListener(rehashStatistics);
+            cache.addListener(rehashListener);
+            this.initSessionLock();
+            clusterSessionCounter = new ClusterSessionCounter(cache);
+            SessionManagerRegistry.register(cache, this);
+            this.initExecutorService();
+            if (clusterListeners) {
+                clusterSessionEvents = new ClusterSessionEvents(this, cache, executorService, containerName,
+                        sessionEventQueueCapacity, clusterTaskTimeout);
+                clusterSessionEvents.start();
+            }
+            if (failoverPrefetch || failoverBatch) {
+                this.initPrefetchExecutor(containerName);
+            }
+            jvmRouteRegistry = new JvmRouteRegistry(cache);
+            this.registerJvmRoute();
+            if (cache.getCacheManager().getAddress() != null) {
+                clusterViewListener = new ClusterViewListener(this);
+                cache.getCacheManager().addListener(clusterViewListener);
+            }
+            this.initAttributeWriter(containerName);
         } else {
             log.info("Application is not configured to be distributable. App name: " + container.getName());
         }
     }
 
+    /**
+     * Get session cache of application
+     * @param manager       cache manager
+     * @param cacheName     cache name
+     * @param containerName application name
+     * @param tuning        tuning attributes of cache
+     * @return wrapped cache
+     * @throws LifecycleException if running cache doesn't match tuning attributes
+     */
+    private Cache<String, Object> getSessionCache(DefaultCacheManager manager, String cacheName, String containerName,
+                                                  CacheTuning tuning) throws LifecycleException {
+        if (sharedCacheManager && defaultCacheConfiguration && !manager.isRunning(cacheName)) {
+            //default cache of shared cache manager was created by other application
+            manager.defineConfiguration(cacheName, this.createDefaultInfinispanConfiguration(containerName));
+        }
+        this.applyCacheTuning(manager, cacheName, tuning);
+        return getCacheObject(manager, cacheName);
+    }
+
+    /**
+     * Get directory of passivated entries of cache
+     * @param cacheName cache name
+     * @return absolute path
+     */
+    private String getPassivationLocation(String cacheName) {
+        File directory = new File(passivationDirectory);
+        if (!directory.isAbsolute()) {
+            directory = new File(System.getProperty("catalina.base", "."), passivationDirectory);
+        }
+        return new File(directory, cacheName).getAbsolutePath();
+    }
+
+    /**
+     * Check cache mode attribute value
+     * @param attribute attribute name
+     * @param value     attribute value, null - not set
+     * @throws LifecycleException if value is not valid cache mode
+     */
+    private void checkCacheMode(String attribute, String value) throws LifecycleException {
+        if (value == null) {
+            return;
+        }
+        try {
+            CacheMode.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            throw new LifecycleException("Invalid " + attribute + " '" + value + "' of session manager "
+                    + this.getName() + ", valid values: LOCAL, REPL_SYNC, REPL_ASYNC, DIST_SYNC, DIST_ASYNC", ex);
+        }
+    }
+
+    /**
+     * True if any cache tuning attribute is set
+     */
+    private boolean isCacheTuned(CacheTuning tuning) {
+        return tuning.cacheMode != null || tuning.numOwners > 0 || tuning.l1Lifespan >= 0
+                || tuning.syncReplication != null || tuning.evictionMaxEntries > 0
+                || remoteTimeout > 0 || lockConcurrencyLevel > 0
+                || useLockStriping != null || stateTransferChunkSize > 0 || passivationDirectory != null
+                || stateTransferTimeout > 0;
+    }
+
+    /**
+     * Override cache configuration (default or from configuration file) by cache tuning attributes of manager.
+     * Configuration of running cache (shared cache manager, redeploy) can't be changed, it is checked instead.
+     * @param manager   cache manager
+     * @param cacheName cache name
+     * @param tuning    tuning attributes of cache
+     * @throws LifecycleException if cache is running with configuration different from tuning attributes
+     */
+    private void applyCacheTuning(DefaultCacheManager manager, String cacheName, CacheTuning tuning)
+            throws LifecycleException {
+        if (!this.isCacheTuned(tuning)) {
+            return;
+        }
+        if (manager.isRunning(cacheName)) {
+            this.checkRunningCacheTuning(manager.getCache(cacheName).getCacheConfiguration(), cacheName, tuning);
+            return;
+        }
+
+        Configuration base = manager.getCacheConfiguration(cacheName);
+        if (base == null) {
+            base = manager.getDefaultCacheConfiguration();
+        }
+        ConfigurationBuilder cb = new ConfigurationBuilder().read(base);
+
+        CacheMode mode = base.clustering().cacheMode();
+        if (tuning.cacheMode != null) {
+            mode = CacheMode.valueOf(tuning.cacheMode.trim().toUpperCase(Locale.ENGLISH));
+        }
+        if (tuning.syncReplication != null && mode.isClustered()) {
+            mode = tuning.syncReplication ? mode.toSync() : mode.toAsync();
+        }
+        cb.clustering().cacheMode(mode);
+
+        if (mode.isDistributed()) {
+            if (tuning.numOwners > 0) {
+                cb.clustering().hash().numOwners(tuning.numOwners);
+            }
+            if (tuning.l1Lifespan > 0) {
+                cb.clustering().l1().enable().lifespan(tuning.l1Lifespan);
+            } else if (tuning.l1Lifespan == 0) {
+                cb.clustering().l1().disable();
+            }
+        } else {
+            //hash and L1 are valid only in distributed mode, reset them to defaults
+            Configuration defaults = new ConfigurationBuilder().build();
+            cb.clustering().hash().read(defaults.clustering().hash());
+            cb.clustering().l1().read(defaults.clustering().l1());
+            cb.clustering().l1().disable();
+        }
+        if (remoteTimeout > 0 && mode.isSynchronous()) {
+            cb.clustering().sync().replTimeout(remoteTimeout);
+        }
+        if (stateTransferChunkSize > 0) {
+            cb.clustering().stateTransfer().chunkSize(stateTransferChunkSize);
+        }
+        if (stateTransferTimeout > 0) {
+            cb.clustering().stateTransfer().timeout(stateTransferTimeout);
+        }
+        if (tuning.evictionMaxEntries > 0) {
+            cb.eviction().strategy(EvictionStrategy.LRU).maxEntries(tuning.evictionMaxEntries);
+            if (!base.loaders().usingCacheLoaders() && passivationDirectory == null) {
+                log.warn("Eviction of cache " + cacheName + " without cache store, evicted sessions are lost on this node.");
+            }
+        }
+        if (passivationDirectory != null) {
+            //store contains only entries evicted from memory of this node, stale after restart
+            cb.loaders().passivation(true).preload(false).shared(false);
+            if ("mapped".equalsIgnoreCase(passivationStore)) {
+                cb.loaders().addCacheLoader().cacheLoader(new MappedSessionCacheStore())
+                        .addProperty("location", this.getPassivationLocation(cacheName))
+                        .purgeOnStartup(true).fetchPersistentState(false);
+            } else {
+                cb.loaders().addFileCacheStore().location(this.getPassivationLocation(cacheName))
+                        .purgeOnStartup(true).fetchPersistentState(false);
+            }
+            if (tuning.evictionMaxEntries <= 0 && base.eviction().maxEntries() <= 0) {
+                log.warn("Passivation of cache " + cacheName + " without eviction, set evictionMaxEntries.");
+            }
+        }
+        if (lockConcurrencyLevel > 0) {
+            cb.locking().concurrencyLevel(lockConcurrencyLevel);
+        }
+        if (useLockStriping != null) {
+            cb.locking().useLockStriping(useLockStriping);
+        }
+
+        log.info("Cache " + cacheName + " tuned by session manager attributes. Cache mode: " + mode);
+        manager.defineConfiguration(cacheName, cb.build());
+    }
+
+    /**
+     * Compare configuration of running cache with set tuning attributes.
+     * @param running   configuration of running cache
+     * @param cacheName cache name
+     * @param tuning    tuning attributes of cache
+     * @throws LifecycleException with list of differences if any set attribute doesn't match running cache
+     */
+    private void checkRunningCacheTuning(Configuration running, String cacheName, CacheTuning tuning)
+            throws LifecycleException {
+        List<String> differences = new ArrayList<String>();
+        CacheMode runningMode = running.clustering().cacheMode();
+        CacheMode mode = runningMode;
+        if (tuning.cacheMode != null) {
+            mode = CacheMode.valueOf(tuning.cacheMode.trim().toUpperCase(Locale.ENGLISH));
+        }
+        if (tuning.syncReplication != null && mode.isClustered()) {
+            mode = tuning.syncReplication ? mode.toSync() : mode.toAsync();
+        }
+        this.addDifference(differences, "cacheMode", mode, runningMode);
+
+        if (runningMode.isDistributed()) {
+            if (tuning.numOwners > 0) {
+                this.addDifference(differences, "numOwners", tuning.numOwners, running.clustering().hash().numOwners());
+            }
+            if (tuning.l1Lifespan > 0) {
+                this.addDifference(differences, "l1Lifespan", tuning.l1Lifespan,
+                        running.clustering().l1().enabled() ? running.clustering().l1().lifespan() : 0L);
+            } else if (tuning.l1Lifespan == 0) {
+                this.addDifference(differences, "l1Lifespan", 0L,
+                        running.clustering().l1().enabled() ? running.clustering().l1().lifespan() : 0L);
+            }
+        }
+        if (remoteTimeout > 0 && runningMode.isSynchronous()) {
+            this.addDifference(differences, "remoteTimeout", remoteTimeout, running.clustering().sync().replTimeout());
+        }
+        if (stateTransferChunkSize > 0) {
+            this.addDifference(differences, "stateTransferChunkSize", stateTransferChunkSize,
+                    running.clustering().stateTransfer().chunkSize());
+        }
+        if (stateTransferTimeout > 0) {
+            this.addDifference(differences, "stateTransferTimeout", stateTransferTimeout,
+                    running.clustering().stateTransfer().timeout());
+        }
+        if (tuning.evictionMaxEntries > 0) {
+            this.addDifference(differences, "evictionMaxEntries", tuning.evictionMaxEntries,
+                    running.eviction().maxEntries());
+        }
+        if (passivationDirectory != null) {
+            this.addDifference(differences, "passivation", true,
+                    running.loaders().passivation() && running.loaders().usingCacheLoaders());
+        }
+        if (lockConcurrencyLevel > 0) {
+            this.addDifference(differences, "lockConcurrencyLevel", lockConcurrencyLevel,
+                    running.locking().concurrencyLevel());
+        }
+        if (useLockStriping != null) {
+            this.addDifference(differences, "useLockStriping", useLockStriping, running.locking().useLockStriping());
+        }
+
+        if (!differences.isEmpty()) {
+            throw new LifecycleException("Cache " + cacheName + " is already running with configuration different"
+                    + " from attributes of session manager " + this.getName() + ": " + differences);
+        }
+        log.info("Cache " + cacheName + " is already running, its configuration matches attributes of session manager.");
+    }
+
+    /**
+     * Add description of attribute to differences if requested value doesn't match running cache
+     */
+    private void addDifference(List<String> differences, String attribute, Object requested, Object running) {
+        if (!requested.equals(running)) {
+            differences.add(attribute + " " + requested + " (running " + running + ")");
+        }
+    }
+
+    /**
+     * Create session lock if enabled. Locking needs pessimistic transactional cache.
+     * @throws LifecycleException if session locking is enabled and cache can't hold session locks,
+     *                            e.g. cache defined by configuration file or by other application of shared cache manager
+     */
+    private void initSessionLock() throws LifecycleException {
+        if (!sessionLocking) {
+            return;
+        }
+
+        //legacy configuration API of running cache
+        LockingMode lockingMode = cache.getConfiguration().getTransactionLockingMode();
+        if (lockingMode != LockingMode.PESSIMISTIC || cache.getAdvancedCache().getTransactionManager() == null) {
+            throw new LifecycleException("Session locking of session manager " + this.getName()
+                    + " requires transactional cache with PESSIMISTIC locking mode. Cache " + cache.getName()
+                    + " uses " + lockingMode + (cache.getAdvancedCache().getTransactionManager() == null
+                    ? " without transaction manager." : "."));
+        }
+
+        log.info("Session locking enabled. Lock timeout: " + sessionLockTimeout + "ms");
+        sessionLock = new SessionLock(cache, sessionLockTimeout);
+    }
+
+    /**
+     * Create executor of cluster tasks. Not clustered cache executes tasks locally.
+     */
+    private void initExecutorService() {
+        try {
+            executorService = new DefaultExecutorService(cache);
+        } catch (IllegalStateException ex) {
+            log.info("Cache " + cache.getName() + " is not clustered, cluster tasks are executed locally. " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Create threads prefetching sessions after failover. Prefetch is dropped if queue is full.
+     */
+    private void initPrefetchExecutor(final String containerName) {
+        int threads = Math.max(1, prefetchThreads);
+        prefetchExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(1000),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SessionPrefetch-" + containerName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Enable attribute writer. Writer is created now if asyncAttributes pattern is set,
+     * otherwise by first write of AsyncSessionAttribute value.
+     */
+    private void initAttributeWriter(String containerName) {
+        synchronized (attributeWriterLock) {
+            attributeWriterName = containerName;
+        }
+        if (asyncAttributes != null && asyncAttributes.trim().length() > 0) {
+            this.getAttributeWriter();
+        }
+    }
+
+    /**
+     * Get single thread writing asynchronously replicated attributes, create it if needed. Keeps order of writes.
+     * Queue is bounded, writes over capacity are rejected.
+     *
+     * @return writer or null if manager is not started or is stopped
+     */
+    private ThreadPoolExecutor getAttributeWriter() {
+        ThreadPoolExecutor writer = attributeWriter;
+        if (writer != null) {
+            return writer;
+        }
+        synchronized (attributeWriterLock) {
+            if (attributeWriter == null && attributeWriterName != null) {
+                final String containerName = attributeWriterName;
+                attributeWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(Math.max(1, attributeWriteQueueCapacity)),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "SessionAttributeWriter-" + containerName);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+            return attributeWriter;
+        }
+    }
+
+    /**
+     * Write attribute to distributed cache in background. Writes in request thread if writer is not available
+     * or its queue is full.
+     *
+     * @param write attribute write
+     */
+    void writeBehind(Runnable write) {
+        ThreadPoolExecutor writer = this.getAttributeWriter();
+        if (writer != null) {
+            try {
+                writer.execute(write);
+                return;
+            } catch (RejectedExecutionException ex) {
+                if (!writer.isShutdown()) {
+                    attributeWritesOverflowed.incrementAndGet();
+                }
+                log.debug("Attribute writer queue full or writer stopped, writing attribute synchronously");
+            }
+        }
+        write.run();
+    }
+
+    /**
+     * Execute task on every cluster node and return results of all nodes.
+     * Results of failed or timed out nodes are missing.
+     *
+     * @param task task
+     * @return node results
+     */
+    protected <T> List<T> executeOnAllNodes(DistributedCallable<String, Object, T> task) {
+        List<T> results = new ArrayList<T>();
+
+        if (executorService == null) {
+            try {
+                task.setEnvironment(cache, new HashSet<String>());
+                results.add(task.call());
+            } catch (Exception ex) {
+                log.error("Local execution of cluster task failed. Task: " + task.getClass().getName(), ex);
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = executorService.submitEverywhere(task);
+        long deadline = System.currentTimeMillis() + clusterTaskTimeout;
+        for (Future<T> future : futures) {
+            try {
+                long timeout = Math.max(0, deadline - System.currentTimeMillis());
+                results.add(future.get(timeout, TimeUnit.MILLISECONDS));
+            } catch (Exception ex) {
+                future.cancel(true);
+                log.warn("Cluster task failed on one node. Task: " + task.getClass().getName(), ex);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Compute session statistics on all nodes and merge results.
+     */
+    private SessionStatistics computeClusterStatistics() {
+        SessionStatistics statistics = new SessionStatistics();
+
+        if (!this.getDistributable()) {
+            statistics.addExpired(this.getExpiredSessions(), this.getSessionAverageAliveTime());
+            return statistics;
+        }
+
+        for (SessionStatistics nodeStatistics : this.executeOnAllNodes(new SessionStatisticsTask())) {
+            statistics.merge(nodeStatistics);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Cluster statistics computed: " + statistics);
+        }
+        return statistics;
+    }
+
     /**
      * Get session manager cache name
      * @return
@@ -744,6 +3982,37 @@ public class    InfinispanSessionManager extends ManagerBase {
         return this.cache.getName();
     }
 
+    /**
+     * Get session attributes cache, the same as metadata cache if caches are not split
+     * @return
+     */
+    Cache<String, Object> getAttributesCache() {
+        return this.attributesCache;
+    }
+
+
+    /**
+     * Get cache of string dictionaries, null if dictionaries are not used
+     * @return
+     */
+    Cache<String, Object> getStringDictionaryCache() {
+        return this.dictionaryCache;
+    }
+
+    /**
+     * Codec of attribute values, null if application is not distributable
+     */
+    AttributeCodec getAttributeCodec() {
+        return this.attributeCodec;
+    }
+
+    /**
+     * Positions of cluster session listings on this node by listing id
+     */
+    ConcurrentMap<String, SessionListingTask.Listing> getSessionListings() {
+        return this.sessionListings;
+    }
+
     /**
      * Get transaction manager
      * @return
@@ -751,4 +4020,36 @@ public class    InfinispanSessionManager extends ManagerBase {
     protected TransactionManager getTransactionManager(){
         return this.cache.getAdvancedCache().getTransactionManager();
     }
+
+    /**
+     * Tuning attributes which could be set separately for metadata and attributes caches
+     */
+    private static final class CacheTuning {
+        final String cacheMode;
+        final int numOwners;
+        final long l1Lifespan;
+        final Boolean syncReplication;
+        final int evictionMaxEntries;
+
+        CacheTuning(String cacheMode, int numOwners, long l1Lifespan, Boolean syncReplication,
+                    int evictionMaxEntries) {
+            this.cacheMode = cacheMode;
+            this.numOwners = numOwners;
+            this.l1Lifespan = l1Lifespan;
+            this.syncReplication = syncReplication;
+            this.evictionMaxEntries = evictionMaxEntries;
+        }
+
+        /**
+         * Tuning with values replaced by set values of one cache
+         */
+        CacheTuning override(String cacheMode, int numOwners, long l1Lifespan, Boolean syncReplication,
+                             int evictionMaxEntries) {
+            return new CacheTuning(cacheMode != null ? cacheMode : this.cacheMode,
+                    numOwners > 0 ? numOwners : this.numOwners,
+                    l1Lifespan >= 0 ? l1Lifespan : this.l1Lifespan,
+                    syncReplication != null ? syncReplication : this.syncReplication,
+                    evictionMaxEntries > 0 ? evictionMaxEntries : this.evictionMaxEntries);
+        }
+    }
 }
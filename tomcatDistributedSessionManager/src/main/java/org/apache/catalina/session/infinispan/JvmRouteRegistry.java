@@ -0,0 +1,120 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.remoting.transport.Address;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * jvmRoute of cluster nodes. Every node stores its jvmRoute to session cache, other nodes keep local copy
+ * of routes of members, so jvmRoute of failed node is known even if its cache entry is lost.
+ */
+class JvmRouteRegistry {
+
+    /**
+     * Shared cache namespace
+     */
+    private static final String NAMESPACE = "route";
+
+    /**
+     * Time jvmRoute of node which left cluster is remembered
+     */
+    private static final long DEPARTED_TTL = 3600000L;
+
+    private final Cache<String, Object> cache;
+
+    private final ConcurrentMap<Address, String> routes = new ConcurrentHashMap<Address, String>();
+
+    /**
+     * jvmRoutes of nodes which left cluster to time of leaving, filled only by view changes
+     */
+    private final ConcurrentMap<String, Long> departed = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Constructor
+     *
+     * @param cache session metadata cache
+     */
+    JvmRouteRegistry(Cache<String, Object> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Publish jvmRoute of local node
+     */
+    void register(Address address, String jvmRoute) {
+        routes.put(address, jvmRoute);
+        departed.remove(jvmRoute);
+        cache.put(createCacheId(address), jvmRoute);
+    }
+
+    /**
+     * Remove jvmRoute of local node leaving cluster
+     */
+    void unregister(Address address) {
+        cache.remove(createCacheId(address));
+    }
+
+    /**
+     * Read jvmRoutes of members not known yet
+     */
+    void refresh(List<Address> members) {
+        for (Address member : members) {
+            if (!routes.containsKey(member)) {
+                Object jvmRoute = cache.get(createCacheId(member));
+                if (jvmRoute instanceof String) {
+                    routes.put(member, (String) jvmRoute);
+                    departed.remove(jvmRoute);
+                }
+            }
+        }
+    }
+
+    /**
+     * jvmRoute of node, null if not known
+     */
+    String getRoute(Address address) {
+        return routes.get(address);
+    }
+
+    /**
+     * Forget jvmRoute of node which left cluster, jvmRoute is remembered as departed
+     */
+    String remove(Address address) {
+        String jvmRoute = routes.remove(address);
+        if (jvmRoute != null && !routes.containsValue(jvmRoute)) {
+            departed.put(jvmRoute, System.currentTimeMillis());
+        }
+        return jvmRoute;
+    }
+
+    /**
+     * True if jvmRoute belonged to node which left cluster and no member uses it now
+     */
+    boolean isDeparted(String jvmRoute) {
+        Long time = departed.get(jvmRoute);
+        return time != null && System.currentTimeMillis() - time < DEPARTED_TTL;
+    }
+
+    /**
+     * Forget departed jvmRoutes older than time to live
+     */
+    void expireDeparted() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> route : departed.entrySet()) {
+            if (now - route.getValue() >= DEPARTED_TTL) {
+                departed.remove(route.getKey(), route.getValue());
+            }
+        }
+    }
+
+    private static String createCacheId(Address address) {
+        return NAMESPACE + address;
+    }
+}
@@ -0,0 +1,13 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+/**
+ * Marker interface of session attribute values stored only on local node.
+ * Use for attributes the application can rebuild, e.g. caches.
+ *
+ * @see AttributeReplication#LOCAL
+ */
+public interface LocalSessionAttribute {
+}
@@ -0,0 +1,720 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.infinispan.Cache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.loaders.AbstractCacheStore;
+import org.infinispan.loaders.CacheLoaderConfig;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheLoaderMetadata;
+import org.infinispan.marshall.StreamingMarshaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local cache store of session caches. Entries are appended to memory mapped segment files,
+ * in-memory index holds location of the last version of every key. Store is sequential write,
+ * load is random read of mapped file.
+ * Segments with low ratio of live data are compacted by purge thread (see expiration wakeUpInterval):
+ * live records are copied as raw bytes to active segment and old segment file is deleted. Removal records
+ * (tombstones) are live while an older segment exists, they are dropped by compaction of the oldest segment.
+ * Index is rebuilt from segment files on start if store is not purged on startup, only keys of records
+ * are unmarshalled. Passivation store of session manager is purged on startup, its entries are stale.
+ * <p/>
+ * Record: int length of key and entry, byte type, long expiry time (-1 never), int length of key,
+ * marshalled key, marshalled entry (only entry records, removal records have key only). Zero length ends segment.
+ */
+@CacheLoaderMetadata(configurationClass = MappedSessionCacheStoreConfig.class)
+public class MappedSessionCacheStore extends AbstractCacheStore {
+
+    private final Log log = LogFactory.getLog(MappedSessionCacheStore.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final int HEADER = 17;
+    private static final int TYPE = 4;
+    private static final int EXPIRY = 5;
+    private static final int KEY_LENGTH = 13;
+    private static final byte ENTRY = 1;
+    private static final byte REMOVED = 2;
+
+    private MappedSessionCacheStoreConfig config;
+
+    private File directory;
+
+    /**
+     * Segments by id, guarded by lock
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /**
+     * Segment of new records, guarded by lock
+     */
+    private Segment active;
+
+    /**
+     * Location of the last version of keys, modified under write lock
+     */
+    private final ConcurrentMap<Object, Location> index = new ConcurrentHashMap<Object, Location>();
+
+    /**
+     * Read lock - reading of mapped segments, write lock - append, compaction, segment deletion
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Number of compacted segments
+     */
+    private final AtomicLong compactedSegments = new AtomicLong();
+
+    @Override
+    public void init(CacheLoaderConfig config, Cache<?, ?> cache, StreamingMarshaller m) throws CacheLoaderException {
+        super.init(config, cache, m);
+        this.config = (MappedSessionCacheStoreConfig) config;
+    }
+
+    @Override
+    public Class<? extends CacheLoaderConfig> getConfigurationClass() {
+        return MappedSessionCacheStoreConfig.class;
+    }
+
+    @Override
+    public void start() throws CacheLoaderException {
+        super.start();
+        directory = new File(config.getLocation());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new CacheLoaderException("Can't create directory of session store " + directory);
+        }
+
+        lock.writeLock().lock();
+        try {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(id, new Segment(id, file, file.length()));
+                    }
+                }
+            }
+            for (Segment segment : segments.values()) {
+                this.scan(segment);
+                active = segment;
+            }
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't open session store " + directory, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Session store " + directory + " started, segments: " + segments.size() + " entries: " + index.size());
+        }
+    }
+
+    @Override
+    public void stop() throws CacheLoaderException {
+        super.stop();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void store(InternalCacheEntry entry) throws CacheLoaderException {
+        byte[] key = this.marshall(entry.getKey());
+        byte[] value = this.marshall(entry);
+        long expiry = entry.canExpire() ? entry.getExpiryTime() : -1;
+
+        lock.writeLock().lock();
+        try {
+            Location location = this.append(ENTRY, expiry, key, value);
+            this.release(index.put(entry.getKey(), location));
+            location.segment.liveBytes += location.length;
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't store entry " + entry.getKey(), ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object key) throws CacheLoaderException {
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        byte[] marshalledKey = this.marshall(key);
+
+        lock.writeLock().lock();
+        try {
+            Location location = index.remove(key);
+            if (location == null) {
+                return false;
+            }
+            this.release(location);
+            //tombstone hides older versions of entry during index rebuild
+            Location tombstone = this.append(REMOVED, -1, marshalledKey, new byte[0]);
+            tombstone.segment.tombstoneBytes += tombstone.length;
+            return true;
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't remove entry " + key, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public InternalCacheEntry load(Object key) throws CacheLoaderException {
+        Location location = index.get(key);
+        InternalCacheEntry entry = this.read(location);
+        while (entry == null && location != null && location != index.get(key)) {
+            //entry moved by compaction
+            location = index.get(key);
+            entry = this.read(location);
+        }
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public Set<InternalCacheEntry> loadAll() throws CacheLoaderException {
+        return this.load(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Set<InternalCacheEntry> load(int numEntries) throws CacheLoaderException {
+        Set<InternalCacheEntry> entries = new HashSet<InternalCacheEntry>();
+        long now = System.currentTimeMillis();
+        for (Location location : index.values()) {
+            if (entries.size() >= numEntries) {
+                break;
+            }
+            InternalCacheEntry entry = this.read(location);
+            if (entry != null && !entry.isExpired(now)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public Set<Object> loadAllKeys(Set<Object> keysToExclude) throws CacheLoaderException {
+        Set<Object> keys = new HashSet<Object>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Object, Location> entry : index.entrySet()) {
+            if (entry.getValue().isExpired(now)) {
+                continue;
+            }
+            if (keysToExclude == null || !keysToExclude.contains(entry.getKey())) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Iterate keys of not expired entries without copying index. Keys stored or removed during iteration
+     * may or may not be returned.
+     */
+    Iterator<Object> keyIterator() {
+        final Iterator<Map.Entry<Object, Location>> entries = index.entrySet().iterator();
+        return new Iterator<Object>() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                long now = System.currentTimeMillis();
+                while (next == null && entries.hasNext()) {
+                    Map.Entry<Object, Location> entry = entries.next();
+                    if (!entry.getValue().isExpired(now)) {
+                        next = entry.getKey();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Object next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object key = next;
+                next = null;
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void clear() throws CacheLoaderException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void toStream(ObjectOutput outputStream) throws CacheLoaderException {
+        try {
+            for (Iterator<Object> keys = this.keyIterator(); keys.hasNext(); ) {
+                InternalCacheEntry entry = this.load(keys.next());
+                if (entry != null) {
+                    getMarshaller().objectToObjectStream(entry, outputStream);
+                }
+            }
+            getMarshaller().objectToObjectStream(null, outputStream);
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't write session store to stream", ex);
+        }
+    }
+
+    @Override
+    public void fromStream(ObjectInput inputStream) throws CacheLoaderException {
+        try {
+            Object entry = getMarshaller().objectFromObjectStream(inputStream);
+            while (entry instanceof InternalCacheEntry) {
+                this.store((InternalCacheEntry) entry);
+                entry = getMarshaller().objectFromObjectStream(inputStream);
+            }
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't read session store from stream", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new CacheLoaderException("Can't read session store from stream", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CacheLoaderException("Reading of session store interrupted", ex);
+        }
+    }
+
+    /**
+     * Remove expired entries from index and compact segments with low ratio of live data.
+     * Write lock is held only while index is changed or records of one segment are copied.
+     */
+    @Override
+    protected void purgeInternal() throws CacheLoaderException {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Object, Location>> expired = new ArrayList<Map.Entry<Object, Location>>();
+        for (Map.Entry<Object, Location> entry : index.entrySet()) {
+            if (entry.getValue().isExpired(now)) {
+                expired.add(entry);
+            }
+        }
+        if (!expired.isEmpty()) {
+            lock.writeLock().lock();
+            try {
+                for (Map.Entry<Object, Location> entry : expired) {
+                    //entry could be stored again meanwhile
+                    if (index.remove(entry.getKey(), entry.getValue())) {
+                        this.release(entry.getValue());
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<Segment> sparse = new ArrayList<Segment>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                //tombstones are live while older segment could contain removed entry
+                long live = segment.liveBytes + (segment.id > segments.firstKey() ? segment.tombstoneBytes : 0);
+                if (segment != active && live <= config.getCompactionThreshold() * segment.writePosition) {
+                    sparse.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            for (Segment segment : sparse) {
+                this.compact(segment);
+            }
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't compact session store " + directory, ex);
+        }
+    }
+
+    /**
+     * Number of segment files
+     */
+    int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of segments compacted since start
+     */
+    long getCompactedSegments() {
+        return compactedSegments.get();
+    }
+
+    /**
+     * Copy live records of segment to active segment and delete segment file.
+     * Keys are read under read lock (segment other than active is never written), records are copied
+     * as raw bytes under write lock.
+     */
+    private void compact(Segment segment) throws IOException, CacheLoaderException {
+        List<Record> records = new ArrayList<Record>();
+        lock.readLock().lock();
+        try {
+            if (segments.get(segment.id) != segment) {
+                //cleared meanwhile
+                return;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int position = 0;
+            while (position < segment.writePosition) {
+                int length = buffer.getInt(position);
+                records.add(new Record(this.readKey(buffer, position), buffer.get(position + TYPE),
+                        position, HEADER + length));
+                position += HEADER + length;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int moved = 0;
+        lock.writeLock().lock();
+        try {
+            if (segments.get(segment.id) != segment) {
+                return;
+            }
+            boolean olderSegments = segments.firstKey() < segment.id;
+            for (Record record : records) {
+                Location location = index.get(record.key);
+                if (record.type == ENTRY && location != null && location.segment == segment
+                        && location.offset == record.offset) {
+                    Location copy = this.copy(segment, record.offset, record.length);
+                    copy.expiry = location.expiry;
+                    index.put(record.key, copy);
+                    copy.segment.liveBytes += copy.length;
+                    moved++;
+                } else if (record.type == REMOVED && location == null && olderSegments) {
+                    //older segment could still contain removed entry
+                    Location copy = this.copy(segment, record.offset, record.length);
+                    copy.segment.tombstoneBytes += copy.length;
+                }
+            }
+            segments.remove(segment.id);
+            segment.delete();
+            compactedSegments.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Segment " + segment.file + " compacted, entries moved: " + moved);
+        }
+    }
+
+    /**
+     * Rebuild index from record headers and keys of segment. Caller holds write lock.
+     */
+    private void scan(Segment segment) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER <= segment.capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER + length > segment.capacity) {
+                break;
+            }
+            int keyLength = buffer.getInt(position + KEY_LENGTH);
+            if (keyLength <= 0 || keyLength > length) {
+                log.warn("Invalid record of segment " + segment.file + " at position " + position);
+                break;
+            }
+
+            try {
+                Object key = this.readKey(buffer, position);
+                byte type = buffer.get(position + TYPE);
+                this.release(index.remove(key));
+                if (type == REMOVED) {
+                    segment.tombstoneBytes += HEADER + length;
+                } else if (type == ENTRY) {
+                    Location location = new Location(segment, position, HEADER + length);
+                    location.expiry = buffer.getLong(position + EXPIRY);
+                    if (!location.isExpired(now)) {
+                        index.put(key, location);
+                        segment.liveBytes += location.length;
+                    }
+                }
+            } catch (CacheLoaderException ex) {
+                log.warn("Can't read record of segment " + segment.file + " at position " + position, ex);
+            }
+            position += HEADER + length;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * Append record to active segment. Caller holds write lock.
+     */
+    private Location append(byte type, long expiry, byte[] key, byte[] value) throws IOException {
+        int length = HEADER + key.length + value.length;
+        ByteBuffer buffer = this.reserve(length);
+        int position = active.writePosition;
+        buffer.position(position + HEADER);
+        buffer.put(key);
+        buffer.put(value);
+        buffer.put(position + TYPE, type);
+        buffer.putLong(position + EXPIRY, expiry);
+        buffer.putInt(position + KEY_LENGTH, key.length);
+        return this.commit(buffer, position, length, expiry);
+    }
+
+    /**
+     * Copy raw record of other segment to active segment. Caller holds write lock.
+     */
+    private Location copy(Segment segment, int offset, int length) throws IOException {
+        ByteBuffer buffer = this.reserve(length);
+        int position = active.writePosition;
+        ByteBuffer source = segment.buffer.duplicate();
+        source.position(offset + TYPE);
+        source.limit(offset + length);
+        buffer.position(position + TYPE);
+        buffer.put(source);
+        return this.commit(buffer, position, length, source.getLong(offset + EXPIRY));
+    }
+
+    /**
+     * Start new segment if record doesn't fit to active segment. Caller holds write lock.
+     *
+     * @return buffer of active segment
+     */
+    private ByteBuffer reserve(int length) throws IOException {
+        if (active == null || active.writePosition + length + 4 > active.capacity) {
+            long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+            active = new Segment(id, file, Math.max(config.getSegmentSize(), length + 4));
+            segments.put(id, active);
+        }
+        return active.buffer.duplicate();
+    }
+
+    /**
+     * Write length of record written at position and move end of active segment. Caller holds write lock.
+     */
+    private Location commit(ByteBuffer buffer, int position, int length, long expiry) {
+        //length is written last, record is complete when it is visible
+        buffer.putInt(position, length - HEADER);
+        active.writePosition = position + length;
+        Location location = new Location(active, position, length);
+        location.expiry = expiry;
+        return location;
+    }
+
+    /**
+     * Data of replaced or removed version of entry isn't live. Caller holds write lock.
+     */
+    private void release(Location location) {
+        if (location != null) {
+            location.segment.liveBytes -= location.length;
+        }
+    }
+
+    private InternalCacheEntry read(Location location) throws CacheLoaderException {
+        if (location == null) {
+            return null;
+        }
+        byte[] payload;
+        lock.readLock().lock();
+        try {
+            if (!location.segment.isOpen()) {
+                //compacted meanwhile
+                return null;
+            }
+            ByteBuffer buffer = location.segment.buffer.duplicate();
+            int keyLength = buffer.getInt(location.offset + KEY_LENGTH);
+            payload = new byte[location.length - HEADER - keyLength];
+            buffer.position(location.offset + HEADER + keyLength);
+            buffer.get(payload);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return (InternalCacheEntry) this.unmarshall(payload);
+    }
+
+    /**
+     * Unmarshall key of record at position, entry isn't read
+     */
+    private Object readKey(ByteBuffer buffer, int position) throws CacheLoaderException {
+        byte[] key = new byte[buffer.getInt(position + KEY_LENGTH)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + HEADER);
+        source.get(key);
+        return this.unmarshall(key);
+    }
+
+    private byte[] marshall(Object object) throws CacheLoaderException {
+        try {
+            return getMarshaller().objectToByteBuffer(object);
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't marshall " + object, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CacheLoaderException("Marshalling interrupted", ex);
+        }
+    }
+
+    private Object unmarshall(byte[] payload) throws CacheLoaderException {
+        try {
+            return getMarshaller().objectFromByteBuffer(payload);
+        } catch (IOException ex) {
+            throw new CacheLoaderException("Can't unmarshall entry of session store", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new CacheLoaderException("Can't unmarshall entry of session store", ex);
+        }
+    }
+
+    /**
+     * Segment file mapped to memory
+     */
+    private static final class Segment {
+        final long id;
+        final File file;
+        final int capacity;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        /**
+         * End of records, guarded by store lock
+         */
+        int writePosition;
+
+        /**
+         * Bytes of records referenced by index, guarded by store lock
+         */
+        long liveBytes;
+
+        /**
+         * Bytes of removal records, guarded by store lock
+         */
+        long tombstoneBytes;
+
+        Segment(long id, File file, long capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = (int) capacity;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        void close() {
+            try {
+                buffer.force();
+                raf.close();
+            } catch (IOException ex) {
+                LogFactory.getLog(MappedSessionCacheStore.class).warn("Can't close segment " + file, ex);
+            }
+        }
+
+        void delete() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                //deleted anyway
+            }
+            if (!file.delete()) {
+                LogFactory.getLog(MappedSessionCacheStore.class).warn("Can't delete segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Record of segment being compacted
+     */
+    private static final class Record {
+        final Object key;
+        final byte type;
+        final int offset;
+        final int length;
+
+        Record(Object key, byte type, int offset, int length) {
+            this.key = key;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Location of record in segment
+     */
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+        long expiry = -1;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean isExpired(long now) {
+            return expiry > 0 && expiry <= now;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.loaders.AbstractCacheStoreConfig;
+
+/**
+ * Configuration of {@link MappedSessionCacheStore}.
+ * Properties: location (directory of segment files), segmentSize (bytes),
+ * compactionThreshold (ratio of live data in segment to compact it).
+ */
+public class MappedSessionCacheStoreConfig extends AbstractCacheStoreConfig {
+
+    private static final long serialVersionUID = 1L;
+
+    private String location = "sessionStore";
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    private double compactionThreshold = 0.5;
+
+    public MappedSessionCacheStoreConfig() {
+        setCacheLoaderClassName(MappedSessionCacheStore.class.getName());
+    }
+
+    /**
+     * Directory of segment files
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        testImmutability("location");
+        this.location = location;
+    }
+
+    /**
+     * Size of one segment file in bytes. Larger entries get own segment.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        testImmutability("segmentSize");
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Segment is compacted if ratio of its live data is lower than threshold.
+     */
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        testImmutability("compactionThreshold");
+        this.compactionThreshold = compactionThreshold;
+    }
+}
@@ -0,0 +1,60 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Session attribute value stored in cache in serialized form. Cache, state transfer and cache stores handle
+ * only byte array, value is deserialized by AttributeCodec with class loader of web application.
+ * Deserialized value is kept in transient field, local reads of the same entry don't deserialize again.
+ */
+final class MarshalledAttribute implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] bytes;
+
+    /**
+     * Value of bytes, null - not deserialized yet on this node
+     */
+    private transient volatile Object value;
+
+    MarshalledAttribute(byte[] bytes, Object value) {
+        this.bytes = bytes;
+        this.value = value;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int size() {
+        return bytes.length;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    void setValue(Object value) {
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MarshalledAttribute && Arrays.equals(bytes, ((MarshalledAttribute) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "MarshalledAttribute{" + bytes.length + " bytes}";
+    }
+}
@@ -0,0 +1,235 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.container.DataContainer;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.loaders.CacheLoader;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.CacheLoaderManager;
+import org.infinispan.remoting.transport.Address;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Iterates session metadata (or attributes) entries stored in local data container and local cache store
+ * (passivated entries) for which local node is primary owner.
+ * Every session is visited on exactly one cluster node, backup copies are skipped.
+ * Entries are read directly from data container and cache store, nothing is loaded from other nodes
+ * and passivated entries are not activated. Cache store is iterated by keys, owned entries are loaded one by one.
+ */
+class OwnedSessionEntries implements Iterator<InternalCacheEntry> {
+
+    private Cache<?, ?> cache;
+    private boolean attributes;
+    private DataContainer dataContainer;
+    private Iterator<InternalCacheEntry> entries;
+
+    /**
+     * Keys of cache store, null until data container is iterated
+     */
+    private Iterator<Object> storedKeys;
+    private CacheLoader loader;
+    private InternalCacheEntry next;
+    private long now = System.currentTimeMillis();
+
+    /**
+     * Constructor
+     *
+     * @param cache session metadata cache
+     */
+    public OwnedSessionEntries(Cache<?, ?> cache) {
+        this(cache, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cache      session cache
+     * @param attributes true - iterate session attributes entries, false - session metadata entries
+     */
+    public OwnedSessionEntries(Cache<?, ?> cache, boolean attributes) {
+        this.cache = cache;
+        this.attributes = attributes;
+        this.dataContainer = cache.getAdvancedCache().getDataContainer();
+        this.entries = dataContainer.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && entries.hasNext()) {
+            InternalCacheEntry entry = entries.next();
+            if (this.isSessionKey(entry.getKey()) && entry.getValue() instanceof Map
+                    && !entry.isExpired(now) && this.isOwned(entry.getKey())) {
+                next = entry;
+            }
+        }
+        if (next == null && storedKeys == null) {
+            loader = getCacheLoader(cache);
+            storedKeys = getStoredKeys(cache, loader);
+        }
+        while (next == null && storedKeys.hasNext()) {
+            Object key = storedKeys.next();
+            //entry activated meanwhile was already visited in data container
+            if (!this.isSessionKey(key) || dataContainer.containsKey(key) || !this.isOwned(key)) {
+                continue;
+            }
+            InternalCacheEntry entry = this.loadStored(key);
+            //null if removed or activated meanwhile
+            if (entry != null && entry.getValue() instanceof Map && !entry.isExpired(now)) {
+                next = entry;
+            }
+        }
+        return next != null;
+    }
+
+    private InternalCacheEntry loadStored(Object key) {
+        try {
+            return loader.load(key);
+        } catch (CacheLoaderException ex) {
+            throw new IllegalStateException("Can't read entry " + key + " of cache store of cache " + cache.getName(), ex);
+        }
+    }
+
+    /**
+     * True if entry of key is iterated, override to iterate other kinds of entries
+     */
+    boolean isSessionKey(Object key) {
+        return attributes ? SessionAttributes.isCacheId(key) : SessionMetaAttributes.isCacheId(key);
+    }
+
+    /**
+     * True if entry of key is iterated on local node, override to iterate replicated entries on every node
+     */
+    boolean isOwned(Object key) {
+        return isPrimaryOwner(cache, key);
+    }
+
+    /**
+     * Count session metadata entries owned by local node. Passivated entries are counted by keys, not loaded.
+     *
+     * @param cache         session metadata cache
+     * @param createdBefore count only sessions created before this time, passivated sessions are always counted
+     * @param excluded      metadata cache ids not counted, checked when entry is visited
+     * @return number of owned sessions
+     */
+    public static long countOwned(Cache<?, ?> cache, long createdBefore, Set<String> excluded) {
+        DataContainer dataContainer = cache.getAdvancedCache().getDataContainer();
+        long now = System.currentTimeMillis();
+        long count = 0;
+        for (InternalCacheEntry entry : dataContainer) {
+            if (SessionMetaAttributes.isCacheId(entry.getKey()) && entry.getValue() instanceof Map
+                    && !entry.isExpired(now) && isPrimaryOwner(cache, entry.getKey())) {
+                Object creationTime = ((Map<?, ?>) entry.getValue()).get(SessionMetaAttributes.CREATION_TIME);
+                if (creationTime instanceof Long && (Long) creationTime >= createdBefore) {
+                    continue;
+                }
+                if (!excluded.contains(entry.getKey())) {
+                    count++;
+                }
+            }
+        }
+
+        for (Iterator<Object> keys = getStoredKeys(cache, getCacheLoader(cache)); keys.hasNext(); ) {
+            Object key = keys.next();
+            if (SessionMetaAttributes.isCacheId(key) && !dataContainer.containsKey(key)
+                    && !excluded.contains(key) && isPrimaryOwner(cache, key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get keys of local cache store. Mapped session store iterates its index lazily,
+     * other stores return set of keys (entries aren't loaded).
+     *
+     * @param cache  cache
+     * @param loader cache store of cache, null - no store
+     * @return stored keys, empty if cache has no store
+     */
+    static Iterator<Object> getStoredKeys(Cache<?, ?> cache, CacheLoader loader) {
+        if (loader == null) {
+            return Collections.<Object>emptySet().iterator();
+        }
+        if (loader instanceof MappedSessionCacheStore) {
+            return ((MappedSessionCacheStore) loader).keyIterator();
+        }
+        try {
+            return loader.loadAllKeys(null).iterator();
+        } catch (CacheLoaderException ex) {
+            throw new IllegalStateException("Can't read keys of cache store of cache " + cache.getName(), ex);
+        }
+    }
+
+    private static CacheLoader getCacheLoader(Cache<?, ?> cache) {
+        CacheLoaderManager loaderManager = cache.getAdvancedCache().getComponentRegistry()
+                .getComponent(CacheLoaderManager.class);
+        return loaderManager == null || !loaderManager.isEnabled() ? null : loaderManager.getCacheLoader();
+    }
+
+    @Override
+    public InternalCacheEntry next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        InternalCacheEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Get session id of metadata or attributes entry
+     * @param entry metadata or attributes entry
+     * @return
+     */
+    public static String getSessionId(InternalCacheEntry entry) {
+        String cacheId = (String) entry.getKey();
+        return SessionAttributes.isCacheId(cacheId)
+                ? SessionAttributes.getSessionId(cacheId) : SessionMetaAttributes.getSessionId(cacheId);
+    }
+
+    /**
+     * Get metadata map of metadata entry
+     * @param entry metadata entry
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getMetadata(InternalCacheEntry entry) {
+        return (Map<String, Object>) entry.getValue();
+    }
+
+    /**
+     * True if local node is primary owner of key.
+     * Replicated cache - coordinator is primary owner of all keys. Local cache - always true.
+     *
+     * @param cache cache
+     * @param key   cache key
+     * @return
+     */
+    public static boolean isPrimaryOwner(Cache<?, ?> cache, Object key) {
+        Address localAddress = cache.getCacheManager().getAddress();
+        if (localAddress == null) {
+            return true;
+        }
+
+        DistributionManager dm = cache.getAdvancedCache().getDistributionManager();
+        if (dm == null) {
+            return cache.getCacheManager().isCoordinator();
+        }
+
+        return localAddress.equals(dm.getPrimaryLocation(key));
+    }
+}
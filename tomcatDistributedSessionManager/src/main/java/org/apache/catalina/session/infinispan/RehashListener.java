@@ -0,0 +1,95 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.DataRehashed;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryInvalidatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.DataRehashedEvent;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Record rehash of session metadata cache to statistics.
+ * Entries are counted incrementally while rehash runs: session metadata entries created by remote origin
+ * are received, metadata entries invalidated on this node are sent. Data container is never iterated.
+ * Values are approximate, sessions created or written by other nodes during rehash are counted too.
+ */
+@Listener(sync = true)
+public class RehashListener {
+
+    private final Log log = LogFactory.getLog(RehashListener.class);
+
+    private final RehashStatistics statistics;
+
+    private volatile boolean inProgress;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param statistics statistics to update
+     */
+    public RehashListener(RehashStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @DataRehashed
+    public synchronized void dataRehashed(DataRehashedEvent<String, Object> event) {
+        Cache<String, Object> cache = event.getCache();
+        long now = System.currentTimeMillis();
+        if (event.isPre()) {
+            received.set(0);
+            sent.set(0);
+            bytes.set(0);
+            inProgress = true;
+            statistics.start(now);
+            log.info("Rehash of cache " + cache.getName() + " started");
+            return;
+        }
+
+        inProgress = false;
+        statistics.finish(now, size(cache.getCacheManager().getMembers()), received.get(), sent.get(), bytes.get());
+        log.info("Rehash of cache " + cache.getName() + " finished. " + statistics);
+    }
+
+    @CacheEntryCreated
+    public void entryCreated(CacheEntryCreatedEvent<String, Object> event) {
+        if (inProgress && !event.isPre() && !event.isOriginLocal() && SessionMetaAttributes.isCacheId(event.getKey())) {
+            received.incrementAndGet();
+        }
+    }
+
+    @CacheEntryModified
+    public void entryModified(CacheEntryModifiedEvent<String, Object> event) {
+        //attributes of received session
+        if (inProgress && !event.isPre() && !event.isOriginLocal() && SessionAttributes.isCacheId(event.getKey())
+                && event.getValue() instanceof Map) {
+            bytes.addAndGet(SessionAttributes.getSessionSize((Map<?, ?>) event.getValue()));
+        }
+    }
+
+    @CacheEntryInvalidated
+    public void entryInvalidated(CacheEntryInvalidatedEvent<String, Object> event) {
+        if (inProgress && !event.isPre() && SessionMetaAttributes.isCacheId(event.getKey())) {
+            sent.incrementAndGet();
+        }
+    }
+
+    private static int size(Collection<?> members) {
+        return members != null ? members.size() : 0;
+    }
+}
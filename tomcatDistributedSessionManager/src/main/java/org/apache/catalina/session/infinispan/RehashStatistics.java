@@ -0,0 +1,138 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+/**
+ * Progress and cost of state transfer (rehash) of session cache on this node.
+ * Sessions received - session metadata entries which appeared on node during rehash,
+ * sessions sent - entries which were moved to other nodes. Bytes are serialized sizes of attribute values
+ * of received sessions, counted only if attributes are stored in the same cache as metadata.
+ */
+public class RehashStatistics {
+
+    private boolean inProgress;
+    private long rehashCount;
+    private long startedAt;
+    private int members;
+
+    private long lastDuration;
+    private long lastSessionsReceived;
+    private long lastSessionsSent;
+    private long lastBytesReceived;
+
+    private long totalDuration;
+    private long sessionsReceived;
+    private long sessionsSent;
+    private long bytesReceived;
+
+    /**
+     * Rehash started
+     *
+     * @param now current time
+     */
+    synchronized void start(long now) {
+        inProgress = true;
+        startedAt = now;
+    }
+
+    /**
+     * Rehash finished
+     *
+     * @param now      current time
+     * @param members  number of members after rehash
+     * @param received sessions received by this node
+     * @param sent     sessions moved to other nodes
+     * @param bytes    size of received sessions
+     */
+    synchronized void finish(long now, int members, long received, long sent, long bytes) {
+        long duration = inProgress ? now - startedAt : 0;
+        inProgress = false;
+        rehashCount++;
+        this.members = members;
+
+        lastDuration = duration;
+        lastSessionsReceived = received;
+        lastSessionsSent = sent;
+        lastBytesReceived = bytes;
+
+        totalDuration += duration;
+        sessionsReceived += received;
+        sessionsSent += sent;
+        bytesReceived += bytes;
+    }
+
+    /**
+     * True if rehash is running now
+     */
+    public synchronized boolean isInProgress() {
+        return inProgress;
+    }
+
+    /**
+     * Duration of running rehash or 0, milliseconds
+     */
+    public synchronized long getCurrentDuration() {
+        return inProgress ? System.currentTimeMillis() - startedAt : 0;
+    }
+
+    /**
+     * Number of finished rehashes
+     */
+    public synchronized long getRehashCount() {
+        return rehashCount;
+    }
+
+    /**
+     * Number of cluster members after last rehash
+     */
+    public synchronized int getMembers() {
+        return members;
+    }
+
+    /**
+     * Duration of last rehash, milliseconds
+     */
+    public synchronized long getLastDuration() {
+        return lastDuration;
+    }
+
+    public synchronized long getLastSessionsReceived() {
+        return lastSessionsReceived;
+    }
+
+    public synchronized long getLastSessionsSent() {
+        return lastSessionsSent;
+    }
+
+    public synchronized long getLastBytesReceived() {
+        return lastBytesReceived;
+    }
+
+    /**
+     * Duration of all rehashes, milliseconds
+     */
+    public synchronized long getTotalDuration() {
+        return totalDuration;
+    }
+
+    public synchronized long getSessionsReceived() {
+        return sessionsReceived;
+    }
+
+    public synchronized long getSessionsSent() {
+        return sessionsSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rehashes: " + rehashCount + (inProgress ? " (in progress)" : "")
+                + " members: " + members
+                + " last: " + lastDuration + " ms, received " + lastSessionsReceived + " sessions ("
+                + lastBytesReceived + " bytes), sent " + lastSessionsSent + " sessions";
+    }
+}
@@ -0,0 +1,200 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.StreamCorruptedException;
+import java.util.Date;
+
+/**
+ * Binary form of common scalar attribute values (Integer, Long, Boolean, short String, Date).
+ * Value is one tag byte followed by varint (Integer, Long, String length), modified UTF-8 chars (String)
+ * or 8 bytes (Date). Read without reflection and object stream.
+ * Java serialization stream starts with 0xAC, it is never used as tag.
+ */
+final class ScalarCodec {
+
+    /**
+     * First byte of Java serialization stream (STREAM_MAGIC)
+     */
+    static final int SERIALIZED = 0xAC;
+
+    private static final int TAG_INTEGER = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_TRUE = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_DATE = 6;
+
+    /**
+     * Longer strings are serialized
+     */
+    static final int MAX_STRING_LENGTH = 1024;
+
+    private ScalarCodec() {
+    }
+
+    /**
+     * Write scalar value
+     *
+     * @return binary form or null if value is not scalar
+     */
+    static byte[] write(Object value) {
+        Class<?> type = value.getClass();
+        if (type == Integer.class) {
+            return writeVarLong(TAG_INTEGER, zigZag((Integer) value));
+        }
+        if (type == Long.class) {
+            return writeVarLong(TAG_LONG, zigZag((Long) value));
+        }
+        if (type == Boolean.class) {
+            return new byte[]{(byte) ((Boolean) value ? TAG_TRUE : TAG_FALSE)};
+        }
+        if (type == String.class && ((String) value).length() <= MAX_STRING_LENGTH) {
+            return writeString((String) value);
+        }
+        if (type == Date.class) {
+            long time = ((Date) value).getTime();
+            byte[] bytes = new byte[9];
+            bytes[0] = TAG_DATE;
+            for (int i = 8; i > 0; i--) {
+                bytes[i] = (byte) time;
+                time >>>= 8;
+            }
+            return bytes;
+        }
+        return null;
+    }
+
+    /**
+     * True if bytes are written by scalar codec
+     */
+    static boolean isScalar(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] & 0xFF) != SERIALIZED;
+    }
+
+    /**
+     * Read scalar value
+     */
+    static Object read(byte[] bytes) throws StreamCorruptedException {
+        int[] position = {1};
+        switch (bytes[0]) {
+            case TAG_INTEGER:
+                return (int) unZigZag(readVarLong(bytes, position));
+            case TAG_LONG:
+                return unZigZag(readVarLong(bytes, position));
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_STRING:
+                return readString(bytes, position);
+            case TAG_DATE:
+                long time = 0;
+                for (int i = 1; i < 9; i++) {
+                    time = (time << 8) | (bytes[i] & 0xFF);
+                }
+                return new Date(time);
+            default:
+                throw new StreamCorruptedException("Invalid scalar attribute tag " + bytes[0]);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarLong(byte[] bytes, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static byte[] writeVarLong(int tag, long value) {
+        byte[] bytes = new byte[1 + varLongSize(value)];
+        bytes[0] = (byte) tag;
+        putVarLong(bytes, 1, value);
+        return bytes;
+    }
+
+    private static long readVarLong(byte[] bytes, int[] position) throws StreamCorruptedException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw new StreamCorruptedException("Truncated scalar attribute");
+            }
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Invalid varint in scalar attribute");
+    }
+
+    /**
+     * String as char count and modified UTF-8 chars, unpaired surrogates are preserved
+     */
+    private static byte[] writeString(String value) {
+        int length = value.length();
+        int utfLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            utfLength += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        byte[] bytes = new byte[1 + varLongSize(length) + utfLength];
+        bytes[0] = TAG_STRING;
+        int position = putVarLong(bytes, 1, length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                bytes[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    private static String readString(byte[] bytes, int[] position) throws StreamCorruptedException {
+        int length = (int) readVarLong(bytes, position);
+        char[] chars = new char[length];
+        int p = position[0];
+        try {
+            for (int i = 0; i < length; i++) {
+                int b = bytes[p++] & 0xFF;
+                if (b < 0x80) {
+                    chars[i] = (char) b;
+                } else if ((b & 0xE0) == 0xC0) {
+                    chars[i] = (char) (((b & 0x1F) << 6) | (bytes[p++] & 0x3F));
+                } else {
+                    chars[i] = (char) (((b & 0x0F) << 12) | ((bytes[p++] & 0x3F) << 6) | (bytes[p++] & 0x3F));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new StreamCorruptedException("Truncated scalar attribute");
+        }
+        return new String(chars);
+    }
+}
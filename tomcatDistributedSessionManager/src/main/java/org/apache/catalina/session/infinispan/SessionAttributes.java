@@ -3,10 +3,16 @@
 \* --------------------------------------------------------------*/
 package org.apache.catalina.session.infinispan;
 
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
 import org.infinispan.Cache;
 import org.infinispan.atomic.AtomicMapLookup;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,6 +25,9 @@ import java.util.Set;
  * Since: 6/25/12
  */
 public class SessionAttributes {
+
+    private static final Log log = LogFactory.getLog(SessionAttributes.class);
+
     /**
      * cache namespace
      */
@@ -28,15 +37,62 @@ public class SessionAttributes {
     private Cache<String, ?> attributesCache;
     private String cacheId;
 
+    /**
+     * Codec of attribute values, null - values are stored as they are
+     */
+    private AttributeCodec codec;
+
+    /**
+     * session size is checked on every write
+     */
+    private boolean sizeAccounting = false;
+
+    /**
+     * session size in bytes to log warning, 0 - no limit
+     */
+    private long sizeWarnLimit;
+
+    /**
+     * max session size in bytes, 0 - no limit
+     */
+    private long sizeMaxLimit;
+
     public SessionAttributes(Cache<String, ?> attributesCache, String sessionId) {
+        this(attributesCache, null, sessionId);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param attributesCache attributes cache
+     * @param codec           codec of attribute values, null - values are stored as they are
+     * @param sessionId       session id without jvmRoute
+     */
+    public SessionAttributes(Cache<String, ?> attributesCache, AttributeCodec codec, String sessionId) {
         this.attributesCache = attributesCache;
+        this.codec = codec;
         this.sessionId = sessionId;
         this.cacheId = this.createCacheId(sessionId);
     }
 
+    /**
+     * Check session size on every write. Session size is sum of serialized sizes of attribute values,
+     * it is computed from the same read of attributes map which is written, no size is stored.
+     *
+     * @param warnLimit session size in bytes to log warning, 0 - no limit
+     * @param maxLimit  max session size in bytes, larger writes are rejected, 0 - no limit
+     */
+    public void enableSizeAccounting(long warnLimit, long maxLimit) {
+        this.sizeAccounting = true;
+        this.sizeWarnLimit = warnLimit;
+        this.sizeMaxLimit = maxLimit;
+    }
+
     public void clear() {
-        Map<String, Object> attributes = getCachedAttributes();
-        attributes.clear();
+        Map<Object, Object> attributes = getExistingAttributes();
+        if (attributes != null) {
+            attributes.clear();
+        }
     }
 
     /**
@@ -51,36 +107,69 @@ public class SessionAttributes {
      * put new attribute value
      */
     public Object put(String key, Object value) {
-        Map<String, Object> attributes = getCachedAttributes();
+        Map<Object, Object> attributes = getCachedAttributes();
+        Object stored = this.encode(key, value);
+        Object nameKey = this.nameKey(key);
 
-        return attributes.put(key, value);
+        if (sizeAccounting) {
+            int size = this.storedSize(key, stored);
+            this.checkSize(key, size, attributes, nameKey);
+        }
+
+        return this.decode(key, attributes.put(nameKey, stored));
+    }
+
+    /**
+     * Check session size limit of attribute write without writing it, used before write is queued.
+     *
+     * @throws IllegalArgumentException if write would exceed max session size
+     */
+    public void checkSize(String key, Object value) {
+        if (!sizeAccounting || sizeMaxLimit <= 0 || value == null) {
+            return;
+        }
+        int size = this.storedSize(key, this.encode(key, value));
+        this.checkSize(key, size, getCachedAttributes(), this.findNameKey(key));
     }
 
     /**
      * get all attribute names
      */
     public Set<String> keys() {
-        Map<String, Object> attributes = getCachedAttributes();
+        Map<Object, Object> attributes = getExistingAttributes();
+        Set<String> names = new HashSet<String>();
+        if (attributes == null) {
+            return names;
+        }
+        for (Object key : attributes.keySet()) {
+            names.add(this.attributeName(key));
+        }
 
-        return attributes.keySet();
+        return names;
     }
 
     /**
      * Remove attribute from session
      */
     public Object remove(String key) {
-        Map<String, Object> attributes = getCachedAttributes();
+        Map<Object, Object> attributes = getExistingAttributes();
+        if (attributes == null) {
+            return null;
+        }
 
-        return attributes.remove(key);
+        return this.decode(key, attributes.remove(this.findNameKey(key)));
     }
 
     /**
      * Get attribute of distributed cache attributes
      */
     public Object get(String key) {
-        Map<String, Object> attributes = getCachedAttributes();
+        Map<Object, Object> attributes = getExistingAttributes();
+        if (attributes == null) {
+            return null;
+        }
 
-        return attributes.get(key);
+        return this.decode(key, attributes.get(this.findNameKey(key)));
     }
 
     /**
@@ -89,9 +178,24 @@ public class SessionAttributes {
      * @return
      */
     public Map<String, Object> getAll() {
-        Map<String, Object> attributes = getCachedAttributes();
+        return this.getAllIfExists();
+    }
+
+    /**
+     * Get all session attributes as Map, attributes entry is not created if it doesn't exist
+     *
+     * @return attributes, empty if session has no attributes entry
+     */
+    public Map<String, Object> getAllIfExists() {
+        Map<Object, Object> attributes = getExistingAttributes();
         Map<String, Object> attribs = new HashMap<String, Object>();
-        attribs.putAll(attributes);
+        if (attributes == null) {
+            return attribs;
+        }
+        for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            String name = this.attributeName(entry.getKey());
+            attribs.put(name, this.decode(name, entry.getValue()));
+        }
 
         return attribs;
     }
@@ -102,21 +206,158 @@ public class SessionAttributes {
      * @param attributes
      */
     public void putAll(Map<String, Object> attributes) {
-        Map<String, Object> attribs = getCachedAttributes();
-        attribs.putAll(attributes);
+        if (sizeAccounting) {
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                this.put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        Map<Object, Object> attribs = getCachedAttributes();
+        if (codec == null) {
+            attribs.putAll(attributes);
+            return;
+        }
+        Map<Object, Object> encoded = new HashMap<Object, Object>();
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            encoded.put(this.nameKey(entry.getKey()), this.encode(entry.getKey(), entry.getValue()));
+        }
+        attribs.putAll(encoded);
+    }
+
+    /**
+     * Key of attribute in cache for write
+     */
+    private Object nameKey(String key) {
+        return codec == null ? key : codec.nameKey(key);
+    }
+
+    /**
+     * Key of attribute in cache for read
+     */
+    private Object findNameKey(String key) {
+        return codec == null ? key : codec.findNameKey(key);
+    }
+
+    /**
+     * Attribute name of key in cache
+     */
+    private String attributeName(Object key) {
+        return codec == null ? (String) key : codec.attributeName(key);
+    }
+
+    /**
+     * Value stored in cache
+     */
+    private Object encode(String key, Object value) {
+        return codec == null || value == null ? value : codec.marshall(key, value);
+    }
+
+    /**
+     * Attribute value of value stored in cache
+     */
+    private Object decode(String key, Object stored) {
+        return codec == null ? stored : codec.unmarshall(key, stored);
+    }
+
+    /**
+     * Serialized size of value stored in cache, 0 if there is no value
+     */
+    private int storedSize(String key, Object stored) {
+        if (stored == null) {
+            return 0;
+        }
+        return stored instanceof MarshalledAttribute
+                ? ((MarshalledAttribute) stored).size() : serializedSize(key, stored);
+    }
+
+    /**
+     * Reject or log write making session larger than limits. Sizes of other attributes are read
+     * from one snapshot of attributes map.
+     *
+     * @param key        attribute name
+     * @param size       serialized size of new value
+     * @param attributes attributes map of session
+     * @param nameKey    key of attribute in attributes map
+     */
+    private void checkSize(String key, int size, Map<Object, Object> attributes, Object nameKey) {
+        long currentSize = 0;
+        long oldSize = 0;
+        for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            Object value = entry.getValue();
+            long entrySize = value instanceof MarshalledAttribute
+                    ? ((MarshalledAttribute) value).size() : this.storedSize(this.attributeName(entry.getKey()), value);
+            currentSize += entrySize;
+            if (entry.getKey().equals(nameKey)) {
+                oldSize = entrySize;
+            }
+        }
+        long sessionSize = currentSize - oldSize + size;
+        if (sizeMaxLimit > 0 && sessionSize > sizeMaxLimit) {
+            throw new IllegalArgumentException("Session size limit exceeded. Session id: " + sessionId
+                    + ", attribute: " + key + " (" + size + " bytes), session size: " + sessionSize
+                    + " bytes, limit: " + sizeMaxLimit + " bytes");
+        }
+        if (sizeWarnLimit > 0 && sessionSize > sizeWarnLimit && currentSize <= sizeWarnLimit) {
+            log.warn("Session size warning limit exceeded. Session id: " + sessionId
+                    + ", attribute: " + key + " (" + size + " bytes), session size: " + sessionSize + " bytes");
+        }
+    }
+
+    /**
+     * Sum of serialized sizes of attribute values stored in raw attributes map (cache entry value).
+     * Values not stored in serialized form are not counted.
+     *
+     * @param attributes attributes cache entry value
+     * @return size in bytes
+     */
+    static long getSessionSize(Map<?, ?> attributes) {
+        long size = 0;
+        for (Object value : attributes.values()) {
+            if (value instanceof MarshalledAttribute) {
+                size += ((MarshalledAttribute) value).size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Serialized size of attribute value in bytes. Value is serialized to counting stream, no buffer is allocated.
+     *
+     * @param key   attribute name, used in error message
+     * @param value attribute value
+     * @return size in bytes
+     */
+    static int serializedSize(String key, Object value) {
+        CountingOutputStream counter = new CountingOutputStream();
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(counter);
+            oos.writeObject(value);
+            oos.close();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Can't serialize session attribute " + key, ex);
+        }
+        return counter.count;
     }
 
     /**
      * get attributes reference to distributed cache
      */
-    private Map<String, Object> getCachedAttributes() {
-        //use atomic map to store one session attributes.
+    private Map<Object, Object> getCachedAttributes() {
+        //use atomic map to store one session attributes, keys are names or ids of attribute name dictionary
         //doesn't use distributed transaction, use <invocationBatching enabled="true"/> in _session_attr named cache
-        Map<String, Object> attributes = AtomicMapLookup.getAtomicMap(attributesCache, cacheId);
+        Map<Object, Object> attributes = AtomicMapLookup.getAtomicMap(attributesCache, cacheId);
 
         return attributes;
     }
 
+    /**
+     * get attributes reference to distributed cache, null if session has no attributes entry.
+     * Reads don't create entry, removed session isn't recreated by shell of other node.
+     */
+    private Map<Object, Object> getExistingAttributes() {
+        return AtomicMapLookup.getAtomicMap(attributesCache, cacheId, false);
+    }
+
     private String getCacheId() {
         return this.cacheId;
     }
@@ -129,17 +370,17 @@ public class SessionAttributes {
 
         //move attributes in cluster cache
 
-        Map<String, Object> oldCache = this.getCachedAttributes();
+        Map<Object, Object> oldCache = this.getCachedAttributes();
 
         String oldCacheId = this.cacheId;
 
         this.sessionId = id;
         this.cacheId = SessionAttributes.createCacheId(this.sessionId);
 
-        Map<String, Object> newCache = this.getCachedAttributes();
+        Map<Object, Object> newCache = this.getCachedAttributes();
 
         //move content to new cache
-        for ( String key : oldCache.keySet() ){
+        for ( Object key : oldCache.keySet() ){
             Object value = oldCache.get(key);
             newCache.put(key, value);
         }
@@ -160,4 +401,39 @@ public class SessionAttributes {
     public static String createCacheId(String sessionId) {
         return NAMESPACE + sessionId;
     }
+
+    /**
+     * Get session id from attributes cache key (remove cache namespace)
+     * @param cacheId attributes cache key
+     * @return
+     */
+    public static String getSessionId(String cacheId) {
+        return cacheId.substring(NAMESPACE.length());
+    }
+
+    /**
+     * True if cache id is attributes cache id
+     * @param cacheId cache key
+     * @return
+     */
+    public static boolean isCacheId(Object cacheId) {
+        return cacheId instanceof String && ((String) cacheId).startsWith(NAMESPACE);
+    }
+
+    /**
+     * Output stream counting written bytes only
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private int count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
 }
@@ -0,0 +1,103 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * Coalesce access time writes of simultaneous requests of one session on this node (browser loads page resources
+ * in parallel). Requests use one local session object, its metadata isn't read again while any of them is in flight.
+ * Only the first request writes access time, last and this access time are written in one batch when the last one
+ * ends. Attributes are not shared, every request reads them from cache as without the valve.
+ * <p/>
+ * Companion of StickySessionFailOverRewriteValve, add it after the rewrite valve. Requests are not coalesced
+ * with sessionLocking, which serializes requests of one session.
+ */
+public class SessionCoalescingValve extends ValveBase {
+
+    /**
+     * logger
+     */
+    private static org.apache.juli.logging.Log log = org.apache.juli.logging.LogFactory
+            .getLog(SessionCoalescingValve.class);
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    protected static final String info = "SessionCoalescingValve/1.0";
+
+    /**
+     * Return descriptive information about this implementation.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+    /**
+     * Join requested session to coalesced requests before request is processed.
+     * Session access is started here, it is ended when request is recycled.
+     * @param request
+     * @param response
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        String sessionId = request.getRequestedSessionId();
+        if (sessionId != null && sessionId.length() > 0 && request.getContext() != null) {
+            Manager manager = request.getContext().getManager();
+            if (manager instanceof InfinispanSessionManager
+                    && !((InfinispanSessionManager) manager).getSessionLocking()) {
+                Session session = manager.findSession(sessionId);
+                if (session instanceof InfinispanSession) {
+                    ((InfinispanSession) session).enableAccessCoalescing();
+                    request.getSessionInternal(false);
+                }
+            }
+        }
+
+        // Pass this request on to the next valve in our pipeline
+        getNext().invoke(request, response);
+    }
+
+    /**
+     * log valve started
+     * @exception LifecycleException
+     *                if this component detects a fatal error that prevents this
+     *                component from being used
+     */
+    public void startInternal() throws LifecycleException {
+
+        super.startInternal();
+
+        if (log.isInfoEnabled()) {
+            log.info(info + " started.");
+        }
+    }
+
+    /**
+     * log valve stopped
+     * @exception LifecycleException
+     *                if this component detects a fatal error that needs to be
+     *                reported
+     */
+    public void stopInternal() throws LifecycleException {
+
+        if (log.isInfoEnabled()){
+            log.info(info + " stopped.");
+        }
+        super.stopInternal();
+
+    }
+}
@@ -0,0 +1,58 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+
+/**
+ * Filter of cluster session listing. Evaluated on node which owns session metadata.
+ */
+public class SessionFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Filter accepting all sessions
+     */
+    public static final SessionFilter ALL = new SessionFilter(0, null);
+
+    private final long minIdleTime;
+    private final String attributeName;
+    private final String jvmRoute;
+
+    /**
+     * Constructor
+     *
+     * @param minIdleTime   minimal session idle time in milliseconds, 0 accepts all sessions
+     * @param attributeName session must contain attribute with this name, null accepts all sessions
+     */
+    public SessionFilter(long minIdleTime, String attributeName) {
+        this(minIdleTime, attributeName, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param minIdleTime   minimal session idle time in milliseconds, 0 accepts all sessions
+     * @param attributeName session must contain attribute with this name, null accepts all sessions
+     * @param jvmRoute      session must be created or taken over by node with this jvmRoute, null accepts all sessions
+     */
+    public SessionFilter(long minIdleTime, String attributeName, String jvmRoute) {
+        this.minIdleTime = minIdleTime;
+        this.attributeName = attributeName;
+        this.jvmRoute = jvmRoute;
+    }
+
+    public long getMinIdleTime() {
+        return minIdleTime;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    public String getJvmRoute() {
+        return jvmRoute;
+    }
+}
@@ -0,0 +1,71 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.AdvancedCache;
+import org.infinispan.atomic.AtomicHashMap;
+import org.infinispan.context.Flag;
+import org.infinispan.distexec.DistributedCallable;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores session entries of draining node on node which will own them after draining node leaves.
+ * Entries are written to the local cache (not replicated, ownership by current topology is not checked),
+ * same way as state transfer writes received entries. Entries already stored on target node are not overwritten.
+ */
+class SessionHandOffTask implements DistributedCallable<String, Object, Integer>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final HashMap<String, HashMap<Object, Object>> entries;
+
+    private final boolean attributes;
+
+    private transient Cache<String, Object> cache;
+
+    /**
+     * Constructor
+     *
+     * @param entries    cache key to copy of atomic map
+     * @param attributes true - entries of attributes cache, false - entries of session (metadata) cache
+     */
+    SessionHandOffTask(HashMap<String, HashMap<Object, Object>> entries, boolean attributes) {
+        this.entries = entries;
+        this.attributes = attributes;
+    }
+
+    @Override
+    public void setEnvironment(Cache<String, Object> cache, Set<String> inputKeys) {
+        this.cache = cache;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        Cache<String, Object> target = cache;
+        if (attributes) {
+            InfinispanSessionManager manager = SessionManagerRegistry.lookup(cache);
+            if (manager != null) {
+                target = manager.getAttributesCache();
+            }
+        }
+
+        AdvancedCache<String, Object> local = target.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL,
+                Flag.SKIP_REMOTE_LOOKUP, Flag.SKIP_OWNERSHIP_CHECK, Flag.SKIP_SHARED_CACHE_STORE);
+        int stored = 0;
+        for (Map.Entry<String, HashMap<Object, Object>> entry : entries.entrySet()) {
+            AtomicHashMap<Object, Object> map = new AtomicHashMap<Object, Object>();
+            map.putAll(entry.getValue());
+            map.commit();
+            if (local.putIfAbsent(entry.getKey(), map) == null) {
+                stored++;
+            }
+        }
+        return stored;
+    }
+}
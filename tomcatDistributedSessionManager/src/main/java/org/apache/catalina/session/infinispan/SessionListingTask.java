@@ -0,0 +1,153 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distexec.DistributedCallable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Returns next page of sessions owned by node. Node keeps position of listing between pages,
+ * every owned session is visited once per listing, page contains max pageSize sessions ordered by session id.
+ * Listing with attribute filter visits owned attributes entries, so attribute is checked locally
+ * and only small metadata of accepted sessions is read from its owner.
+ * Sessions moved by rehash during listing could be listed twice or missed.
+ */
+class SessionListingTask implements DistributedCallable<String, Object, ArrayList<SessionSummary>>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Position of listing not continued in this time is dropped, milliseconds
+     */
+    static final long LISTING_TIMEOUT = 300000L;
+
+    private final String listingId;
+    private final boolean first;
+    private final int pageSize;
+    private final SessionFilter filter;
+
+    private transient Cache<String, Object> cache;
+
+    /**
+     * Constructor
+     *
+     * @param listingId id of listing
+     * @param first     true - first page, listing starts
+     * @param pageSize  max number of sessions
+     * @param filter    session filter
+     */
+    SessionListingTask(String listingId, boolean first, int pageSize, SessionFilter filter) {
+        this.listingId = listingId;
+        this.first = first;
+        this.pageSize = pageSize;
+        this.filter = filter;
+    }
+
+    @Override
+    public void setEnvironment(Cache<String, Object> cache, Set<String> inputKeys) {
+        this.cache = cache;
+    }
+
+    @Override
+    public ArrayList<SessionSummary> call() throws Exception {
+        ArrayList<SessionSummary> page = new ArrayList<SessionSummary>();
+        InfinispanSessionManager manager = SessionManagerRegistry.lookup(cache);
+        if (manager == null) {
+            return page;
+        }
+
+        Listing listing;
+        if (first) {
+            listing = new Listing(filter.getAttributeName() != null
+                    ? new OwnedSessionEntries(manager.getAttributesCache(), true) : new OwnedSessionEntries(cache));
+            manager.getSessionListings().put(listingId, listing);
+        } else {
+            //finished or dropped after timeout
+            listing = manager.getSessionListings().get(listingId);
+            if (listing == null) {
+                return page;
+            }
+        }
+
+        synchronized (listing) {
+            long now = System.currentTimeMillis();
+            listing.lastUsed = now;
+            while (page.size() < pageSize && listing.entries.hasNext()) {
+                InternalCacheEntry entry = listing.entries.next();
+                String sessionId = OwnedSessionEntries.getSessionId(entry);
+                Map<String, Object> metadata = filter.getAttributeName() != null
+                        ? this.getAcceptedMetadata(manager, sessionId, entry) : OwnedSessionEntries.getMetadata(entry);
+                if (metadata != null && this.accept(metadata, now)) {
+                    page.add(new SessionSummary(sessionId, metadata, now));
+                }
+            }
+            if (!listing.entries.hasNext()) {
+                manager.getSessionListings().remove(listingId);
+            }
+        }
+
+        Collections.sort(page);
+        return page;
+    }
+
+    /**
+     * Check filter attribute in owned attributes entry and read metadata of session.
+     *
+     * @return metadata or null if attribute is missing or session was removed
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getAcceptedMetadata(InfinispanSessionManager manager, String sessionId,
+                                                    InternalCacheEntry attributesEntry) {
+        Object nameKey = manager.getAttributeCodec() != null
+                ? manager.getAttributeCodec().findNameKey(filter.getAttributeName()) : filter.getAttributeName();
+        if (nameKey == null || !((Map<?, ?>) attributesEntry.getValue()).containsKey(nameKey)) {
+            return null;
+        }
+        //metadata could be owned by other node, only small metadata map is transferred
+        Object metadata = cache.get(SessionMetaAttributes.createCacheId(sessionId));
+        return metadata instanceof Map ? (Map<String, Object>) metadata : null;
+    }
+
+    private boolean accept(Map<String, Object> metadata, long now) {
+        if (filter.getMinIdleTime() > 0 && SessionMetaAttributes.getIdleTime(metadata, now) < filter.getMinIdleTime()) {
+            return false;
+        }
+
+        if (filter.getJvmRoute() != null && !filter.getJvmRoute().equals(SessionMetaAttributes.getJvmRoute(metadata))) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Position of listing on node
+     */
+    static final class Listing {
+        final OwnedSessionEntries entries;
+
+        /**
+         * Time of last page, guarded by listing
+         */
+        long lastUsed = System.currentTimeMillis();
+
+        Listing(OwnedSessionEntries entries) {
+            this.entries = entries;
+        }
+
+        /**
+         * True if listing wasn't continued in timeout
+         */
+        synchronized boolean isExpired(long now) {
+            return now - lastUsed > LISTING_TIMEOUT;
+        }
+    }
+}
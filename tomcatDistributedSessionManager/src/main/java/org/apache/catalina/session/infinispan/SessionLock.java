@@ -0,0 +1,272 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster wide lock of one session.
+ * Lock is pessimistic infinispan lock of session lock key held by suspended transaction between
+ * session access() and endAccess(). Lock key is separated from metadata key, metadata are still updated
+ * during request without waiting for own lock.
+ * Cache must use PESSIMISTIC locking mode.
+ */
+class SessionLock {
+
+    private final Log log = LogFactory.getLog(SessionLock.class);
+
+    /**
+     * Shared cache namespace
+     */
+    private static final String NAMESPACE = "lock";
+
+    /**
+     * max pause between two lock attempts in milliseconds
+     */
+    private static final long MAX_BACKOFF = 100L;
+
+    private Cache<String, ?> cache;
+
+    /**
+     * max time to wait for lock in milliseconds
+     */
+    private long timeout;
+
+    /**
+     * locks held by this node, key is session id
+     */
+    private final Map<String, HeldLock> heldLocks = new ConcurrentHashMap<String, HeldLock>();
+
+    private final AtomicLong acquiredCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param cache   session cache, must be transactional with pessimistic locking
+     * @param timeout max time to wait for lock in milliseconds
+     */
+    public SessionLock(Cache<String, ?> cache, long timeout) {
+        this.cache = cache;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Acquire lock of session. Waits max timeout milliseconds.
+     *
+     * @param sessionId session id without jvmRoute
+     * @return true if locked, false if lock was not acquired in timeout
+     */
+    public boolean lock(String sessionId) {
+        HeldLock held = heldLocks.get(sessionId);
+        if (held != null && held.thread == Thread.currentThread()) {
+            //reentrant access from the same request thread
+            held.count++;
+            return true;
+        }
+
+        String cacheId = createCacheId(sessionId);
+        AdvancedCache<String, ?> lockCache = cache.getAdvancedCache()
+                .withFlags(Flag.ZERO_LOCK_ACQUISITION_TIMEOUT, Flag.FAIL_SILENTLY);
+        TransactionManager tm = cache.getAdvancedCache().getTransactionManager();
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        long backoff = 1L;
+
+        try {
+            //don't join transaction of application
+            Transaction outerTx = tm.suspend();
+            try {
+                while (true) {
+                    tm.begin();
+                    boolean locked = false;
+                    try {
+                        locked = lockCache.lock(cacheId);
+                    } finally {
+                        if (!locked) {
+                            tm.rollback();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (locked) {
+                        heldLocks.put(sessionId, new HeldLock(tm.suspend(), now));
+                        this.recordWait(now - start);
+                        return true;
+                    }
+
+                    if (now >= deadline) {
+                        timeoutCount.incrementAndGet();
+                        this.recordWait(now - start);
+                        log.warn("Session lock not acquired in " + timeout + "ms. Session id: " + sessionId);
+                        return false;
+                    }
+
+                    Thread.sleep(Math.min(backoff, deadline - now));
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                }
+            } finally {
+                if (outerTx != null) {
+                    tm.resume(outerTx);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            timeoutCount.incrementAndGet();
+            log.warn("Interrupted while waiting for session lock. Session id: " + sessionId);
+            return false;
+        } catch (Exception ex) {
+            throw new RuntimeException("Can't lock session " + sessionId, ex);
+        }
+    }
+
+    /**
+     * Release lock of session if held by current thread.
+     *
+     * @param sessionId session id without jvmRoute
+     */
+    public void unlock(String sessionId) {
+        HeldLock held = heldLocks.get(sessionId);
+        if (held == null || held.thread != Thread.currentThread()) {
+            return;
+        }
+
+        if (--held.count > 0) {
+            return;
+        }
+
+        heldLocks.remove(sessionId);
+        this.release(sessionId, held);
+    }
+
+    /**
+     * Release locks held longer than lease time. Protects cluster against locks
+     * never released because endAccess() was not called.
+     *
+     * @param leaseTime max lock hold time in milliseconds
+     * @return number of released locks
+     */
+    public int releaseExpired(long leaseTime) {
+        int released = 0;
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<String, HeldLock>> it = heldLocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, HeldLock> entry = it.next();
+            HeldLock held = entry.getValue();
+            if (now - held.since > leaseTime) {
+                it.remove();
+                log.warn("Releasing session lock held longer than " + leaseTime + "ms. Session id: " + entry.getKey());
+                this.release(entry.getKey(), held);
+                released++;
+            }
+        }
+
+        return released;
+    }
+
+    /**
+     * Finish lock transaction - releases cluster lock
+     */
+    private void release(String sessionId, HeldLock held) {
+        TransactionManager tm = cache.getAdvancedCache().getTransactionManager();
+        try {
+            Transaction outerTx = tm.suspend();
+            try {
+                tm.resume(held.tx);
+                tm.commit();
+            } finally {
+                if (outerTx != null) {
+                    tm.resume(outerTx);
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Can't release session lock. Session id: " + sessionId, ex);
+        }
+    }
+
+    private void recordWait(long wait) {
+        acquiredCount.incrementAndGet();
+        waitTime.addAndGet(wait);
+
+        long max = maxWaitTime.get();
+        while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    /**
+     * Number of lock requests, including timed out
+     */
+    public long getAcquiredCount() {
+        return acquiredCount.get();
+    }
+
+    /**
+     * Number of lock requests not acquired in timeout
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Sum of time spent waiting for locks in milliseconds
+     */
+    public long getWaitTime() {
+        return waitTime.get();
+    }
+
+    /**
+     * Longest time spent waiting for lock in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * Number of locks currently held by this node
+     */
+    public int getHeldCount() {
+        return heldLocks.size();
+    }
+
+    /**
+     * Get cache id. (add cache namespace of shared cache )
+     * @param sessionId
+     * @return
+     */
+    public static String createCacheId(String sessionId) {
+        return NAMESPACE + sessionId;
+    }
+
+    /**
+     * Lock transaction suspended between access() and endAccess()
+     */
+    private static class HeldLock {
+        private final Transaction tx;
+        private final Thread thread;
+        private final long since;
+        private int count = 1;
+
+        HeldLock(Transaction tx, long since) {
+            this.tx = tx;
+            this.thread = Thread.currentThread();
+            this.since = since;
+        }
+    }
+}
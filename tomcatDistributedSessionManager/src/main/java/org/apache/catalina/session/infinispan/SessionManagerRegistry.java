@@ -0,0 +1,74 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session managers of this JVM by session cache.
+ * Distributed tasks receive only cache instance on target node, registry is used to find
+ * session manager of the same web application.
+ */
+final class SessionManagerRegistry {
+
+    private static final Map<Key, InfinispanSessionManager> managers =
+            new ConcurrentHashMap<Key, InfinispanSessionManager>();
+
+    private SessionManagerRegistry() {
+    }
+
+    /**
+     * Register session manager of cache
+     */
+    public static void register(Cache<?, ?> cache, InfinispanSessionManager manager) {
+        managers.put(new Key(cache), manager);
+    }
+
+    /**
+     * Unregister session manager of cache
+     */
+    public static void unregister(Cache<?, ?> cache) {
+        managers.remove(new Key(cache));
+    }
+
+    /**
+     * Find session manager of cache
+     * @param cache session cache, could be any cache instance of the same name and cache manager
+     * @return manager or null if not registered
+     */
+    public static InfinispanSessionManager lookup(Cache<?, ?> cache) {
+        return managers.get(new Key(cache));
+    }
+
+    /**
+     * Cache identity - cache manager instance and cache name. Cache instances could be decorated.
+     */
+    private static final class Key {
+        private final EmbeddedCacheManager cacheManager;
+        private final String cacheName;
+
+        Key(Cache<?, ?> cache) {
+            this.cacheManager = cache.getCacheManager();
+            this.cacheName = cache.getName();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return cacheManager == other.cacheManager && cacheName.equals(other.cacheName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(cacheManager) + cacheName.hashCode();
+        }
+    }
+}
@@ -24,24 +24,29 @@ class SessionMetaAttributes {
      * The time this session was created, in milliseconds since midnight,
      * January 1, 1970 GMT.
      */
-    private static final String CREATION_TIME = "creationTime";
+    static final String CREATION_TIME = "creationTime";
 
     /**
      * The last accessed time for this Session.
      */
-    private static final String LAST_ACCESSED_TIME = "lastAccessedTime";
+    static final String LAST_ACCESSED_TIME = "lastAccessedTime";
 
     /**
      * The current accessed time for this session.
      */
-    private static final String THIS_ACCESSED_TIME = "thisAccessedTime";
+    static final String THIS_ACCESSED_TIME = "thisAccessedTime";
 
     /**
      * The maximum time interval, in seconds, between client requests before the
      * servlet container may invalidate this session. A negative time indicates
      * that the session should never time out.
      */
-    private static final String MAX_INACTIVE_INTERVAL = "maxInactiveInterval";
+    static final String MAX_INACTIVE_INTERVAL = "maxInactiveInterval";
+
+    /**
+     * jvmRoute of node which created session or took it over after failure of previous node.
+     */
+    static final String JVM_ROUTE = "jvmRoute";
 
     private String sessionId;
 
@@ -98,6 +103,47 @@ class SessionMetaAttributes {
         this.getCache().put( THIS_ACCESSED_TIME, thisAccessedTime );
     }
 
+    /**
+     * Set last and this accessed time in one batch, both changes are replicated by one write.
+     */
+    public void setAccessedTimes(long lastAccessedTime, long thisAccessedTime) {
+        boolean batch = cache.startBatch();
+        boolean success = false;
+        try {
+            Map<String, Object> c = this.getCache();
+            c.put( LAST_ACCESSED_TIME, lastAccessedTime );
+            c.put( THIS_ACCESSED_TIME, thisAccessedTime );
+            success = true;
+        } finally {
+            if (batch) {
+                cache.endBatch(success);
+            }
+        }
+    }
+
+    public String getJvmRoute() {
+        return getJvmRoute(this.getCache());
+    }
+
+    public void setJvmRoute(String jvmRoute) {
+        this.getCache().put( JVM_ROUTE, jvmRoute );
+    }
+
+    /**
+     * Get jvmRoute from raw metadata map (cache entry value), null if not known.
+     */
+    public static String getJvmRoute(Map<String, Object> metadata) {
+        Object jvmRoute = metadata.get(JVM_ROUTE);
+        return jvmRoute instanceof String ? (String) jvmRoute : null;
+    }
+
+    /**
+     * True if metadata entry exists in cache, entry is not created
+     */
+    public boolean exists() {
+        return AtomicMapLookup.getAtomicMap(cache, cacheId, false) != null;
+    }
+
     /**
      * Get one session metadata, set default values if not available.
      *
@@ -120,6 +166,50 @@ class SessionMetaAttributes {
     }
 
 
+    /**
+     * Get session idle time from raw metadata map (cache entry value) without creating local session.
+     * Uses same access time as session validation.
+     * @param metadata metadata cache entry value
+     * @param now current time in milliseconds
+     * @return idle time in milliseconds, 0 if access time is not known
+     */
+    static long getIdleTime(Map<?, ?> metadata, long now) {
+        Object accessed = InfinispanSession.LAST_ACCESS_AT_START
+                ? metadata.get(LAST_ACCESSED_TIME) : metadata.get(THIS_ACCESSED_TIME);
+        return accessed instanceof Long ? now - (Long) accessed : 0;
+    }
+
+    /**
+     * True if session described by raw metadata map exceeded max inactive interval.
+     * @param metadata metadata cache entry value
+     * @param now current time in milliseconds
+     * @return
+     */
+    static boolean isExpired(Map<?, ?> metadata, long now) {
+        Object maxInactive = metadata.get(MAX_INACTIVE_INTERVAL);
+        return maxInactive instanceof Integer && (Integer) maxInactive > 0
+                && getIdleTime(metadata, now) >= (Integer) maxInactive * 1000L;
+    }
+
+    /**
+     * True if cache key is session metadata key
+     * @param cacheId cache key
+     * @return
+     */
+    public static boolean isCacheId(Object cacheId) {
+        return cacheId instanceof String && ((String) cacheId).startsWith(NAMESPACE);
+    }
+
+    /**
+     * Get session id from metadata cache key (remove cache namespace)
+     * @param cacheId metadata cache key
+     * @return
+     */
+    public static String getSessionId(String cacheId) {
+        return cacheId.substring(NAMESPACE.length());
+    }
+
+
     /**
      * Set session id if changed
      */
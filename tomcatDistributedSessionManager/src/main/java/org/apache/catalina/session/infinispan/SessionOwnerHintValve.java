@@ -0,0 +1,181 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * Routing hint for load balancer in non-sticky mode. Tells which node is primary owner of session data
+ * in current consistent hash, so load balancer can send next request of session to the node with local data.
+ * <p/>
+ * Mode header - owner jvmRoute is sent in response header (headerName).
+ * Mode route - jvmRoute suffix of session id is changed to owner jvmRoute, load balancer routes by session cookie.
+ * <p/>
+ * Works only with InfinispanSessionManager in distributed cache mode, every node must have jvmRoute.
+ */
+public class SessionOwnerHintValve extends ValveBase {
+
+    /**
+     * logger
+     */
+    private static org.apache.juli.logging.Log log = org.apache.juli.logging.LogFactory
+            .getLog(SessionOwnerHintValve.class);
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    protected static final String info = "SessionOwnerHintValve/1.0";
+
+    public static final String MODE_HEADER = "header";
+
+    public static final String MODE_ROUTE = "route";
+
+    /**
+     * Hint mode: header or route
+     */
+    protected String mode = MODE_HEADER;
+
+    /**
+     * Name of response header with owner jvmRoute
+     */
+    protected String headerName = "X-Session-Owner";
+
+    private boolean routeMode = false;
+
+    /**
+     * Number of session ids changed to owner jvmRoute
+     */
+    private final AtomicLong routeChanges = new AtomicLong();
+
+    /**
+     * Return descriptive information about this implementation.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Set hint mode: header (default) or route.
+     */
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    /**
+     * Set name of response header with owner jvmRoute.
+     */
+    public void setHeaderName(String headerName) {
+        this.headerName = headerName;
+    }
+
+    /**
+     * Number of session ids changed to owner jvmRoute in route mode.
+     */
+    public long getRouteChanges() {
+        return routeChanges.get();
+    }
+
+    /**
+     * Add owner hint of requested session, or of session created by request if response is not committed
+     * @param request
+     * @param response
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        InfinispanSessionManager manager = getManager(request);
+        String sessionId = request.getRequestedSessionId();
+        if (manager != null && sessionId != null && sessionId.length() > 0) {
+            String ownerJvmRoute = manager.getOwnerJvmRoute(sessionId);
+            if (ownerJvmRoute != null) {
+                if (!routeMode) {
+                    response.setHeader(headerName, ownerJvmRoute);
+                } else if (!StickySessionFailOverRewriteValve.hasJvmRoute(sessionId, ownerJvmRoute)) {
+                    this.changeRoute(request, sessionId, ownerJvmRoute);
+                }
+            }
+        }
+
+        // Pass this request on to the next valve in our pipeline
+        getNext().invoke(request, response);
+
+        if (manager != null && !routeMode && !response.isCommitted()) {
+            Session session = request.getSessionInternal(false);
+            if (session != null && session.isValid() && session.getSession().isNew()) {
+                String ownerJvmRoute = manager.getOwnerJvmRoute(session.getIdInternal());
+                if (ownerJvmRoute != null) {
+                    response.setHeader(headerName, ownerJvmRoute);
+                }
+            }
+        }
+    }
+
+    private void changeRoute(Request request, String sessionId, String ownerJvmRoute) {
+        int index = sessionId.indexOf('.');
+        int length = index > 0 ? index : sessionId.length();
+        String newSessionId = new StringBuilder(length + 1 + ownerJvmRoute.length())
+                .append(sessionId, 0, length).append('.').append(ownerJvmRoute).toString();
+        if (log.isDebugEnabled()) {
+            log.debug("Session id " + sessionId + " changed to owner jvmRoute: " + newSessionId);
+        }
+        routeChanges.incrementAndGet();
+        request.changeSessionId(newSessionId);
+    }
+
+    private static InfinispanSessionManager getManager(Request request) {
+        Manager manager = request.getContext() == null ? null : request.getContext().getManager();
+        return manager instanceof InfinispanSessionManager ? (InfinispanSessionManager) manager : null;
+    }
+
+    /**
+     * log valve started
+     * @exception LifecycleException
+     *                if this component detects a fatal error that prevents this
+     *                component from being used
+     */
+    public void startInternal() throws LifecycleException {
+
+        super.startInternal();
+
+        routeMode = MODE_ROUTE.equalsIgnoreCase(mode);
+        if (log.isInfoEnabled()) {
+            log.info(info + " started. mode: " + (routeMode ? MODE_ROUTE : MODE_HEADER));
+        }
+    }
+
+    /**
+     * log valve stopped
+     * @exception LifecycleException
+     *                if this component detects a fatal error that needs to be
+     *                reported
+     */
+    public void stopInternal() throws LifecycleException {
+
+        if (log.isInfoEnabled()){
+            log.info(info + " stopped.");
+        }
+        super.stopInternal();
+
+    }
+}
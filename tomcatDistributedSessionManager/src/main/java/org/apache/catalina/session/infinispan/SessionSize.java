@@ -0,0 +1,65 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+
+/**
+ * Serialized size of one session or one session attribute.
+ */
+public class SessionSize implements Serializable, Comparable<SessionSize> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String sessionId;
+    private final String attributeName;
+    private final long size;
+
+    /**
+     * Constructor
+     *
+     * @param sessionId     session id without jvmRoute
+     * @param attributeName attribute name, null if size of whole session
+     * @param size          size in bytes
+     */
+    SessionSize(String sessionId, String attributeName, long size) {
+        this.sessionId = sessionId;
+        this.attributeName = attributeName;
+        this.size = size;
+    }
+
+    /**
+     * Session id without jvmRoute
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Attribute name, null if size of whole session
+     */
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    /**
+     * Serialized size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Larger size first
+     */
+    @Override
+    public int compareTo(SessionSize o) {
+        return size > o.size ? -1 : (size < o.size ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return attributeName == null ? sessionId + "=" + size : sessionId + "/" + attributeName + "=" + size;
+    }
+}
@@ -0,0 +1,77 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Largest sessions and attributes. Keeps only count largest items of each kind.
+ */
+public class SessionSizeReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int count;
+    private final List<SessionSize> sessions = new ArrayList<SessionSize>();
+    private final List<SessionSize> attributes = new ArrayList<SessionSize>();
+
+    /**
+     * Constructor
+     *
+     * @param count max number of sessions and attributes in report
+     */
+    SessionSizeReport(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Add size of session or attribute
+     */
+    void add(SessionSize size) {
+        List<SessionSize> list = size.getAttributeName() == null ? sessions : attributes;
+        list.add(size);
+        //trim lazily, not on every add
+        if (list.size() >= 2 * count) {
+            this.trim(list);
+        }
+    }
+
+    /**
+     * Add items of report computed by other node
+     */
+    void merge(SessionSizeReport other) {
+        for (SessionSize size : other.sessions) {
+            this.add(size);
+        }
+        for (SessionSize size : other.attributes) {
+            this.add(size);
+        }
+    }
+
+    private void trim(List<SessionSize> list) {
+        Collections.sort(list);
+        while (list.size() > count) {
+            list.remove(list.size() - 1);
+        }
+    }
+
+    /**
+     * Largest sessions, largest first
+     */
+    public List<SessionSize> getSessions() {
+        this.trim(sessions);
+        return Collections.unmodifiableList(sessions);
+    }
+
+    /**
+     * Largest attributes, largest first
+     */
+    public List<SessionSize> getAttributes() {
+        this.trim(attributes);
+        return Collections.unmodifiableList(attributes);
+    }
+}
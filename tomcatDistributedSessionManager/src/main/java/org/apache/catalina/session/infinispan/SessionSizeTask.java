@@ -0,0 +1,68 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distexec.DistributedCallable;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds largest sessions and attributes owned by one node. Sizes are computed by owner of session attributes
+ * from sizes of serialized attribute values, attributes are not deserialized.
+ */
+class SessionSizeTask implements DistributedCallable<String, Object, SessionSizeReport>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int count;
+
+    private transient Cache<String, Object> cache;
+
+    /**
+     * Constructor
+     *
+     * @param count max number of sessions and attributes in result
+     */
+    SessionSizeTask(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public void setEnvironment(Cache<String, Object> cache, Set<String> inputKeys) {
+        this.cache = cache;
+    }
+
+    @Override
+    public SessionSizeReport call() throws Exception {
+        SessionSizeReport report = new SessionSizeReport(count);
+
+        InfinispanSessionManager manager = SessionManagerRegistry.lookup(cache);
+        if (manager == null || manager.getAttributeCodec() == null) {
+            return report;
+        }
+        AttributeCodec codec = manager.getAttributeCodec();
+        OwnedSessionEntries attributes = new OwnedSessionEntries(manager.getAttributesCache(), true);
+        while (attributes.hasNext()) {
+            InternalCacheEntry entry = attributes.next();
+            String sessionId = OwnedSessionEntries.getSessionId(entry);
+            long sessionSize = 0;
+            for (Map.Entry<?, ?> attribute : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                if (attribute.getValue() instanceof MarshalledAttribute) {
+                    int size = ((MarshalledAttribute) attribute.getValue()).size();
+                    sessionSize += size;
+                    report.add(new SessionSize(sessionId, codec.attributeName(attribute.getKey()), size));
+                }
+            }
+            if (sessionSize > 0) {
+                report.add(new SessionSize(sessionId, null, sessionSize));
+            }
+        }
+
+        return report;
+    }
+}
@@ -0,0 +1,420 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.infinispan.Cache;
+import org.infinispan.atomic.AtomicMapLookup;
+import org.infinispan.container.entries.InternalCacheEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Local file snapshot of session entries owned by node and of all dictionaries. Written on shutdown, loaded into cache on startup,
+ * sessions survive restart of all cluster nodes.
+ * Blocks of entries are serialized (on write) and put to cache (on load) by parallel workers,
+ * file is written and read sequentially by one buffered stream.
+ * <p/>
+ * File: magic, blocks (int length, serialized entries), -1, CRC32 of preceding bytes.
+ * File without valid checksum (partially written) is not loaded.
+ */
+class SessionSnapshot {
+
+    private final Log log = LogFactory.getLog(SessionSnapshot.class);
+
+    private static final int MAGIC = 0x53534e31;
+
+    private static final int END = -1;
+
+    /**
+     * Number of entries in one block
+     */
+    private static final int BLOCK_SIZE = 500;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File file;
+    private final int threads;
+
+    /**
+     * Constructor
+     *
+     * @param file    snapshot file
+     * @param threads number of parallel workers
+     */
+    SessionSnapshot(File file, int threads) {
+        this.file = file;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Write session entries (metadata and attributes) of caches owned by local node,
+     * including entries passivated to cache store. Dictionary entries are written by every node.
+     * File is written to temporary file and renamed when complete.
+     *
+     * @param caches session caches, metadata and attributes could be in the same cache
+     * @return number of written entries
+     * @throws IOException
+     */
+    public int write(List<Cache<String, Object>> caches) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create directory of session snapshot " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), crc));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<byte[]> blocks = new ExecutorCompletionService<byte[]>(executor);
+        int pending = 0;
+        int count = 0;
+        try {
+            out.writeInt(MAGIC);
+            List<Object[]> block = new ArrayList<Object[]>(BLOCK_SIZE);
+            for (Cache<String, Object> cache : caches) {
+                //entries in memory and passivated entries
+                OwnedSessionEntries entries = new OwnedSessionEntries(cache) {
+                    @Override
+                    boolean isSessionKey(Object key) {
+                        return SessionSnapshot.isSessionKey(key);
+                    }
+
+                    @Override
+                    boolean isOwned(Object key) {
+                        //dictionaries are replicated, every snapshot must resolve ids of its attribute values
+                        return StringDictionary.isCacheId(key) || super.isOwned(key);
+                    }
+                };
+                while (entries.hasNext()) {
+                    InternalCacheEntry entry = entries.next();
+                    Object key = entry.getKey();
+                    //copy of atomic map, written by worker
+                    block.add(new Object[]{key, new HashMap<Object, Object>((Map<?, ?>) entry.getValue())});
+                    count++;
+                    if (block.size() == BLOCK_SIZE) {
+                        blocks.submit(new BlockWriter(block));
+                        block = new ArrayList<Object[]>(BLOCK_SIZE);
+                        pending++;
+                        for (; pending > 2 * threads; pending--) {
+                            writeBlock(out, blocks);
+                        }
+                    }
+                }
+            }
+            if (!block.isEmpty()) {
+                blocks.submit(new BlockWriter(block));
+                pending++;
+            }
+            for (; pending > 0; pending--) {
+                writeBlock(out, blocks);
+            }
+            out.writeInt(END);
+            out.writeLong(crc.getValue());
+            out.close();
+        } catch (IOException ex) {
+            out.close();
+            tmp.delete();
+            throw ex;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't replace session snapshot " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can't rename session snapshot " + tmp + " to " + file);
+        }
+        return count;
+    }
+
+    /**
+     * Load snapshot to caches. Session entries already existing in cluster are not overwritten,
+     * sessions expired while cluster was down are skipped. Snapshot is loaded only on cold start of cluster,
+     * see InfinispanSessionManager.doLoad.
+     *
+     * @param metadataCache   cache of session metadata
+     * @param attributesCache cache of session attributes
+     * @param dictionaryCache cache of dictionaries, null if dictionaries are not used
+     * @param classLoader     web application class loader
+     * @return number of loaded session metadata entries, -1 if file is missing or invalid
+     * @throws IOException
+     */
+    public int read(Cache<String, Object> metadataCache, Cache<String, Object> attributesCache,
+                    Cache<String, Object> dictionaryCache, ClassLoader classLoader) throws IOException {
+        if (!file.isFile()) {
+            return -1;
+        }
+        if (!this.verify()) {
+            log.warn("Session snapshot " + file + " is incomplete or corrupted, sessions are not loaded.");
+            return -1;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Integer> loaded = new ExecutorCompletionService<Integer>(executor);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        Set<String> expired = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        int pending = 0;
+        int count = 0;
+        try {
+            in.readInt();
+            for (int length = in.readInt(); length != END; length = in.readInt()) {
+                byte[] block = new byte[length];
+                in.readFully(block);
+                loaded.submit(new BlockLoader(block, metadataCache, attributesCache, dictionaryCache, classLoader,
+                        expired));
+                pending++;
+                for (; pending > 2 * threads; pending--) {
+                    count += take(loaded);
+                }
+            }
+            for (; pending > 0; pending--) {
+                count += take(loaded);
+            }
+        } finally {
+            executor.shutdownNow();
+            in.close();
+        }
+        //attributes of expired session loaded by other block before its metadata
+        for (String sessionId : expired) {
+            AtomicMapLookup.removeAtomicMap(attributesCache, SessionAttributes.createCacheId(sessionId));
+        }
+        if (!expired.isEmpty()) {
+            log.info("Expired sessions of snapshot " + file + " skipped: " + expired.size());
+        }
+        return count;
+    }
+
+    /**
+     * True if file is complete and checksum is valid
+     */
+    private boolean verify() throws IOException {
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), crc));
+        try {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int length = in.readInt(); length != END; length = in.readInt()) {
+                if (length < 0) {
+                    return false;
+                }
+                while (length > 0) {
+                    int read = Math.min(length, buffer.length);
+                    in.readFully(buffer, 0, read);
+                    length -= read;
+                }
+            }
+            long expected = crc.getValue();
+            return in.readLong() == expected;
+        } catch (EOFException ex) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out, CompletionService<byte[]> blocks) throws IOException {
+        byte[] block = take(blocks);
+        out.writeInt(block.length);
+        out.write(block);
+    }
+
+    private static <T> T take(CompletionService<T> service) throws IOException {
+        try {
+            return service.take().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Session snapshot interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Session snapshot failed: " + ex.getCause(), ex.getCause());
+        }
+    }
+
+    private static boolean isSessionKey(Object key) {
+        return SessionMetaAttributes.isCacheId(key) || SessionAttributes.isCacheId(key)
+                || StringDictionary.isCacheId(key);
+    }
+
+    /**
+     * Serialize block of entries
+     */
+    private static class BlockWriter implements Callable<byte[]> {
+        private final List<Object[]> entries;
+
+        BlockWriter(List<Object[]> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(BLOCK_SIZE * 256);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeInt(entries.size());
+            for (Object[] entry : entries) {
+                out.writeUTF((String) entry[0]);
+                out.writeObject(entry[1]);
+            }
+            out.close();
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Deserialize block of entries and put them to cache in one batch per cache
+     */
+    private static class BlockLoader implements Callable<Integer> {
+        private final byte[] block;
+        private final Cache<String, Object> metadataCache;
+        private final Cache<String, Object> attributesCache;
+        private final Cache<String, Object> dictionaryCache;
+        private final ClassLoader classLoader;
+
+        /**
+         * Ids of expired sessions of snapshot, shared by loaders
+         */
+        private final Set<String> expired;
+
+        BlockLoader(byte[] block, Cache<String, Object> metadataCache, Cache<String, Object> attributesCache,
+                    Cache<String, Object> dictionaryCache, ClassLoader classLoader, Set<String> expired) {
+            this.block = block;
+            this.metadataCache = metadataCache;
+            this.attributesCache = attributesCache;
+            this.dictionaryCache = dictionaryCache;
+            this.classLoader = classLoader;
+            this.expired = expired;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Integer call() throws IOException, ClassNotFoundException {
+            Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+            Map<String, Map<String, Object>> attributes = new HashMap<String, Map<String, Object>>();
+            Map<String, Map<String, Object>> dictionaries = new HashMap<String, Map<String, Object>>();
+
+            long now = System.currentTimeMillis();
+            ObjectInputStream in = classLoader != null
+                    ? new CustomObjectInputStream(new ByteArrayInputStream(block), classLoader)
+                    : new ObjectInputStream(new ByteArrayInputStream(block));
+            try {
+                for (int i = in.readInt(); i > 0; i--) {
+                    String key = in.readUTF();
+                    Map<String, Object> value = (Map<String, Object>) in.readObject();
+                    if (SessionMetaAttributes.isCacheId(key)) {
+                        if (SessionMetaAttributes.isExpired(value, now)) {
+                            expired.add(SessionMetaAttributes.getSessionId(key));
+                        } else {
+                            metadata.put(key, value);
+                        }
+                    } else if (StringDictionary.isCacheId(key)) {
+                        dictionaries.put(key, value);
+                    } else {
+                        attributes.put(key, value);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            if (dictionaryCache != null) {
+                merge(dictionaryCache, dictionaries);
+            }
+            for (Iterator<String> keys = attributes.keySet().iterator(); keys.hasNext(); ) {
+                if (expired.contains(SessionAttributes.getSessionId(keys.next()))) {
+                    keys.remove();
+                }
+            }
+            put(attributesCache, attributes);
+            return put(metadataCache, metadata);
+        }
+
+        /**
+         * Add dictionary entries missing in cluster, ids of dictionary don't change.
+         * Dictionary is locked as in StringDictionary, so id registered meanwhile by other node is kept.
+         */
+        private static void merge(Cache<String, Object> cache, Map<String, Map<String, Object>> entries) {
+            if (entries.isEmpty()) {
+                return;
+            }
+            boolean success = false;
+            cache.startBatch();
+            try {
+                for (Map.Entry<String, Map<String, Object>> entry : entries.entrySet()) {
+                    cache.getAdvancedCache().lock(entry.getKey());
+                    Map<Object, Object> target = AtomicMapLookup.getAtomicMap(cache, entry.getKey());
+                    //keys of dictionary are ids
+                    for (Map.Entry<?, ?> item : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                        if (!target.containsKey(item.getKey())) {
+                            target.put(item.getKey(), item.getValue());
+                        }
+                    }
+                }
+                success = true;
+            } finally {
+                cache.endBatch(success);
+            }
+        }
+
+        private static int put(Cache<String, Object> cache, Map<String, Map<String, Object>> entries) {
+            int count = 0;
+            if (entries.isEmpty()) {
+                return count;
+            }
+            boolean success = false;
+            cache.startBatch();
+            try {
+                for (Map.Entry<String, Map<String, Object>> entry : entries.entrySet()) {
+                    Map<String, Object> target = AtomicMapLookup.getAtomicMap(cache, entry.getKey());
+                    //session created or changed after snapshot is newer
+                    if (target.isEmpty()) {
+                        target.putAll(entry.getValue());
+                        count++;
+                    }
+                }
+                success = true;
+            } finally {
+                cache.endBatch(success);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+
+/**
+ * Session statistics of one cluster node or merged statistics of whole cluster.
+ * Session counts are computed from metadata entries owned by node, expired counts from node session managers.
+ */
+public class SessionStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Sessions created in this period are used to compute create rate, milliseconds
+     */
+    static final long CREATE_RATE_PERIOD = 60000L;
+
+    private int nodes;
+    private long activeSessions;
+    private long timedOutSessions;
+    private long aliveTimeSum;
+    private long maxAliveTime;
+    private long recentlyCreated;
+    private long expiredSessions;
+    private long expiredAliveTimeSum;
+    private long computedAt = System.currentTimeMillis();
+
+    /**
+     * Add one session metadata
+     *
+     * @param creationTime session creation time
+     * @param timedOut     session exceeded max inactive interval, but was not expired yet
+     * @param now          current time
+     */
+    void addSession(long creationTime, boolean timedOut, long now) {
+        long aliveTime = now - creationTime;
+
+        activeSessions++;
+        aliveTimeSum += aliveTime;
+        maxAliveTime = Math.max(maxAliveTime, aliveTime);
+        if (timedOut) {
+            timedOutSessions++;
+        }
+        if (aliveTime <= CREATE_RATE_PERIOD) {
+            recentlyCreated++;
+        }
+    }
+
+    /**
+     * Add expired sessions statistic of node session manager
+     *
+     * @param expired              number of expired sessions
+     * @param averageAliveTime     average alive time of expired sessions in seconds
+     */
+    void addExpired(long expired, long averageAliveTime) {
+        expiredSessions += expired;
+        expiredAliveTimeSum += expired * averageAliveTime;
+    }
+
+    /**
+     * Add statistics of other node
+     */
+    void merge(SessionStatistics other) {
+        nodes += Math.max(1, other.nodes);
+        activeSessions += other.activeSessions;
+        timedOutSessions += other.timedOutSessions;
+        aliveTimeSum += other.aliveTimeSum;
+        maxAliveTime = Math.max(maxAliveTime, other.maxAliveTime);
+        recentlyCreated += other.recentlyCreated;
+        expiredSessions += other.expiredSessions;
+        expiredAliveTimeSum += other.expiredAliveTimeSum;
+    }
+
+    /**
+     * Number of nodes which provided statistics
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Number of sessions stored in cluster
+     */
+    public long getActiveSessions() {
+        return activeSessions;
+    }
+
+    /**
+     * Number of stored sessions exceeding max inactive interval not yet expired by any node
+     */
+    public long getTimedOutSessions() {
+        return timedOutSessions;
+    }
+
+    /**
+     * Average age of stored sessions in seconds
+     */
+    public long getAverageAge() {
+        return activeSessions == 0 ? 0 : aliveTimeSum / activeSessions / 1000;
+    }
+
+    /**
+     * Age of the oldest stored session in seconds
+     */
+    public long getMaxAge() {
+        return maxAliveTime / 1000;
+    }
+
+    /**
+     * Sessions created per minute, computed from sessions created during last minute which are still stored
+     */
+    public long getCreateRate() {
+        return recentlyCreated * 60000L / CREATE_RATE_PERIOD;
+    }
+
+    /**
+     * Number of sessions expired by all nodes
+     */
+    public long getExpiredSessions() {
+        return expiredSessions;
+    }
+
+    /**
+     * Average alive time of expired sessions in seconds
+     */
+    public long getExpiredAverageAliveTime() {
+        return expiredSessions == 0 ? 0 : expiredAliveTimeSum / expiredSessions;
+    }
+
+    /**
+     * Time when statistics were computed
+     */
+    public long getComputedAt() {
+        return computedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionStatistics[nodes=" + nodes + ", activeSessions=" + activeSessions
+                + ", timedOutSessions=" + timedOutSessions + ", averageAge=" + this.getAverageAge()
+                + ", createRate=" + this.getCreateRate() + ", expiredSessions=" + expiredSessions + "]";
+    }
+}
@@ -0,0 +1,51 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.session.ManagerBase;
+import org.infinispan.Cache;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distexec.DistributedCallable;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes session statistics of one node. Executed on every cluster node,
+ * only metadata of sessions owned by node are scanned (map), results are merged by caller (reduce).
+ */
+class SessionStatisticsTask implements DistributedCallable<String, Object, SessionStatistics>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient Cache<String, Object> cache;
+
+    @Override
+    public void setEnvironment(Cache<String, Object> cache, Set<String> inputKeys) {
+        this.cache = cache;
+    }
+
+    @Override
+    public SessionStatistics call() throws Exception {
+        SessionStatistics statistics = new SessionStatistics();
+        long now = System.currentTimeMillis();
+
+        OwnedSessionEntries entries = new OwnedSessionEntries(cache);
+        while (entries.hasNext()) {
+            Map<String, Object> metadata = OwnedSessionEntries.getMetadata(entries.next());
+            Object creationTime = metadata.get(SessionMetaAttributes.CREATION_TIME);
+            if (creationTime instanceof Long) {
+                statistics.addSession((Long) creationTime, SessionMetaAttributes.isExpired(metadata, now), now);
+            }
+        }
+
+        ManagerBase manager = SessionManagerRegistry.lookup(cache);
+        if (manager != null) {
+            statistics.addExpired(manager.getExpiredSessions(), manager.getSessionAverageAliveTime());
+        }
+
+        return statistics;
+    }
+}
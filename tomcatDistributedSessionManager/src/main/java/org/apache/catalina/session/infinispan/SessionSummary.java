@@ -0,0 +1,101 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Lightweight description of one session stored in cluster. Contains only metadata, no session attributes.
+ */
+public class SessionSummary implements Serializable, Comparable<SessionSummary> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String sessionId;
+    private final long creationTime;
+    private final long lastAccessedTime;
+    private final long idleTime;
+    private final int maxInactiveInterval;
+    private final String jvmRoute;
+
+    /**
+     * Create summary from raw metadata cache entry value
+     *
+     * @param sessionId session id without jvmRoute
+     * @param metadata  metadata map
+     * @param now       current time
+     */
+    SessionSummary(String sessionId, Map<String, Object> metadata, long now) {
+        this.sessionId = sessionId;
+        this.creationTime = longValue(metadata.get(SessionMetaAttributes.CREATION_TIME));
+        this.lastAccessedTime = longValue(metadata.get(SessionMetaAttributes.LAST_ACCESSED_TIME));
+        this.idleTime = SessionMetaAttributes.getIdleTime(metadata, now);
+        Object maxInactive = metadata.get(SessionMetaAttributes.MAX_INACTIVE_INTERVAL);
+        this.maxInactiveInterval = maxInactive instanceof Integer ? (Integer) maxInactive : -1;
+        this.jvmRoute = SessionMetaAttributes.getJvmRoute(metadata);
+    }
+
+    /**
+     * Create summary of local session
+     */
+    SessionSummary(String sessionId, long creationTime, long lastAccessedTime, long idleTime, int maxInactiveInterval) {
+        this.sessionId = sessionId;
+        this.creationTime = creationTime;
+        this.lastAccessedTime = lastAccessedTime;
+        this.idleTime = idleTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.jvmRoute = null;
+    }
+
+    private static long longValue(Object value) {
+        return value instanceof Long ? (Long) value : 0L;
+    }
+
+    /**
+     * Session id without jvmRoute
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    /**
+     * Idle time in milliseconds when summary was created
+     */
+    public long getIdleTime() {
+        return idleTime;
+    }
+
+    /**
+     * Max inactive interval in seconds
+     */
+    public int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    /**
+     * jvmRoute of node which created or took over session, null if not known
+     */
+    public String getJvmRoute() {
+        return jvmRoute;
+    }
+
+    @Override
+    public int compareTo(SessionSummary o) {
+        return sessionId.compareTo(o.sessionId);
+    }
+
+    @Override
+    public String toString() {
+        return sessionId + "[idle=" + idleTime / 1000 + "s, maxInactive=" + maxInactiveInterval + "s]";
+    }
+}
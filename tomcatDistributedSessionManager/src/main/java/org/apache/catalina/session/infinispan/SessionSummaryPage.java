@@ -0,0 +1,40 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of cluster session listing. Sessions of page are ordered by session id.
+ */
+public class SessionSummaryPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<SessionSummary> sessions;
+    private final String nextCursor;
+
+    /**
+     * Constructor
+     *
+     * @param sessions   sessions of page
+     * @param nextCursor cursor of next page, null if this is the last page
+     */
+    public SessionSummaryPage(List<SessionSummary> sessions, String nextCursor) {
+        this.sessions = sessions;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<SessionSummary> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Cursor to get next page, null if there are no more sessions
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,137 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.Context;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read only view of session passed to cluster listeners on owner of session, no local session is created.
+ * Metadata are copied to event when it is published. Destroyed session is already removed from cache,
+ * its distributed attributes are copied to event, attributes of other sessions are read from cache on first access.
+ */
+@SuppressWarnings("deprecation")
+class SessionView implements HttpSession {
+
+    private final ClusterSessionEvent event;
+    private final Context context;
+    private final SessionAttributes sessionAttributes;
+    private Map<String, Object> attributes;
+
+    /**
+     * Constructor
+     *
+     * @param event             session event
+     * @param context           application context
+     * @param sessionAttributes attributes of session in cache, null - destroyed session, attributes are in event
+     */
+    SessionView(ClusterSessionEvent event, Context context, SessionAttributes sessionAttributes) {
+        this.event = event;
+        this.context = context;
+        this.sessionAttributes = sessionAttributes;
+        if (event.getAttributes() != null || sessionAttributes == null) {
+            this.attributes = event.getAttributes() == null
+                    ? Collections.<String, Object>emptyMap() : event.getAttributes();
+        }
+    }
+
+    private synchronized Map<String, Object> getAttributes() {
+        if (attributes == null) {
+            attributes = sessionAttributes.getAllIfExists();
+        }
+        return attributes;
+    }
+
+    @Override
+    public long getCreationTime() {
+        return event.getCreationTime();
+    }
+
+    @Override
+    public String getId() {
+        return event.getSessionId();
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+        return event.getLastAccessedTime();
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return context.getServletContext();
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+        throw new IllegalStateException("Session " + getId() + " of listener event is read only");
+    }
+
+    @Override
+    public int getMaxInactiveInterval() {
+        return event.getMaxInactiveInterval();
+    }
+
+    @Override
+    public javax.servlet.http.HttpSessionContext getSessionContext() {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return this.getAttributes().get(name);
+    }
+
+    @Override
+    public Object getValue(String name) {
+        return getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(new HashMap<String, Object>(this.getAttributes()).keySet());
+    }
+
+    @Override
+    public String[] getValueNames() {
+        Map<String, Object> attributes = this.getAttributes();
+        return attributes.keySet().toArray(new String[attributes.size()]);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        throw new IllegalStateException("Session " + getId() + " of listener event is read only");
+    }
+
+    @Override
+    public void putValue(String name, Object value) {
+        setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        throw new IllegalStateException("Session " + getId() + " of listener event is read only");
+    }
+
+    @Override
+    public void removeValue(String name) {
+        removeAttribute(name);
+    }
+
+    @Override
+    public void invalidate() {
+        throw new IllegalStateException("Session " + getId() + " of listener event is read only");
+    }
+
+    @Override
+    public boolean isNew() {
+        return false;
+    }
+}
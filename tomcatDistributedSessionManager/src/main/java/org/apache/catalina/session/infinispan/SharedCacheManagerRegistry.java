@@ -0,0 +1,94 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.infinispan.manager.DefaultCacheManager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Cache managers shared by session managers of all web applications in this JVM.
+ * One cache manager (one JGroups channel, one set of thread pools) per configuration,
+ * every web application uses its own named cache. Cache manager is stopped when
+ * last session manager releases it.
+ */
+final class SharedCacheManagerRegistry {
+
+    private static final Log log = LogFactory.getLog(SharedCacheManagerRegistry.class);
+
+    private static final Map<String, SharedCacheManager> cacheManagers = new HashMap<String, SharedCacheManager>();
+
+    private SharedCacheManagerRegistry() {
+    }
+
+    /**
+     * Creates cache manager if it is not shared yet
+     */
+    interface CacheManagerFactory {
+        DefaultCacheManager create() throws Exception;
+    }
+
+    /**
+     * Get shared cache manager, create it if it doesn't exist.
+     * Cache manager is created with class loader of session manager, not web application class loader,
+     * so shared components don't keep web application loaded after undeploy.
+     *
+     * @param key     configuration identity, e.g. config file path
+     * @param factory creates cache manager
+     * @return shared cache manager
+     * @throws Exception if cache manager can't be created
+     */
+    public static synchronized DefaultCacheManager acquire(String key, CacheManagerFactory factory) throws Exception {
+        SharedCacheManager shared = cacheManagers.get(key);
+        if (shared == null) {
+            Thread thread = Thread.currentThread();
+            ClassLoader webappClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(SharedCacheManagerRegistry.class.getClassLoader());
+            try {
+                shared = new SharedCacheManager(factory.create());
+            } finally {
+                thread.setContextClassLoader(webappClassLoader);
+            }
+            cacheManagers.put(key, shared);
+            log.info("Shared infinispan cache manager created. Configuration: " + key);
+        }
+        shared.references++;
+        return shared.cacheManager;
+    }
+
+    /**
+     * Release shared cache manager, stop it if it is not used by any session manager.
+     *
+     * @param cacheManager cache manager returned by acquire
+     */
+    public static synchronized void release(DefaultCacheManager cacheManager) {
+        Iterator<Map.Entry<String, SharedCacheManager>> it = cacheManagers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, SharedCacheManager> entry = it.next();
+            SharedCacheManager shared = entry.getValue();
+            if (shared.cacheManager != cacheManager) {
+                continue;
+            }
+            if (--shared.references == 0) {
+                it.remove();
+                log.info("Stopping shared infinispan cache manager. Configuration: " + entry.getKey());
+                cacheManager.stop();
+            }
+            return;
+        }
+    }
+
+    private static final class SharedCacheManager {
+        private final DefaultCacheManager cacheManager;
+        private int references = 0;
+
+        SharedCacheManager(DefaultCacheManager cacheManager) {
+            this.cacheManager = cacheManager;
+        }
+    }
+}
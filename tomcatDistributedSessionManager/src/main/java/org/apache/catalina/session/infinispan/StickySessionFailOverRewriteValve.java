@@ -1,12 +1,18 @@
 package org.apache.catalina.session.infinispan;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.Engine;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Manager;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
@@ -23,7 +29,27 @@ public class StickySessionFailOverRewriteValve extends ValveBase {
      * The descriptive information about this implementation.
      */
     protected static final String info = "StickySessionFailOverRewriteValve/1.0";
-    
+
+    /**
+     * JvmRoute of enclosing Engine resolved on start, null - rewrite disabled
+     */
+    private volatile String jvmRoute;
+
+    /**
+     * Max number of previous jvmRoutes counted separately, previous jvmRoute comes from client
+     */
+    static final int MAX_COUNTED_ROUTES = 100;
+
+    /**
+     * Key of rewrites of previous jvmRoutes over the limit
+     */
+    public static final String OTHER_ROUTES = "other";
+
+    /**
+     * Number of rewritten session ids per previous jvmRoute, max MAX_COUNTED_ROUTES routes and OTHER_ROUTES
+     */
+    private final ConcurrentMap<String, AtomicLong> rewrites = new ConcurrentHashMap<String, AtomicLong>();
+
     /**
      * Return descriptive information about this implementation.
      */
@@ -41,22 +67,35 @@ public class StickySessionFailOverRewriteValve extends ValveBase {
      * @throws ServletException
      */
     public void invoke(Request request, Response response) throws IOException, ServletException {
-        String localJvmRoute = this.getJvmRoute();
+        String localJvmRoute = this.jvmRoute;
         String requestSessionId = request.getRequestedSessionId();
-        boolean performRewrite = localJvmRoute != null && localJvmRoute.length() > 0 
-                && requestSessionId != null && requestSessionId.length() > 0;
-                
-        if ( performRewrite && !requestSessionId.endsWith(localJvmRoute)){
+        boolean performRewrite = localJvmRoute != null && requestSessionId != null
+                && requestSessionId.length() > 0;
+
+        if ( performRewrite && !hasJvmRoute(requestSessionId, localJvmRoute)){
             this.rewriteSessionId(request, response, requestSessionId, localJvmRoute);
         }
         // Pass this request on to the next valve in our pipeline
         getNext().invoke(request, response);
     }
 
+    /**
+     * True if session id ends with "." and jvmRoute. Compares in place, nothing is allocated.
+     *
+     * @param sessionId request session id
+     * @param jvmRoute  local jvmRoute
+     */
+    static boolean hasJvmRoute(String sessionId, String jvmRoute) {
+        int routeStart = sessionId.length() - jvmRoute.length();
+        return routeStart > 0 && sessionId.charAt(routeStart - 1) == '.'
+                && sessionId.regionMatches(routeStart, jvmRoute, 0, jvmRoute.length());
+    }
+
     /**
      * Change session id in request to use actual tomcat server
-     * after original node failed.
-     * 
+     * after original node failed. Session id without jvmRoute is not changed.
+     * InfinispanSessionManager is notified to prefetch session.
+     *
      * @param request
      * @param response
      * @param sessionId       request sessionId ( including previous node jvmRoute)
@@ -64,17 +103,64 @@ public class StickySessionFailOverRewriteValve extends ValveBase {
      */
     protected void rewriteSessionId(
             Request request, Response response,String sessionId, String localJvmRoute) {
+        int index = sessionId.indexOf('.');
+        if (index <= 0) {
+            return;
+        }
         if (log.isDebugEnabled()) {
             log.debug("SessionId must be rewritten. SessionId: " + sessionId + " local jvmRoute: " + localJvmRoute);
         }
-        
-        String newSessionId = sessionId;
-        int index = sessionId.indexOf(".");
-        if (index > 0) {
-            newSessionId = sessionId.substring(0, index) + "." + localJvmRoute;
-        }
-        
+
+        String newSessionId = new StringBuilder(index + 1 + localJvmRoute.length())
+                .append(sessionId, 0, index + 1).append(localJvmRoute).toString();
+        String previousJvmRoute = sessionId.substring(index + 1);
+        this.countRewrite(previousJvmRoute);
+
         request.changeSessionId(newSessionId);
+
+        Manager manager = request.getContext() == null ? null : request.getContext().getManager();
+        if (manager instanceof InfinispanSessionManager) {
+            ((InfinispanSessionManager) manager).failOver(newSessionId, previousJvmRoute);
+        }
+    }
+
+    private void countRewrite(String previousJvmRoute) {
+        AtomicLong count = rewrites.get(previousJvmRoute);
+        if (count == null && rewrites.size() >= MAX_COUNTED_ROUTES) {
+            previousJvmRoute = OTHER_ROUTES;
+            count = rewrites.get(previousJvmRoute);
+        }
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = rewrites.putIfAbsent(previousJvmRoute, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Number of rewritten session ids per previous jvmRoute (failed or disabled node).
+     * Routes over the limit of counted routes are summed under OTHER_ROUTES.
+     */
+    public Map<String, Long> getRewriteCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : rewrites.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Number of rewritten session ids.
+     */
+    public long getRewriteCount() {
+        long count = 0;
+        for (AtomicLong routeCount : rewrites.values()) {
+            count += routeCount.get();
+        }
+        return count;
     }
 
     /**
@@ -104,7 +190,7 @@ public class StickySessionFailOverRewriteValve extends ValveBase {
 
 
     /**
-     * log valve started
+     * Resolve jvmRoute and log valve started
      * @exception LifecycleException
      *                if this component detects a fatal error that prevents this
      *                component from being used
@@ -113,8 +199,11 @@ public class StickySessionFailOverRewriteValve extends ValveBase {
 
         super.startInternal();
 
+        String route = this.getJvmRoute();
+        this.jvmRoute = route != null && route.length() > 0 ? route : null;
+
         if (log.isInfoEnabled()) {
-            log.info(info + " started.");
+            log.info(info + " started. jvmRoute: " + this.jvmRoute);
         }
     }
 
@@ -129,6 +218,7 @@ public class StickySessionFailOverRewriteValve extends ValveBase {
         if (log.isInfoEnabled()){
             log.info(info + " stopped.");
         }
+        this.jvmRoute = null;
         super.stopInternal();
 
     }
@@ -0,0 +1,189 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.atomic.AtomicMapLookup;
+import org.infinispan.context.Flag;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cluster-wide dictionary of strings (e.g. class names) and their int ids. Dictionary is stored in one atomic map
+ * of replicated dictionary cache, every node keeps local copy of used entries.
+ * Id is hash code of string, the same string gets the same id on all nodes. New string is registered
+ * with dictionary locked in cluster, so one id is never given to two strings.
+ * String with id already used by other string is not registered, its id is null.
+ * Dictionary cache must use PESSIMISTIC locking mode.
+ */
+class StringDictionary {
+
+    /**
+     * Dictionary cache namespace
+     */
+    private static final String NAMESPACE = "dict";
+
+    private final Cache<String, Object> cache;
+    private final String cacheId;
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<Integer, String> strings = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * Strings not registered because of id collision
+     */
+    private final ConcurrentMap<String, Boolean> collisions = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Constructor
+     *
+     * @param cache replicated dictionary cache
+     * @param name  dictionary name
+     */
+    StringDictionary(Cache<String, Object> cache, String name) {
+        this.cache = cache;
+        this.cacheId = createCacheId(name);
+    }
+
+    /**
+     * Get id of string, string is registered in cluster on first use
+     *
+     * @return id or null if id of string is used by other string
+     */
+    Integer getId(String string) {
+        Integer id = ids.get(string);
+        if (id != null || collisions.containsKey(string)) {
+            return id;
+        }
+
+        id = string.hashCode();
+        String registered = this.getDictionary().get(id);
+        if (registered == null) {
+            registered = this.register(id, string);
+        }
+        if (registered == null) {
+            //dictionary locked by other node, string is registered on next use
+            return null;
+        }
+        if (!registered.equals(string)) {
+            collisions.put(string, Boolean.TRUE);
+            return null;
+        }
+        strings.put(id, string);
+        ids.put(string, id);
+        return id;
+    }
+
+    /**
+     * Register string with id unless id is used. Runs in own transaction holding lock of dictionary,
+     * id is read again under lock because other node could register it meanwhile.
+     *
+     * @return string registered with id, null if dictionary wasn't locked and id is still free
+     */
+    private String register(int id, String string) {
+        TransactionManager tm = cache.getAdvancedCache().getTransactionManager();
+        try {
+            //don't join transaction of session cache
+            Transaction outerTx = tm.suspend();
+            try {
+                tm.begin();
+                boolean success = false;
+                String registered = null;
+                try {
+                    if (cache.getAdvancedCache().withFlags(Flag.FAIL_SILENTLY).lock(cacheId)) {
+                        Map<Integer, String> dictionary = this.getDictionary();
+                        registered = dictionary.get(id);
+                        if (registered == null) {
+                            dictionary.put(id, string);
+                            registered = string;
+                        }
+                        success = true;
+                    }
+                } finally {
+                    if (success) {
+                        tm.commit();
+                    } else {
+                        tm.rollback();
+                    }
+                }
+                if (success) {
+                    return registered;
+                }
+            } finally {
+                if (outerTx != null) {
+                    tm.resume(outerTx);
+                }
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("Can't register string " + string, ex);
+        }
+        //lock held by other node, read what it registered
+        return this.getDictionary().get(id);
+    }
+
+    /**
+     * Get id of string already registered in cluster, string is not registered
+     *
+     * @return id or null if string is not registered
+     */
+    Integer findId(String string) {
+        Integer id = ids.get(string);
+        if (id != null || collisions.containsKey(string)) {
+            return id;
+        }
+
+        id = string.hashCode();
+        if (!string.equals(this.getDictionary().get(id))) {
+            return null;
+        }
+        strings.put(id, string);
+        ids.put(string, id);
+        return id;
+    }
+
+    /**
+     * Get string of id
+     *
+     * @return string or null if id is not registered
+     */
+    String getString(int id) {
+        String string = strings.get(id);
+        if (string == null) {
+            string = this.getDictionary().get(id);
+            if (string != null) {
+                strings.put(id, string);
+            }
+        }
+        return string;
+    }
+
+    /**
+     * Number of strings used on this node
+     */
+    int size() {
+        return strings.size();
+    }
+
+    private Map<Integer, String> getDictionary() {
+        return AtomicMapLookup.getAtomicMap(cache, cacheId);
+    }
+
+    /**
+     * Get cache id of dictionary
+     */
+    static String createCacheId(String name) {
+        return NAMESPACE + name;
+    }
+
+    /**
+     * True if cache id is dictionary cache id
+     */
+    static boolean isCacheId(Object cacheId) {
+        return cacheId instanceof String && ((String) cacheId).startsWith(NAMESPACE);
+    }
+}
@@ -0,0 +1,85 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.Session;
+import org.infinispan.atomic.AtomicMapLookup;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * AttributeCodecTest
+ * Attribute values are stored serialized and resolved by class loader of application.
+ */
+public class AttributeCodecTest {
+
+    /**
+     * Value read on other node is deserialized with cached class lookup
+     * @throws Exception
+     */
+    @Test
+    public void testResolveClasses() throws Exception {
+        AttributeCodec codec = new AttributeCodec(getClass().getClassLoader());
+        ArrayList<Item> items = new ArrayList<Item>();
+        items.add(new Item("first"));
+
+        MarshalledAttribute stored = codec.marshall("items", items);
+        assertSame(items, codec.unmarshall("items", stored));
+
+        //copy received from other node
+        Object value = codec.unmarshall("items", new MarshalledAttribute(stored.getBytes(), null));
+        assertEquals(items, value);
+        int resolved = codec.getResolvedClasses();
+        assertTrue(resolved > 0);
+        codec.unmarshall("items", new MarshalledAttribute(stored.getBytes(), null));
+        assertEquals(resolved, codec.getResolvedClasses());
+
+        assertEquals("plain", codec.unmarshall("plain", "plain"));
+    }
+
+    /**
+     * Cache contains only serialized values
+     * @throws Exception
+     */
+    @Test
+    public void testCacheContainsBytes() throws Exception {
+        InfinispanSessionManager manager = new InfinispanSessionManager();
+        InfinispanSessionManagerCommon.initializeManager(manager, "codec", true);
+        try {
+            Session session = manager.createSession(null);
+            manager.add(session);
+            session.getSession().setAttribute("item", new Item("value"));
+
+            Map<String, Object> stored = AtomicMapLookup.getAtomicMap(manager.getAttributesCache(),
+                    SessionAttributes.createCacheId(session.getIdInternal()), false);
+            assertTrue(stored.get("item") instanceof MarshalledAttribute);
+            assertEquals(new Item("value"), session.getSession().getAttribute("item"));
+        } finally {
+            manager.manager.stop();
+        }
+    }
+
+    private static class Item implements Serializable {
+        private final String name;
+
+        Item(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Item && name.equals(((Item) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
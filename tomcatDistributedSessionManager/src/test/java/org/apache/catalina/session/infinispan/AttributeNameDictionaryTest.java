@@ -0,0 +1,66 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.infinispan.atomic.AtomicMapLookup;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * AttributeNameDictionaryTest
+ * Attribute names are stored as ids of cluster attribute name dictionary.
+ */
+public class AttributeNameDictionaryTest {
+
+    /**
+     * Names are translated to ids in cache and back to names on other node
+     * @throws Exception
+     */
+    @Test
+    public void testNameIds() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager();
+        InfinispanSessionManager managerTwo = createSessionManager();
+        try {
+            Session session = managerOne.createSession(null);
+            managerOne.add(session);
+            session.getSession().setAttribute("cart", "items");
+            session.getSession().setAttribute("locale", "en");
+            assertNull(session.getSession().getAttribute("unknown"));
+            assertEquals(2, managerOne.getAttributeNameDictionarySize());
+
+            Map<Object, Object> stored = AtomicMapLookup.getAtomicMap(managerOne.getAttributesCache(),
+                    SessionAttributes.createCacheId(session.getIdInternal()), false);
+            for (Object key : stored.keySet()) {
+                assertTrue(key instanceof Integer);
+            }
+
+            Session other = managerTwo.findSession(session.getId());
+            Set<String> names = new HashSet<String>(Collections.list(other.getSession().getAttributeNames()));
+            assertEquals(new HashSet<String>(Arrays.asList("cart", "locale")), names);
+            assertEquals("items", other.getSession().getAttribute("cart"));
+
+            other.getSession().removeAttribute("cart");
+            assertNull(session.getSession().getAttribute("cart"));
+            assertEquals("en", session.getSession().getAttribute("locale"));
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager() throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setAttributeNameDictionary(true);
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, "attributeNames", true);
+    }
+}
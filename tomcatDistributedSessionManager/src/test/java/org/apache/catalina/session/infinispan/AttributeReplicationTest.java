@@ -0,0 +1,125 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * AttributeReplicationTest
+ * Local, asynchronous and synchronous session attributes.
+ */
+public class AttributeReplicationTest {
+    InfinispanSessionManager managerOne;
+    InfinispanSessionManager managerTwo;
+
+    /**
+     * Local attribute is visible only in node which stored it, other attributes in whole cluster
+     * @throws Exception
+     */
+    @Test
+    public void testAttributeReplication() throws Exception {
+        Session session = managerOne.createSession(null);
+        managerOne.add(session);
+        session.getSession().setAttribute("cache.products", "local");
+        session.getSession().setAttribute("csrfToken", "sync");
+        session.getSession().setAttribute("lastSearch", "async");
+        session.getSession().setAttribute("marked", new LocalValue());
+
+        assertEquals("local", session.getSession().getAttribute("cache.products"));
+        assertEquals("async", session.getSession().getAttribute("lastSearch"));
+        assertNotNull(session.getSession().getAttribute("marked"));
+        assertEquals(4, ((InfinispanSession) session).keys().length);
+
+        //wait for write behind
+        long deadline = System.currentTimeMillis() + 10000;
+        while (managerOne.getPendingAttributeWrites() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Session remote = managerTwo.findSession(session.getId());
+        assertNotNull(remote);
+        assertNull(remote.getSession().getAttribute("cache.products"));
+        assertNull(remote.getSession().getAttribute("marked"));
+        assertEquals("sync", remote.getSession().getAttribute("csrfToken"));
+        assertEquals("async", remote.getSession().getAttribute("lastSearch"));
+    }
+
+    /**
+     * Asynchronous write over session size limit is rejected before it is queued
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncSizeLimit() throws Exception {
+        Session session = managerOne.createSession(null);
+        managerOne.add(session);
+        session.getSession().setAttribute("lastSearch", "async");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (managerOne.getPendingAttributeWrites() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        try {
+            session.getSession().setAttribute("lastSearch", new byte[20000]);
+            fail("Session size limit not enforced");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+        assertEquals(0, managerOne.getPendingAttributeWrites());
+        assertEquals("async", session.getSession().getAttribute("lastSearch"));
+    }
+
+    /**
+     * Marker interface wins over name pattern
+     */
+    @Test
+    public void testPolicy() {
+        AttributeReplicationPolicy policy = new AttributeReplicationPolicy("cache.*, *Local", "lastSearch");
+        assertEquals(AttributeReplication.LOCAL, policy.getReplication("cache.x", "v"));
+        assertEquals(AttributeReplication.LOCAL, policy.getReplication("xLocal", "v"));
+        assertEquals(AttributeReplication.ASYNC, policy.getReplication("lastSearch", "v"));
+        assertEquals(AttributeReplication.SYNC, policy.getReplication("csrfToken", "v"));
+        assertEquals(AttributeReplication.LOCAL, policy.getReplication("csrfToken", new LocalValue()));
+    }
+
+    /**
+     * Not serializable attribute marked as local
+     */
+    static class LocalValue implements LocalSessionAttribute {
+    }
+
+    /**
+     * Create sessionManagers before each test method
+     * @throws LifecycleException
+     */
+    @BeforeMethod
+    private void createSessionManagers() throws LifecycleException {
+        managerOne = createSessionManager("replication");
+        managerTwo = createSessionManager("replication");
+    }
+
+    /**
+     * Leave cluster, next test method starts new cluster
+     */
+    @AfterMethod
+    private void stopCacheManagers() {
+        managerOne.manager.stop();
+        managerTwo.manager.stop();
+    }
+
+    private InfinispanSessionManager createSessionManager(String nameSuffix) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setLocalAttributes("cache.*");
+        sessionManager.setAsyncAttributes("lastSearch");
+        sessionManager.setSessionSizeAccounting(true);
+        sessionManager.setSessionSizeMaxLimit(10000);
+
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, nameSuffix, true);
+    }
+}
@@ -0,0 +1,192 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.infinispan.loaders.CacheLoaderManager;
+import org.infinispan.config.Configuration;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * CacheTuningTest
+ * Cache configuration overridden by session manager attributes.
+ */
+public class CacheTuningTest {
+
+    /**
+     * Replicated cache with tuned timeouts and locking
+     * @throws Exception
+     */
+    @Test
+    public void testReplicatedTuning() throws Exception {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setCacheMode("repl_sync");
+        sessionManager.setRemoteTimeout(5000);
+        sessionManager.setLockConcurrencyLevel(64);
+        sessionManager.setUseLockStriping(false);
+        sessionManager.setStateTransferChunkSize(100);
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "tuningRepl", true);
+
+        try {
+            Configuration configuration = sessionManager.cache.getConfiguration();
+            assertEquals(Configuration.CacheMode.REPL_SYNC, configuration.getCacheMode());
+            assertFalse(configuration.isL1CacheEnabled());
+            assertEquals(5000, configuration.getSyncReplTimeout());
+            assertEquals(64, configuration.getConcurrencyLevel());
+            assertFalse(configuration.isUseLockStriping());
+            assertEquals(100, configuration.getStateRetrievalChunkSize());
+
+            Session session = sessionManager.createSession(null);
+            sessionManager.add(session);
+            session.getSession().setAttribute("attrName", "attrValue");
+            assertEquals("attrValue", sessionManager.findSession(session.getId()).getSession().getAttribute("attrName"));
+        } finally {
+            sessionManager.manager.stop();
+        }
+    }
+
+    /**
+     * Distributed asynchronous cache with one owner and L1
+     * @throws Exception
+     */
+    @Test
+    public void testDistributedTuning() throws Exception {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setNumOwners(1);
+        sessionManager.setL1Lifespan(30000);
+        sessionManager.setSyncReplication(false);
+        sessionManager.setEvictionMaxEntries(1000);
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "tuningDist", true);
+
+        try {
+            Configuration configuration = sessionManager.cache.getConfiguration();
+            assertEquals(Configuration.CacheMode.DIST_ASYNC, configuration.getCacheMode());
+            assertEquals(1, configuration.getNumOwners());
+            assertTrue(configuration.isL1CacheEnabled());
+            assertEquals(30000, configuration.getL1Lifespan());
+            assertEquals(1000, configuration.getEvictionMaxEntries());
+        } finally {
+            sessionManager.manager.stop();
+        }
+    }
+
+    /**
+     * Invalid cache mode fails manager start with clear message
+     */
+    @Test
+    public void testInvalidCacheMode() {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setCacheMode("distributed");
+        try {
+            InfinispanSessionManagerCommon.initializeManager(sessionManager, "tuningInvalid", true);
+            fail("Invalid cache mode accepted");
+        } catch (LifecycleException ex) {
+            Throwable cause = ex;
+            while (cause.getCause() instanceof LifecycleException) {
+                cause = cause.getCause();
+            }
+            assertTrue(cause.getMessage(), cause.getMessage().contains("cacheMode 'distributed'"));
+        } finally {
+            if (sessionManager.manager != null) {
+                sessionManager.manager.stop();
+            }
+        }
+    }
+
+    /**
+     * Sessions evicted from memory are passivated to file store and activated on access
+     * @throws Exception
+     */
+    @Test
+    public void testPassivation() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "sessionPassivationTest");
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setEvictionMaxEntries(16);
+        sessionManager.setPassivationDirectory(directory.getAbsolutePath());
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "passivation", true);
+
+        try {
+            List<Session> sessions = new ArrayList<Session>();
+            for (int i = 0; i < 50; i++) {
+                Session session = sessionManager.createSession(null);
+                sessionManager.add(session);
+                session.getSession().setAttribute("number", i);
+                sessions.add(session);
+            }
+
+            assertTrue(sessionManager.cache.getAdvancedCache().getDataContainer().size() < 100);
+            CacheLoaderManager loaderManager = sessionManager.cache.getAdvancedCache().getComponentRegistry()
+                    .getComponent(CacheLoaderManager.class);
+            assertTrue(loaderManager.isUsingPassivation());
+            assertFalse(loaderManager.getCacheStore().loadAllKeys(null).isEmpty());
+
+            //passivated sessions are listed and counted, validation doesn't activate them
+            int owned = 0;
+            for (OwnedSessionEntries entries = new OwnedSessionEntries(sessionManager.cache); entries.hasNext(); entries.next()) {
+                owned++;
+            }
+            assertEquals(sessions.size(), owned);
+            assertEquals(sessions.size(), OwnedSessionEntries.countOwned(sessionManager.cache, Long.MAX_VALUE,
+                    Collections.<String>emptySet()));
+            for (Session session : sessions) {
+                assertTrue(session.isValid());
+            }
+            Set<Object> passivated = loaderManager.getCacheStore().loadAllKeys(null);
+            for (Session session : sessions) {
+                assertTrue(session.isValid());
+            }
+            assertEquals(passivated, loaderManager.getCacheStore().loadAllKeys(null));
+
+            for (int i = 0; i < sessions.size(); i++) {
+                assertEquals(i, sessions.get(i).getSession().getAttribute("number"));
+            }
+        } finally {
+            sessionManager.manager.stop();
+        }
+    }
+
+    /**
+     * Evicted sessions passivated to memory mapped segment store
+     * @throws Exception
+     */
+    @Test
+    public void testMappedPassivation() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "sessionMappedPassivationTest");
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setEvictionMaxEntries(16);
+        sessionManager.setPassivationDirectory(directory.getAbsolutePath());
+        sessionManager.setPassivationStore("mapped");
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "mappedPassivation", true);
+
+        try {
+            List<Session> sessions = new ArrayList<Session>();
+            for (int i = 0; i < 50; i++) {
+                Session session = sessionManager.createSession(null);
+                sessionManager.add(session);
+                session.getSession().setAttribute("number", i);
+                sessions.add(session);
+            }
+
+            CacheLoaderManager loaderManager = sessionManager.cache.getAdvancedCache().getComponentRegistry()
+                    .getComponent(CacheLoaderManager.class);
+            assertTrue(loaderManager.getCacheStore() instanceof MappedSessionCacheStore);
+            assertFalse(loaderManager.getCacheStore().loadAllKeys(null).isEmpty());
+
+            for (int i = 0; i < sessions.size(); i++) {
+                assertEquals(i, sessions.get(i).getSession().getAttribute("number"));
+            }
+        } finally {
+            sessionManager.manager.stop();
+        }
+    }
+}
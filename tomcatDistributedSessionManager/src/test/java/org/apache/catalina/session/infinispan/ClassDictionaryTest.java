@@ -0,0 +1,206 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.InvalidClassException;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * ClassDictionaryTest
+ * Serialized attribute values contain ids of cluster class dictionary instead of class descriptors.
+ */
+public class ClassDictionaryTest {
+
+    /**
+     * Value written with class ids is read on other node
+     * @throws Exception
+     */
+    @Test
+    public void testClassIds() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager(null);
+        InfinispanSessionManager managerTwo = createSessionManager(null);
+        try {
+            Session session = managerOne.createSession(null);
+            managerOne.add(session);
+            Dto dto = new Dto(42L, "name");
+            session.getSession().setAttribute("dto", dto);
+            assertTrue(managerOne.getClassDictionarySize() > 0);
+
+            int compact = managerOne.getAttributeCodec().marshall("dto", dto).size();
+            int full = new AttributeCodec(getClass().getClassLoader()).marshall("dto", dto).size();
+            assertTrue("compact " + compact + ", full " + full, compact * 2 < full);
+
+            Session other = managerTwo.findSession(session.getId());
+            assertEquals(dto, other.getSession().getAttribute("dto"));
+            assertTrue(managerTwo.getClassDictionarySize() > 0);
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    /**
+     * Value written by class of other serialVersionUID isn't read with local class descriptor
+     * @throws Exception
+     */
+    @Test
+    public void testIncompatibleClass() throws Exception {
+        InfinispanSessionManager sessionManager = createSessionManager(null);
+        try {
+            AttributeCodec codec = sessionManager.getAttributeCodec();
+            byte[] bytes = codec.marshall("dto", new Dto(7L, "version")).getBytes();
+            long serialVersionUID = ObjectStreamClass.lookup(Dto.class).getSerialVersionUID();
+            byte[] written = ByteBuffer.allocate(8).putLong(serialVersionUID).array();
+            int position = indexOf(bytes, written);
+            assertTrue(position > 0);
+            //class of other node
+            bytes[position + 7]++;
+
+            try {
+                codec.unmarshall("dto", new MarshalledAttribute(bytes, null));
+                fail("Value of incompatible class deserialized");
+            } catch (IllegalStateException ex) {
+                assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof InvalidClassException);
+            }
+        } finally {
+            sessionManager.manager.stop();
+        }
+    }
+
+    /**
+     * Strings of the same hash code registered concurrently on two nodes, id is given to one string
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager(null);
+        InfinispanSessionManager managerTwo = createSessionManager(null);
+        try {
+            assertEquals("Aa".hashCode(), "BB".hashCode());
+            final StringDictionary dictionaryOne = new StringDictionary(managerOne.getStringDictionaryCache(), "test");
+            final StringDictionary dictionaryTwo = new StringDictionary(managerTwo.getStringDictionaryCache(), "test");
+            final CountDownLatch start = new CountDownLatch(1);
+            final Integer[] ids = new Integer[2];
+            Thread one = new Thread() {
+                @Override
+                public void run() {
+                    await(start);
+                    ids[0] = dictionaryOne.getId("Aa");
+                }
+            };
+            Thread two = new Thread() {
+                @Override
+                public void run() {
+                    await(start);
+                    ids[1] = dictionaryTwo.getId("BB");
+                }
+            };
+            one.start();
+            two.start();
+            start.countDown();
+            one.join();
+            two.join();
+
+            assertTrue((ids[0] == null) != (ids[1] == null));
+            String registered = ids[0] != null ? "Aa" : "BB";
+            assertEquals(registered, dictionaryOne.getString("Aa".hashCode()));
+            assertEquals(registered, dictionaryTwo.getString("Aa".hashCode()));
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Class dictionary is written to snapshot with sessions
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "classDictionaryTest.bin");
+        file.delete();
+
+        InfinispanSessionManager sessionManager = createSessionManager(file);
+        String id;
+        try {
+            Session session = sessionManager.createSession(null);
+            sessionManager.add(session);
+            session.getSession().setAttribute("dto", new Dto(1L, "snapshot"));
+            id = session.getId();
+            sessionManager.stop();
+        } finally {
+            sessionManager.manager.stop();
+        }
+
+        sessionManager = createSessionManager(file);
+        try {
+            Session session = sessionManager.findSession(id);
+            assertEquals(new Dto(1L, "snapshot"), session.getSession().getAttribute("dto"));
+        } finally {
+            sessionManager.manager.stop();
+            file.delete();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager(File file) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setClassDictionary(true);
+        if (file != null) {
+            sessionManager.setSnapshotFile(file.getAbsolutePath());
+            sessionManager.setClusterCounterInterval(0);
+        }
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, "classDictionary", true);
+    }
+
+    private static class Dto implements Serializable {
+        private final Long id;
+        private final String name;
+
+        Dto(Long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Dto && id.equals(((Dto) o).id) && name.equals(((Dto) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+}
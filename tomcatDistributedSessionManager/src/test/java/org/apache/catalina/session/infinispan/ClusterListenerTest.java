@@ -0,0 +1,111 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * ClusterListenerTest
+ * Servlet session listeners are notified once in cluster.
+ */
+public class ClusterListenerTest {
+
+    /**
+     * Events of session changed on one node are delivered once as read only session view,
+     * destroyed session keeps attributes
+     * @throws Exception
+     */
+    @Test
+    public void testDeliveredOnce() throws Exception {
+        CountingListener listener = new CountingListener();
+        InfinispanSessionManager managerOne = createSessionManager(listener);
+        InfinispanSessionManager managerTwo = createSessionManager(listener);
+        try {
+            Session session = managerOne.createSession(null);
+            managerOne.add(session);
+            session.getSession().setAttribute("a", 1);
+            session.getSession().setAttribute("a", 2);
+            session.getSession().setAttribute("b", "value");
+            session.getSession().removeAttribute("a");
+            session.getSession().invalidate();
+
+            for (int i = 0; i < 50 && listener.destroyed.get() == 0; i++) {
+                Thread.sleep(100);
+            }
+            Thread.sleep(200);
+            assertEquals(1, listener.created.get());
+            assertEquals(1, listener.destroyed.get());
+            assertEquals(2, listener.added.get());
+            assertEquals(1, listener.replaced.get());
+            assertTrue(listener.removed.get() >= 1);
+            assertEquals("value", listener.destroyedAttribute);
+            assertTrue(listener.sessionView);
+            assertEquals(managerOne.getListenerEventsPublished(),
+                    managerOne.getListenerEventsDelivered() + managerTwo.getListenerEventsDelivered());
+            assertEquals(0, managerOne.getListenerEventsFailed());
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager(Object listener) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setClusterListeners(true);
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "clusterListener", true);
+        StandardContext context = (StandardContext) sessionManager.getContainer();
+        context.setApplicationLifecycleListeners(new Object[]{listener});
+        context.setApplicationEventListeners(new Object[]{listener});
+        return sessionManager;
+    }
+
+    public static class CountingListener implements HttpSessionListener, HttpSessionAttributeListener {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger destroyed = new AtomicInteger();
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger replaced = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        volatile Object destroyedAttribute;
+        volatile boolean sessionView;
+
+        @Override
+        public void sessionCreated(HttpSessionEvent se) {
+            //owner of session doesn't create local session for listener
+            sessionView = se.getSession() instanceof SessionView;
+            created.incrementAndGet();
+        }
+
+        @Override
+        public void sessionDestroyed(HttpSessionEvent se) {
+            destroyedAttribute = se.getSession().getAttribute("b");
+            destroyed.incrementAndGet();
+        }
+
+        @Override
+        public void attributeAdded(HttpSessionBindingEvent se) {
+            added.incrementAndGet();
+        }
+
+        @Override
+        public void attributeRemoved(HttpSessionBindingEvent se) {
+            removed.incrementAndGet();
+        }
+
+        @Override
+        public void attributeReplaced(HttpSessionBindingEvent se) {
+            replaced.incrementAndGet();
+        }
+    }
+}
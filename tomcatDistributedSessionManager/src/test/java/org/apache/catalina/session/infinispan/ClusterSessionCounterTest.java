@@ -0,0 +1,144 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.TooManyActiveSessionsException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * ClusterSessionCounterTest
+ * maxActiveSessions enforced against sessions of whole cluster.
+ */
+public class ClusterSessionCounterTest {
+    InfinispanSessionManager managerOne;
+    InfinispanSessionManager managerTwo;
+
+    /**
+     * Sessions created by first node are counted by second node after publishing counters
+     * @throws Exception
+     */
+    @Test
+    public void testClusterActiveSessions() throws Exception {
+        managerOne.add(managerOne.createSession(ownedId(managerOne, "a")));
+        Session session = managerOne.createSession(ownedId(managerOne, "b"));
+        managerOne.add(session);
+        assertEquals(2, managerOne.getClusterActiveSessions());
+        assertEquals(0, managerTwo.getClusterActiveSessions());
+
+        managerOne.backgroundProcess();
+        managerTwo.backgroundProcess();
+        assertEquals(2, managerTwo.getClusterActiveSessions());
+
+        managerTwo.setMaxActiveSessions(2);
+        try {
+            managerTwo.createSession(null);
+            fail("Cluster limit of active sessions exceeded");
+        } catch (TooManyActiveSessionsException ex) {
+            assertEquals(1, managerTwo.getRejectedSessions());
+        }
+
+        //removed by second node, counted by anchor of owner
+        managerTwo.findSession(session.getId()).expire();
+        assertEquals(2, managerTwo.getClusterActiveSessions());
+        managerOne.backgroundProcess();
+        managerTwo.backgroundProcess();
+        assertEquals(1, managerTwo.getClusterActiveSessions());
+        assertNotNull(managerTwo.createSession(null));
+    }
+
+    /**
+     * Session created by node which doesn't own it is counted once, by anchor of owner
+     * @throws Exception
+     */
+    @Test
+    public void testNotOwned() throws Exception {
+        managerOne.add(managerOne.createSession(ownedId(managerTwo, "a")));
+        assertEquals(0, managerOne.getClusterActiveSessions());
+
+        //anchor counts sessions created before it started
+        Thread.sleep(10);
+        managerOne.backgroundProcess();
+        managerTwo.backgroundProcess();
+        managerOne.backgroundProcess();
+        assertEquals(1, managerOne.getClusterActiveSessions());
+        assertEquals(1, managerTwo.getClusterActiveSessions());
+    }
+
+    /**
+     * Session removed by both nodes is counted once, removal not seen by counter is corrected by anchor
+     * @throws Exception
+     */
+    @Test
+    public void testNoDrift() throws Exception {
+        Session session = managerOne.createSession(ownedId(managerOne, "a"));
+        managerOne.add(session);
+        Session shell = managerTwo.findSession(session.getId());
+        Session other = managerOne.createSession(ownedId(managerOne, "b"));
+        managerOne.add(other);
+        managerOne.backgroundProcess();
+        managerTwo.backgroundProcess();
+        managerOne.backgroundProcess();
+        assertEquals(2, managerOne.getClusterActiveSessions());
+        assertEquals(2, managerTwo.getClusterActiveSessions());
+
+        session.expire();
+        //the same session removed concurrently by second node
+        managerTwo.remove(shell, false);
+        assertEquals(1, managerOne.getClusterActiveSessions());
+        assertEquals(2, managerTwo.getClusterActiveSessions());
+
+        //metadata removed without counter, e.g. by crashed node
+        managerOne.cache.remove(SessionMetaAttributes.createCacheId(other.getIdInternal()));
+        managerOne.backgroundProcess();
+        managerTwo.backgroundProcess();
+        managerOne.backgroundProcess();
+        assertEquals(0, managerOne.getClusterActiveSessions());
+        assertEquals(0, managerTwo.getClusterActiveSessions());
+    }
+
+    /**
+     * Create sessionManagers before each test method
+     * @throws LifecycleException
+     */
+    @BeforeMethod
+    private void createSessionManagers() throws LifecycleException {
+        managerOne = createSessionManager("counter");
+        managerTwo = createSessionManager("counter");
+    }
+
+    /**
+     * Leave cluster, next test method starts new cluster
+     */
+    @AfterMethod
+    private void stopCacheManagers() {
+        managerOne.manager.stop();
+        managerTwo.manager.stop();
+    }
+
+    /**
+     * Session id primarily owned by node
+     */
+    private static String ownedId(InfinispanSessionManager manager, String prefix) {
+        for (int i = 0; ; i++) {
+            String id = prefix + i;
+            if (OwnedSessionEntries.isPrimaryOwner(manager.cache, SessionMetaAttributes.createCacheId(id))) {
+                return id;
+            }
+        }
+    }
+
+    private InfinispanSessionManager createSessionManager(String nameSuffix) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setClusterCounterInterval(0);
+        sessionManager.setClusterCounterAnchorInterval(0);
+
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, nameSuffix, true);
+    }
+}
@@ -0,0 +1,212 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * ClusterStatisticsTest
+ * Cluster wide session statistics computed by distributed tasks.
+ */
+public class ClusterStatisticsTest {
+    InfinispanSessionManager managerOne;
+    InfinispanSessionManager managerTwo;
+
+    /**
+     * Sessions created by first node are visible in statistics of second node,
+     * even if second node has no local session
+     * @throws Exception
+     */
+    @Test
+    public void testClusterStatistics() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Session session = managerOne.createSession(null);
+            managerOne.add(session);
+        }
+        assertEquals(0, managerTwo.getActiveSessions());
+
+        SessionStatistics statistics = managerTwo.getClusterStatistics();
+        assertEquals(2, statistics.getNodes());
+        assertEquals(3, statistics.getActiveSessions());
+        assertEquals(3, statistics.getCreateRate());
+        assertEquals(0, statistics.getTimedOutSessions());
+        assertEquals(3, managerOne.getClusterSessionCount());
+    }
+
+    /**
+     * List sessions of both nodes in small pages
+     * @throws Exception
+     */
+    @Test
+    public void testClusterSessionListing() throws Exception {
+        Set<String> created = new TreeSet<String>();
+        for (int i = 0; i < 7; i++) {
+            InfinispanSessionManager manager = i % 2 == 0 ? managerOne : managerTwo;
+            Session session = manager.createSession(null);
+            manager.add(session);
+            created.add(session.getId());
+        }
+        managerOne.findSession(created.iterator().next()).getSession().setAttribute("cart", "items");
+
+        //every node returns its part of page
+        SessionSummaryPage page = managerTwo.getClusterSessionPage(null, 3, SessionFilter.ALL);
+        assertFalse(page.getSessions().isEmpty());
+        assertTrue(page.getSessions().size() <= 3);
+        assertNotNull(page.getNextCursor());
+
+        //every session listed once
+        List<String> listed = new ArrayList<String>();
+        Iterator<SessionSummary> it = managerTwo.clusterSessionIterator(4, SessionFilter.ALL);
+        while (it.hasNext()) {
+            listed.add(it.next().getSessionId());
+        }
+        assertEquals(created.size(), listed.size());
+        assertEquals(created, new TreeSet<String>(listed));
+
+        page = managerOne.getClusterSessionPage(null, 3, new SessionFilter(0, "cart"));
+        assertEquals(1, page.getSessions().size());
+        assertEquals(created.iterator().next(), page.getSessions().get(0).getSessionId());
+        assertNull(page.getNextCursor());
+
+        page = managerOne.getClusterSessionPage(null, 3, new SessionFilter(3600000L, null));
+        assertEquals(0, page.getSessions().size());
+
+        //page smaller than number of nodes, sessions over page size are returned in next pages
+        listed.clear();
+        page = managerOne.getClusterSessionPage(null, 1, SessionFilter.ALL);
+        while (true) {
+            assertTrue(page.getSessions().size() <= 1);
+            for (SessionSummary summary : page.getSessions()) {
+                listed.add(summary.getSessionId());
+            }
+            if (page.getNextCursor() == null) {
+                break;
+            }
+            page = managerOne.getClusterSessionPage(page.getNextCursor(), 1, SessionFilter.ALL);
+        }
+        assertEquals(created.size(), listed.size());
+        assertEquals(created, new TreeSet<String>(listed));
+
+        //finished listing
+        page = managerOne.getClusterSessionPage("unknown", 1, SessionFilter.ALL);
+        assertTrue(page.getSessions().isEmpty());
+        assertNull(page.getNextCursor());
+    }
+
+    /**
+     * List local sessions without distribution, cursor is listing id as in cluster
+     * @throws Exception
+     */
+    @Test
+    public void testLocalSessionListing() throws Exception {
+        InfinispanSessionManager local = InfinispanSessionManagerCommon.initializeManager(
+                new InfinispanSessionManager(), "statsLocal", false);
+        try {
+            Set<String> created = new TreeSet<String>();
+            for (int i = 0; i < 5; i++) {
+                Session session = local.createSession(null);
+                local.add(session);
+                created.add(session.getId());
+            }
+
+            List<String> listed = new ArrayList<String>();
+            SessionSummaryPage page = local.getClusterSessionPage(null, 2, SessionFilter.ALL);
+            String cursor = page.getNextCursor();
+            assertNotNull(cursor);
+            while (true) {
+                assertTrue(page.getSessions().size() <= 2);
+                for (SessionSummary summary : page.getSessions()) {
+                    listed.add(summary.getSessionId());
+                }
+                if (page.getNextCursor() == null) {
+                    break;
+                }
+                assertEquals(cursor, page.getNextCursor());
+                page = local.getClusterSessionPage(page.getNextCursor(), 2, SessionFilter.ALL);
+            }
+            assertEquals(new ArrayList<String>(created), listed);
+        } finally {
+            local.manager.stop();
+        }
+    }
+
+    /**
+     * Session sizes are computed by attribute owners, largest sessions are reported by any node,
+     * write exceeding max session size is rejected
+     * @throws Exception
+     */
+    @Test
+    public void testSessionSizeAccounting() throws Exception {
+        Session small = managerOne.createSession(null);
+        managerOne.add(small);
+        small.getSession().setAttribute("name", "x");
+
+        Session large = managerOne.createSession(null);
+        managerOne.add(large);
+        large.getSession().setAttribute("data", new byte[5000]);
+        large.getSession().setAttribute("name", "x");
+
+        SessionSizeReport report = managerTwo.getLargestSessions(1);
+        assertEquals(1, report.getSessions().size());
+        assertEquals(managerOne.stripDotSuffix(large.getId()), report.getSessions().get(0).getSessionId());
+        assertTrue(report.getSessions().get(0).getSize() > 5000);
+        assertEquals("data", report.getAttributes().get(0).getAttributeName());
+
+        //replaced attribute of the same size keeps session size
+        large.getSession().setAttribute("name", "y");
+        assertEquals(report.getSessions().get(0).getSize(), managerTwo.getLargestSessions(1).getSessions().get(0).getSize());
+
+        try {
+            large.getSession().setAttribute("more", new byte[6000]);
+            fail("Session size limit not enforced");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+        assertNull(large.getSession().getAttribute("more"));
+
+        large.getSession().removeAttribute("data");
+        report = managerTwo.getLargestSessions(2);
+        assertTrue(report.getSessions().get(0).getSize() < 5000);
+    }
+
+    /**
+     * Create sessionManagers before each test method
+     * @throws LifecycleException
+     */
+    @BeforeMethod
+    private void createSessionManagers() throws LifecycleException {
+        managerOne = createSessionManager("stats");
+        managerTwo = createSessionManager("stats");
+    }
+
+    /**
+     * Leave cluster, next test method starts new cluster
+     */
+    @AfterMethod
+    private void stopCacheManagers() {
+        managerOne.manager.stop();
+        managerTwo.manager.stop();
+    }
+
+    private InfinispanSessionManager createSessionManager(String nameSuffix) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setClusterStatisticsCacheTime(0);
+        sessionManager.setSessionSizeAccounting(true);
+        sessionManager.setSessionSizeMaxLimit(10000);
+
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, nameSuffix, true);
+    }
+}
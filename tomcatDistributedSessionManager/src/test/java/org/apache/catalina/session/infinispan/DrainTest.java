@@ -0,0 +1,67 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * DrainTest
+ * Sessions of draining node are handed off to surviving node.
+ */
+public class DrainTest {
+
+    /**
+     * Single owner of sessions leaves cluster, sessions survive on other node
+     * @throws Exception
+     */
+    @Test
+    public void testDrain() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager();
+        InfinispanSessionManager managerTwo = createSessionManager();
+        try {
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < 30; i++) {
+                Session session = managerOne.createSession(null);
+                managerOne.add(session);
+                session.getSession().setAttribute("number", i);
+                ids.add(session.getId());
+            }
+
+            assertTrue(managerOne.drain() > 0);
+            assertTrue(managerOne.isDraining());
+            try {
+                managerOne.createSession(null);
+                fail("Draining node created session");
+            } catch (IllegalStateException ex) {
+                //expected
+            }
+
+            managerOne.stop();
+            managerOne.manager.stop();
+            for (int i = 0; i < ids.size(); i++) {
+                Session session = managerTwo.findSession(ids.get(i));
+                assertNotNull(session);
+                assertEquals(i, session.getSession().getAttribute("number"));
+            }
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager() throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setNumOwners(1);
+        sessionManager.setDrainBatchSize(8);
+        sessionManager.setDrainBatchPause(1);
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, "drain", true);
+    }
+}
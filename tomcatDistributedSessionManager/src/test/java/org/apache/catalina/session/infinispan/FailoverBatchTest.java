@@ -0,0 +1,68 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardEngine;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * FailoverBatchTest
+ * Sessions of node which left cluster are taken over by surviving node.
+ */
+public class FailoverBatchTest {
+
+    /**
+     * Surviving node creates local sessions with its jvmRoute for all sessions of failed node
+     * @throws Exception
+     */
+    @Test
+    public void testTakeOver() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager("node1");
+        InfinispanSessionManager managerTwo = createSessionManager("node2");
+        try {
+            managerTwo.registerJvmRoute();
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < 7; i++) {
+                Session session = managerOne.createSession(null);
+                managerOne.add(session);
+                session.getSession().setAttribute("number", i);
+                ids.add(session.getId());
+            }
+
+            //node failure
+            managerOne.manager.stop();
+
+            for (int i = 0; i < 100 && managerTwo.getFailoverSessions() < ids.size(); i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(ids.size(), managerTwo.getFailoverSessions());
+            for (int i = 0; i < ids.size(); i++) {
+                assertTrue(managerTwo.containsLocalSession(ids.get(i) + ".node2"));
+                Session session = managerTwo.findSession(ids.get(i) + ".node2");
+                assertEquals(i, session.getSession().getAttribute("number"));
+            }
+            assertFalse(managerTwo.clusterSessionIterator(10, new SessionFilter(0, null, "node1")).hasNext());
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager(String jvmRoute) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setFailoverBatch(true);
+        sessionManager.setFailoverBatchSize(3);
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "failoverBatch", true);
+        ((StandardEngine) sessionManager.getEngine()).setJvmRoute(jvmRoute);
+        sessionManager.registerJvmRoute();
+        return sessionManager;
+    }
+}
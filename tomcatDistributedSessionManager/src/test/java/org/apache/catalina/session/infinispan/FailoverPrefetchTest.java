@@ -0,0 +1,117 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardEngine;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * FailoverPrefetchTest
+ * Sessions of failed jvmRoute are prefetched by node taking them over.
+ */
+public class FailoverPrefetchTest {
+
+    /**
+     * Failover of one session prefetches all sessions of jvmRoute of failed node and takes over the session
+     * @throws Exception
+     */
+    @Test
+    public void testPrefetchRoute() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager("node1");
+        InfinispanSessionManager managerTwo = createSessionManager("node2");
+        try {
+            managerTwo.registerJvmRoute();
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < 5; i++) {
+                Session session = managerOne.createSession(null);
+                managerOne.add(session);
+                session.getSession().setAttribute("number", i);
+                ids.add(session.getId());
+            }
+
+            //node failure, sessions are kept by backup owner
+            managerOne.manager.stop();
+            for (int i = 0; i < 50 && !managerTwo.isDepartedJvmRoute("node1"); i++) {
+                Thread.sleep(100);
+            }
+
+            managerTwo.failOver(ids.get(0) + ".node2", "node1");
+
+            for (int i = 0; i < 50 && !allPrefetched(managerTwo, ids); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(allPrefetched(managerTwo, ids));
+            assertTrue(managerTwo.getPrefetchedSessions() >= ids.size());
+
+            boolean takenOver = false;
+            for (int i = 0; i < 50 && !takenOver; i++) {
+                Iterator<SessionSummary> sessions = managerTwo.clusterSessionIterator(10, new SessionFilter(0, null, "node2"));
+                takenOver = sessions.hasNext() && ids.get(0).equals(sessions.next().getSessionId());
+                Thread.sleep(takenOver ? 0 : 100);
+            }
+            assertTrue(takenOver);
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    /**
+     * jvmRoute of running member or unknown jvmRoute sent by client doesn't start prefetch of jvmRoute
+     * @throws Exception
+     */
+    @Test
+    public void testUnknownRoute() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager("node1");
+        InfinispanSessionManager managerTwo = createSessionManager("node2");
+        try {
+            managerTwo.registerJvmRoute();
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < 5; i++) {
+                Session session = managerOne.createSession(null);
+                managerOne.add(session);
+                ids.add(session.getId());
+            }
+
+            managerTwo.failOver(ids.get(0) + ".node2", "node1");
+            managerTwo.failOver(ids.get(1) + ".node2", "forged");
+
+            for (int i = 0; i < 50 && managerTwo.getPrefetchedSessions() < 2; i++) {
+                Thread.sleep(100);
+            }
+            Thread.sleep(500);
+            assertEquals(2, managerTwo.getPrefetchedSessions());
+            assertFalse(managerTwo.containsLocalSession(ids.get(2) + ".node2"));
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static boolean allPrefetched(InfinispanSessionManager manager, List<String> ids) {
+        for (String id : ids) {
+            if (!manager.containsLocalSession(id + ".node2")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static InfinispanSessionManager createSessionManager(String jvmRoute) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setFailoverPrefetch(true);
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "failoverPrefetch", true);
+        ((StandardEngine) sessionManager.getEngine()).setJvmRoute(jvmRoute);
+        sessionManager.registerJvmRoute();
+        return sessionManager;
+    }
+}
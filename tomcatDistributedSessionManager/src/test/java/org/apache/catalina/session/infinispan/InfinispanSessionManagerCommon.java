@@ -21,8 +21,16 @@ public class InfinispanSessionManagerCommon {
      * @throws org.apache.catalina.LifecycleException
      */
     public static InfinispanSessionManager getInitializedManager(String name, boolean distributed) throws LifecycleException {
-        InfinispanSessionManager infinispanSessionManager = new InfinispanSessionManager();
+        return initializeManager(new InfinispanSessionManager(), name, distributed);
+    }
 
+    /**
+     * Initialize already configured session manager
+     * @return
+     * @throws org.apache.catalina.LifecycleException
+     */
+    public static InfinispanSessionManager initializeManager(InfinispanSessionManager infinispanSessionManager,
+                                                             String name, boolean distributed) throws LifecycleException {
         StandardEngine engine = new StandardEngine();
         engine.setDomain("domain" + name);
         engine.setName("name" + name);
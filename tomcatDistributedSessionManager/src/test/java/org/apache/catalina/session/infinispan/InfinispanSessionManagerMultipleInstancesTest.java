@@ -116,6 +116,28 @@ public class InfinispanSessionManagerMultipleInstancesTest  {
 
     }
 
+    /**
+     * Session invalidated by one node is not valid in shell of other node, attributes are not recreated
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidatedByOtherNode() throws Exception{
+        Session session = managerOne.createSession(null);
+        session.getSession().setAttribute("attrName", "attrValue");
+        managerOne.add(session);
+        Session shell = managerThree.findSession(session.getId());
+        assertTrue(shell.isValid());
+        assertEquals("attrValue", shell.getSession().getAttribute("attrName"));
+
+        session.getSession().invalidate();
+
+        assertFalse(shell.isValid());
+        assertFalse(managerThree.containsLocalSession(session.getId()));
+        assertNull(managerThree.findSession(session.getId()));
+        assertNull(new SessionAttributes(managerThree.getAttributesCache(), session.getId()).get("attrName"));
+        assertFalse(managerThree.getAttributesCache().containsKey(SessionAttributes.createCacheId(session.getId())));
+    }
+
     /**
      * Create sessionManagers before each test method
      * @throws LifecycleException
@@ -0,0 +1,164 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.container.entries.ImmortalCacheEntry;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * MappedSessionCacheStoreTest
+ * Memory mapped segment store - index rebuild and compaction.
+ */
+public class MappedSessionCacheStoreTest {
+    DefaultCacheManager cacheManager;
+    Cache<Object, Object> cache;
+    File directory;
+
+    /**
+     * Last version of entries is loaded after restart, removed entries stay removed
+     * @throws Exception
+     */
+    @Test
+    public void testRestart() throws Exception {
+        MappedSessionCacheStore store = this.startStore(1024);
+        for (int i = 0; i < 100; i++) {
+            store.store(new ImmortalCacheEntry("key" + i, "value" + i));
+        }
+        store.store(new ImmortalCacheEntry("key1", "changed"));
+        assertTrue(store.remove("key2"));
+        assertFalse(store.remove("key2"));
+        assertTrue(store.getSegmentCount() > 1);
+        store.stop();
+
+        store = this.startStore(1024);
+        try {
+            assertEquals(99, store.loadAllKeys(null).size());
+            assertEquals("changed", store.load("key1").getValue());
+            assertNull(store.load("key2"));
+            assertEquals("value99", store.load("key99").getValue());
+        } finally {
+            store.stop();
+        }
+    }
+
+    /**
+     * Segments with replaced entries are compacted by purge
+     * @throws Exception
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        MappedSessionCacheStore store = this.startStore(1024);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                store.store(new ImmortalCacheEntry("key" + i, "value" + round));
+            }
+        }
+        store.remove("key0");
+        int segments = store.getSegmentCount();
+        store.purgeExpired();
+        assertTrue(store.getSegmentCount() < segments);
+        store.stop();
+
+        store = this.startStore(1024);
+        try {
+            assertEquals(49, store.loadAll().size());
+            assertNull(store.load("key0"));
+            assertEquals("value4", store.load("key49").getValue());
+        } finally {
+            store.stop();
+        }
+    }
+
+    /**
+     * Segments holding only removal records are not compacted again and again while older segment exists,
+     * removed entries stay removed after restart
+     * @throws Exception
+     */
+    @Test
+    public void testTombstones() throws Exception {
+        MappedSessionCacheStore store = this.startStore(1024);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            large.append('x');
+        }
+        //older segments with live entries only
+        for (int i = 0; i < 6; i++) {
+            store.store(new ImmortalCacheEntry("keep" + i, large.toString()));
+        }
+        for (int i = 0; i < 60; i++) {
+            store.store(new ImmortalCacheEntry("key" + i, "value"));
+        }
+        for (int i = 0; i < 60; i++) {
+            store.remove("key" + i);
+        }
+        store.store(new ImmortalCacheEntry("filler", large.toString()));
+
+        store.purgeExpired();
+        store.purgeExpired();
+        long compacted = store.getCompactedSegments();
+        assertTrue(compacted > 0);
+        store.purgeExpired();
+        assertEquals(compacted, store.getCompactedSegments());
+        store.stop();
+
+        store = this.startStore(1024);
+        try {
+            assertEquals(7, store.loadAllKeys(null).size());
+            assertNull(store.load("key5"));
+            assertEquals(large.toString(), store.load("keep5").getValue());
+        } finally {
+            store.stop();
+        }
+    }
+
+    private MappedSessionCacheStore startStore(int segmentSize) throws Exception {
+        MappedSessionCacheStoreConfig config = new MappedSessionCacheStoreConfig();
+        config.setLocation(directory.getAbsolutePath());
+        config.setSegmentSize(segmentSize);
+        config.setPurgeSynchronously(true);
+        //index is rebuilt from segments on start
+        config.setPurgeOnStartup(false);
+
+        MappedSessionCacheStore store = new MappedSessionCacheStore();
+        StreamingMarshaller marshaller = cache.getAdvancedCache().getComponentRegistry()
+                .getComponent(StreamingMarshaller.class, KnownComponentNames.CACHE_MARSHALLER);
+        store.init(config, cache, marshaller);
+        store.start();
+        return store;
+    }
+
+    @BeforeMethod
+    private void createCache() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mappedSessionStoreTest");
+        deleteDirectory(directory);
+        cacheManager = new DefaultCacheManager();
+        cache = cacheManager.getCache();
+    }
+
+    @AfterMethod
+    private void stopCache() {
+        cacheManager.stop();
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,58 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * RehashStatisticsTest
+ * State transfer caused by joining node is recorded in statistics.
+ */
+public class RehashStatisticsTest {
+
+    /**
+     * Sessions moved to joining node are counted by existing node
+     * @throws Exception
+     */
+    @Test
+    public void testJoinStatistics() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager();
+        InfinispanSessionManager managerTwo = null;
+        try {
+            for (int i = 0; i < 40; i++) {
+                Session session = managerOne.createSession(null);
+                managerOne.add(session);
+                session.getSession().setAttribute("data", new byte[100]);
+            }
+
+            managerTwo = createSessionManager();
+            RehashStatistics statistics = managerOne.getRehashStatistics();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (statistics.getRehashCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertFalse(managerOne.isRehashInProgress());
+            assertTrue(statistics.getRehashCount() > 0);
+            assertEquals(2, statistics.getMembers());
+            assertTrue(statistics.getSessionsSent() > 0);
+        } finally {
+            managerOne.manager.stop();
+            if (managerTwo != null) {
+                managerTwo.manager.stop();
+            }
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager() throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setNumOwners(1);
+        sessionManager.setStateTransferTimeout(20000);
+        sessionManager.setSessionSizeAccounting(true);
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, "rehash", true);
+    }
+}
@@ -0,0 +1,45 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * ScalarCodecTest
+ * Common scalar attribute values are stored in tagged binary form.
+ */
+public class ScalarCodecTest {
+
+    /**
+     * Scalar values are read back equal, other values are serialized
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        char[] longString = new char[ScalarCodec.MAX_STRING_LENGTH + 1];
+        Arrays.fill(longString, 'x');
+        Object[] values = {0, -1, 42, Integer.MIN_VALUE, Integer.MAX_VALUE, 0L, -300L, Long.MIN_VALUE, Long.MAX_VALUE,
+                Boolean.TRUE, Boolean.FALSE, "", "csrfToken", "\u0000\u00e9\u20ac\ud800", new Date(1234567890123L),
+                new Date(-1L), new String(longString), new java.sql.Timestamp(1L), 1.5d};
+
+        AttributeCodec codec = new AttributeCodec(getClass().getClassLoader());
+        for (Object value : values) {
+            MarshalledAttribute stored = codec.marshall("value", value);
+            Object read = codec.unmarshall("value", new MarshalledAttribute(stored.getBytes(), null));
+            assertEquals(value, read);
+            assertEquals(value.getClass(), read.getClass());
+        }
+
+        assertEquals(2, codec.marshall("value", 42).size());
+        assertEquals(1, codec.marshall("value", Boolean.TRUE).size());
+        assertEquals(9, codec.marshall("value", new Date()).size());
+        assertNull(ScalarCodec.write(new String(longString)));
+        assertEquals(ScalarCodec.SERIALIZED, codec.marshall("value", 1.5d).getBytes()[0] & 0xFF);
+    }
+}
@@ -0,0 +1,125 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.Session;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SessionCoalescingTest
+ * Overlapping requests of one session write metadata once.
+ */
+public class SessionCoalescingTest {
+
+    /**
+     * Only first overlapping access writes access time, last end writes merged metadata
+     * @throws Exception
+     */
+    @Test
+    public void testOverlappingAccess() throws Exception {
+        InfinispanSessionManager manager = new InfinispanSessionManager();
+        InfinispanSessionManagerCommon.initializeManager(manager, "coalescing", true);
+        try {
+            InfinispanSession session = (InfinispanSession) manager.createSession(null);
+            manager.add(session);
+            session.endAccess();
+            long created = session.getLastAccessedTimeInternal();
+
+            session.enableAccessCoalescing();
+            Thread.sleep(5);
+            session.access();
+            long firstAccess = session.getThisAccessedTimeInternal();
+            Thread.sleep(5);
+            session.access();
+            session.access();
+            assertEquals(3, session.getInFlightRequests());
+            assertEquals(2, manager.getCoalescedAccesses());
+            assertEquals(firstAccess, session.getThisAccessedTimeInternal());
+            assertTrue(session.isValid());
+
+            session.endAccess();
+            session.endAccess();
+            assertEquals(created, session.getLastAccessedTimeInternal());
+
+            Thread.sleep(5);
+            session.endAccess();
+            assertEquals(0, session.getInFlightRequests());
+            assertTrue(session.getLastAccessedTimeInternal() > firstAccess);
+            assertTrue(session.getThisAccessedTimeInternal() >= session.getLastAccessedTimeInternal());
+
+            Session found = manager.findSession(session.getId());
+            assertSame(session, found);
+        } finally {
+            manager.manager.stop();
+        }
+    }
+
+    /**
+     * Requests in flight before coalescing was enabled are counted, access times are written when last request
+     * ends, count of requests in flight is exact under concurrent access
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        InfinispanSessionManager manager = new InfinispanSessionManager();
+        InfinispanSessionManagerCommon.initializeManager(manager, "coalescingConcurrent", true);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final InfinispanSession session = (InfinispanSession) manager.createSession(null);
+            manager.add(session);
+            session.endAccess();
+            long created = session.getLastAccessedTimeInternal();
+            Thread.sleep(5);
+
+            final CountDownLatch accessed = new CountDownLatch(threads);
+            final CountDownLatch enabled = new CountDownLatch(1);
+            List<Future<Void>> requests = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                requests.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        session.access();
+                        accessed.countDown();
+                        enabled.await();
+                        session.endAccess();
+                        for (int round = 0; round < 200; round++) {
+                            session.access();
+                            session.endAccess();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            assertTrue(accessed.await(10, TimeUnit.SECONDS));
+            //requests in flight before coalescing don't end coalesced request of this thread
+            session.enableAccessCoalescing();
+            session.access();
+            enabled.countDown();
+            for (Future<Void> request : requests) {
+                request.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(1, session.getInFlightRequests());
+            assertEquals(created, session.getLastAccessedTimeInternal());
+
+            session.endAccess();
+            assertEquals(0, session.getInFlightRequests());
+            assertTrue(session.getLastAccessedTimeInternal() > created);
+        } finally {
+            executor.shutdownNow();
+            manager.manager.stop();
+        }
+    }
+}
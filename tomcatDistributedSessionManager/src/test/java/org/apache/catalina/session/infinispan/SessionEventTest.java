@@ -0,0 +1,56 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SessionEventTest
+ * Session invalidated on one node is removed from local sessions of other node.
+ */
+public class SessionEventTest {
+
+    /**
+     * Local session shell is removed by session event processor, attribute removals are ignored
+     * @throws Exception
+     */
+    @Test
+    public void testRemoveLocalSession() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager();
+        InfinispanSessionManager managerTwo = createSessionManager();
+        try {
+            Session session = managerOne.createSession(null);
+            managerOne.add(session);
+            session.getSession().setAttribute("name", "value");
+            String id = session.getId();
+
+            assertNotNull(managerTwo.findSession(id));
+            assertTrue(managerTwo.containsLocalSession(id));
+
+            session.getSession().removeAttribute("name");
+            session.getSession().invalidate();
+
+            for (int i = 0; i < 50 && managerTwo.containsLocalSession(id); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(managerTwo.containsLocalSession(id));
+            assertEquals(1, managerTwo.getSessionEventsReceived());
+            assertEquals(0, managerTwo.getSessionEventsDropped());
+            assertEquals(0, managerTwo.getSessionEventQueueSize());
+        } finally {
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager() throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setSessionEventQueueCapacity(16);
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, "sessionEvent", true);
+    }
+}
@@ -0,0 +1,120 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SessionLockTest
+ * Session locking between two cluster nodes.
+ */
+public class SessionLockTest {
+    InfinispanSessionManager managerOne;
+    InfinispanSessionManager managerTwo;
+
+    /**
+     * Second node waits for lock held by first node and gives up after timeout
+     * @throws Exception
+     */
+    @Test
+    public void testLockTimeout() throws Exception {
+        Session session = managerOne.createSession(null);
+        managerOne.add(session);
+        String sessionId = session.getId();
+
+        assertTrue(managerOne.lockSession(sessionId));
+        assertEquals(1, managerOne.getSessionLocksHeld());
+
+        assertFalse(managerTwo.lockSession(sessionId));
+        assertEquals(1, managerTwo.getSessionLockTimeouts());
+        assertTrue(managerTwo.getSessionLockWaitTime() >= 200);
+
+        managerOne.unlockSession(sessionId);
+        assertEquals(0, managerOne.getSessionLocksHeld());
+
+        assertTrue(managerTwo.lockSession(sessionId));
+        assertEquals(1, managerTwo.getSessionLockTimeouts());
+        managerTwo.unlockSession(sessionId);
+    }
+
+    /**
+     * Access from request thread locks session, endAccess unlocks
+     * @throws Exception
+     */
+    @Test
+    public void testAccessLocksSession() throws Exception {
+        Session session = managerOne.createSession(null);
+        managerOne.add(session);
+
+        session.access();
+        assertEquals(1, managerOne.getSessionLocksHeld());
+        session.endAccess();
+        assertEquals(0, managerOne.getSessionLocksHeld());
+        assertEquals(0, managerOne.getSessionLockTimeouts());
+    }
+
+    /**
+     * Access fails on lock timeout and isn't counted, with fallback request continues without lock
+     * @throws Exception
+     */
+    @Test
+    public void testAccessTimeout() throws Exception {
+        Session session = managerOne.createSession(null);
+        managerOne.add(session);
+        assertTrue(managerOne.lockSession(session.getId()));
+        Session shell = managerTwo.findSession(session.getId());
+
+        try {
+            shell.access();
+            fail("Session access without lock");
+        } catch (IllegalStateException ex) {
+            assertEquals(1, managerTwo.getSessionLockTimeouts());
+        }
+        assertEquals(0, managerTwo.getActiveSessionAccesses());
+        //request recycle ends failed access too
+        shell.endAccess();
+        assertEquals(0, managerTwo.getActiveSessionAccesses());
+
+        managerTwo.setSessionLockFallback(true);
+        shell.access();
+        assertEquals(1, managerTwo.getActiveSessionAccesses());
+        assertEquals(0, managerTwo.getSessionLocksHeld());
+        shell.endAccess();
+        assertEquals(0, managerTwo.getActiveSessionAccesses());
+        managerOne.unlockSession(session.getId());
+    }
+
+    /**
+     * Create sessionManagers before each test method
+     * @throws LifecycleException
+     */
+    @BeforeMethod
+    private void createSessionManagers() throws LifecycleException {
+        managerOne = createSessionManager("lock");
+        managerTwo = createSessionManager("lock");
+    }
+
+    /**
+     * Leave cluster, next test method starts new cluster
+     */
+    @AfterMethod
+    private void stopCacheManagers() {
+        managerOne.manager.stop();
+        managerTwo.manager.stop();
+    }
+
+    private InfinispanSessionManager createSessionManager(String nameSuffix) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setSessionLocking(true);
+        sessionManager.setSessionLockTimeout(200);
+
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, nameSuffix, true);
+    }
+}
@@ -0,0 +1,97 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.valves.ValveBase;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SessionOwnerHintValveTest
+ * Response contains jvmRoute of node owning session data.
+ */
+public class SessionOwnerHintValveTest {
+
+    /**
+     * Owner hint matches primary owner of session metadata
+     * @throws Exception
+     */
+    @Test
+    public void testOwnerHeader() throws Exception {
+        InfinispanSessionManager managerOne = createSessionManager("node1");
+        InfinispanSessionManager managerTwo = createSessionManager("node2");
+        SessionOwnerHintValve valve = new SessionOwnerHintValve();
+        valve.setContainer(managerTwo.getEngine());
+        valve.setNext(new ValveBase() {
+            @Override
+            public void invoke(Request request, Response response) {
+            }
+        });
+        valve.init();
+        valve.start();
+        try {
+            managerOne.registerJvmRoute();
+            int owners[] = new int[2];
+            for (int i = 0; i < 20; i++) {
+                Session session = managerOne.createSession(null);
+                managerOne.add(session);
+
+                String owner = managerTwo.getOwnerJvmRoute(session.getId());
+                assertEquals(owner, managerOne.getOwnerJvmRoute(session.getId() + ".node2"));
+                boolean ownedByOne = OwnedSessionEntries.isPrimaryOwner(managerOne.cache,
+                        SessionMetaAttributes.createCacheId(session.getId()));
+                assertEquals(ownedByOne ? "node1" : "node2", owner);
+                owners[ownedByOne ? 0 : 1]++;
+
+                Request request = new Request();
+                request.setContext((Context) managerTwo.getContainer());
+                request.setRequestedSessionId(session.getId() + ".node2");
+                HeaderResponse response = new HeaderResponse();
+                valve.invoke(request, response);
+                assertEquals(owner, response.headers.get("X-Session-Owner"));
+            }
+            assertTrue(owners[0] > 0 && owners[1] > 0);
+        } finally {
+            valve.stop();
+            managerOne.manager.stop();
+            managerTwo.manager.stop();
+        }
+    }
+
+    /**
+     * Response keeping headers in map, no connector needed
+     */
+    private static class HeaderResponse extends Response {
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager(String jvmRoute) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        InfinispanSessionManagerCommon.initializeManager(sessionManager, "ownerHint", true);
+        ((StandardEngine) sessionManager.getEngine()).setJvmRoute(jvmRoute);
+        ((Context) sessionManager.getContainer()).setManager(sessionManager);
+        sessionManager.registerJvmRoute();
+        return sessionManager;
+    }
+}
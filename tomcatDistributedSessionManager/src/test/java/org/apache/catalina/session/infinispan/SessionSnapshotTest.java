@@ -0,0 +1,141 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SessionSnapshotTest
+ * Sessions written to snapshot file on stop are loaded on start of new cluster.
+ */
+public class SessionSnapshotTest {
+
+    /**
+     * Sessions survive restart of the only node
+     * @throws Exception
+     */
+    @Test
+    public void testRestart() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "sessionSnapshotTest.bin");
+        file.delete();
+
+        InfinispanSessionManager sessionManager = createSessionManager(file);
+        List<String> ids = new ArrayList<String>();
+        try {
+            for (int i = 0; i < 1200; i++) {
+                Session session = sessionManager.createSession(null);
+                sessionManager.add(session);
+                session.getSession().setAttribute("number", i);
+                ids.add(session.getId());
+            }
+            sessionManager.stop();
+            assertTrue(file.isFile());
+        } finally {
+            sessionManager.manager.stop();
+        }
+
+        sessionManager = createSessionManager(file);
+        try {
+            assertFalse(file.exists());
+            assertEquals(1200, sessionManager.getClusterSessionCount());
+            for (int i = 0; i < ids.size(); i++) {
+                Session session = sessionManager.findSession(ids.get(i));
+                assertNotNull(session);
+                assertEquals(i, session.getSession().getAttribute("number"));
+            }
+        } finally {
+            sessionManager.manager.stop();
+        }
+    }
+
+    /**
+     * Truncated snapshot is not loaded
+     * @throws Exception
+     */
+    @Test
+    public void testPartialSnapshot() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "sessionSnapshotPartialTest.bin");
+        file.delete();
+
+        InfinispanSessionManager sessionManager = createSessionManager(file);
+        String id;
+        try {
+            Session session = sessionManager.createSession(null);
+            sessionManager.add(session);
+            session.getSession().setAttribute("name", "value");
+            id = session.getId();
+            sessionManager.stop();
+        } finally {
+            sessionManager.manager.stop();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        sessionManager = createSessionManager(file);
+        try {
+            assertNull(sessionManager.findSession(id));
+        } finally {
+            sessionManager.manager.stop();
+            file.delete();
+        }
+    }
+
+    /**
+     * Node joining cluster which holds sessions deletes its snapshot, sessions removed meanwhile don't come back
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshotOfJoiningNode() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "sessionSnapshotJoinTest.bin");
+        File otherFile = new File(System.getProperty("java.io.tmpdir"), "sessionSnapshotJoinOtherTest.bin");
+        file.delete();
+        otherFile.delete();
+
+        InfinispanSessionManager sessionManager = createSessionManager(file);
+        String id;
+        try {
+            Session session = sessionManager.createSession(null);
+            sessionManager.add(session);
+            id = session.getId();
+            sessionManager.stop();
+            assertTrue(file.isFile());
+        } finally {
+            sessionManager.manager.stop();
+        }
+
+        InfinispanSessionManager running = createSessionManager(otherFile);
+        try {
+            running.add(running.createSession(null));
+            sessionManager = createSessionManager(file);
+            try {
+                assertFalse(file.exists());
+                assertNull(running.findSession(id));
+            } finally {
+                sessionManager.manager.stop();
+            }
+        } finally {
+            running.manager.stop();
+            otherFile.delete();
+        }
+    }
+
+    private static InfinispanSessionManager createSessionManager(File file) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setSnapshotFile(file.getAbsolutePath());
+        sessionManager.setSnapshotThreads(4);
+        sessionManager.setClusterCounterInterval(0);
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, "snapshot", true);
+    }
+}
@@ -0,0 +1,83 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.infinispan.lifecycle.ComponentStatus;
+import org.infinispan.manager.DefaultCacheManager;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SharedCacheManagerTest
+ * Web applications share one cache manager, each uses own cache.
+ */
+public class SharedCacheManagerTest {
+
+    /**
+     * Cache manager is shared and stopped after last application is stopped
+     * @throws Exception
+     */
+    @Test
+    public void testSharedCacheManager() throws Exception {
+        InfinispanSessionManager appOne = createSessionManager("sharedOne");
+        InfinispanSessionManager appTwo = createSessionManager("sharedTwo");
+        DefaultCacheManager cacheManager = appOne.manager;
+
+        assertSame(cacheManager, appTwo.manager);
+        assertFalse(appOne.getCacheName().equals(appTwo.getCacheName()));
+
+        Session session = appOne.createSession(null);
+        appOne.add(session);
+        assertNull(appTwo.findSession(session.getId()));
+
+        appOne.stop();
+        assertEquals(ComponentStatus.RUNNING, cacheManager.getStatus());
+        Session other = appTwo.createSession(null);
+        appTwo.add(other);
+        assertNotNull(appTwo.findSession(other.getId()));
+
+        appTwo.stop();
+        assertEquals(ComponentStatus.TERMINATED, cacheManager.getStatus());
+    }
+
+    /**
+     * Application deployed again on running cache fails start if its tuning attributes differ from running cache
+     * @throws Exception
+     */
+    @Test
+    public void testRunningCacheTuning() throws Exception {
+        InfinispanSessionManager appOne = new InfinispanSessionManager();
+        appOne.setSharedCacheManager(true);
+        appOne.setEvictionMaxEntries(1000);
+        InfinispanSessionManagerCommon.initializeManager(appOne, "sharedTuned", true);
+        InfinispanSessionManager appTwo = new InfinispanSessionManager();
+        appTwo.setSharedCacheManager(true);
+        appTwo.setEvictionMaxEntries(2000);
+        try {
+            InfinispanSessionManagerCommon.initializeManager(appTwo, "sharedTuned", true);
+            fail("Tuning attributes different from running cache accepted");
+        } catch (LifecycleException ex) {
+            Throwable cause = ex;
+            while (cause.getCause() instanceof LifecycleException) {
+                cause = cause.getCause();
+            }
+            assertTrue(cause.getMessage(), cause.getMessage().contains("evictionMaxEntries 2000 (running 1000)"));
+        } finally {
+            if (appTwo.manager != null) {
+                SharedCacheManagerRegistry.release(appTwo.manager);
+            }
+            appOne.stop();
+        }
+    }
+
+    private InfinispanSessionManager createSessionManager(String nameSuffix) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setSharedCacheManager(true);
+
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, nameSuffix, true);
+    }
+}
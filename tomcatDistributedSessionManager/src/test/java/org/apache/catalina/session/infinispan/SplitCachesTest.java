@@ -0,0 +1,88 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * SplitCachesTest
+ * Session metadata and attributes stored in separate caches.
+ */
+public class SplitCachesTest {
+    InfinispanSessionManager managerOne;
+    InfinispanSessionManager managerTwo;
+
+    /**
+     * Metadata and attributes are stored in own caches and removed from both
+     * @throws Exception
+     */
+    @Test
+    public void testSplitCaches() throws Exception {
+        assertNotSame(managerOne.cache, managerOne.getAttributesCache());
+        assertTrue(managerOne.getCacheName().startsWith("tc_session_meta_"));
+
+        Session session = managerOne.createSession(null);
+        managerOne.add(session);
+        session.getSession().setAttribute("attrName", "attrValue");
+
+        String id = managerOne.stripDotSuffix(session.getId());
+        assertNotNull(managerOne.cache.get(SessionMetaAttributes.createCacheId(id)));
+        assertNull(managerOne.cache.get(SessionAttributes.createCacheId(id)));
+        assertNotNull(managerOne.getAttributesCache().get(SessionAttributes.createCacheId(id)));
+
+        Session remote = managerTwo.findSession(session.getId());
+        assertNotNull(remote);
+        assertEquals("attrValue", remote.getSession().getAttribute("attrName"));
+
+        managerOne.remove(session);
+        assertNull(managerTwo.cache.get(SessionMetaAttributes.createCacheId(id)));
+        assertNull(managerTwo.getAttributesCache().get(SessionAttributes.createCacheId(id)));
+    }
+
+    /**
+     * Metadata and attributes caches are tuned separately
+     */
+    @Test
+    public void testSeparateTuning() {
+        assertEquals(3, managerOne.cache.getCacheConfiguration().clustering().hash().numOwners());
+        assertEquals(1, managerOne.getAttributesCache().getCacheConfiguration().clustering().hash().numOwners());
+        assertEquals(1000, managerOne.getAttributesCache().getCacheConfiguration().eviction().maxEntries());
+        assertTrue(managerOne.cache.getCacheConfiguration().eviction().maxEntries() <= 0);
+    }
+
+    /**
+     * Create sessionManagers before each test method
+     * @throws LifecycleException
+     */
+    @BeforeMethod
+    private void createSessionManagers() throws LifecycleException {
+        managerOne = createSessionManager("split");
+        managerTwo = createSessionManager("split");
+    }
+
+    /**
+     * Leave cluster, next test method starts new cluster
+     */
+    @AfterMethod
+    private void stopCacheManagers() {
+        managerOne.manager.stop();
+        managerTwo.manager.stop();
+    }
+
+    private InfinispanSessionManager createSessionManager(String nameSuffix) throws LifecycleException {
+        InfinispanSessionManager sessionManager = new InfinispanSessionManager();
+        sessionManager.setSplitCaches(true);
+        sessionManager.setMetadataNumOwners(3);
+        sessionManager.setAttributesNumOwners(1);
+        sessionManager.setAttributesEvictionMaxEntries(1000);
+
+        return InfinispanSessionManagerCommon.initializeManager(sessionManager, nameSuffix, true);
+    }
+}
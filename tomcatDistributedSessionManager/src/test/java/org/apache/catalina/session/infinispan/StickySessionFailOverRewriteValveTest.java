@@ -0,0 +1,67 @@
+/* --------------------------------------------------------------*\
+| Copyright (C) e-Spatial Solutions Limited, All rights reserved. |
+\* --------------------------------------------------------------*/
+package org.apache.catalina.session.infinispan;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.valves.ValveBase;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * StickySessionFailOverRewriteValveTest
+ * Session id of other node is rewritten to local jvmRoute.
+ */
+public class StickySessionFailOverRewriteValveTest {
+
+    /**
+     * Only session id with foreign jvmRoute is rewritten, rewrites are counted per previous jvmRoute
+     * @throws Exception
+     */
+    @Test
+    public void testRewrite() throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setJvmRoute("node1");
+        StickySessionFailOverRewriteValve valve = new StickySessionFailOverRewriteValve();
+        valve.setContainer(engine);
+        valve.setNext(new ValveBase() {
+            @Override
+            public void invoke(Request request, Response response) {
+            }
+        });
+        valve.init();
+        valve.start();
+        try {
+            assertEquals("abc.node1", this.invoke(valve, "abc.node1"));
+            assertEquals("abc.node1", this.invoke(valve, "abc.node2"));
+            assertEquals("abc.node1", this.invoke(valve, "abc.node11"));
+            assertEquals("abc", this.invoke(valve, "abc"));
+            assertEquals("abc.node1", this.invoke(valve, "abc.node2"));
+
+            assertEquals(3, valve.getRewriteCount());
+            assertEquals(Long.valueOf(2), valve.getRewriteCounts().get("node2"));
+            assertEquals(Long.valueOf(1), valve.getRewriteCounts().get("node11"));
+
+            //forged jvmRoutes don't grow counters without limit
+            for (int i = 0; i < 2 * StickySessionFailOverRewriteValve.MAX_COUNTED_ROUTES; i++) {
+                this.invoke(valve, "abc.forged" + i);
+            }
+            assertEquals(3 + 2 * StickySessionFailOverRewriteValve.MAX_COUNTED_ROUTES, valve.getRewriteCount());
+            assertEquals(StickySessionFailOverRewriteValve.MAX_COUNTED_ROUTES + 1, valve.getRewriteCounts().size());
+            assertEquals(Long.valueOf(StickySessionFailOverRewriteValve.MAX_COUNTED_ROUTES + 2),
+                    valve.getRewriteCounts().get(StickySessionFailOverRewriteValve.OTHER_ROUTES));
+        } finally {
+            valve.stop();
+        }
+    }
+
+    private String invoke(StickySessionFailOverRewriteValve valve, String sessionId) throws Exception {
+        Request request = new Request();
+        request.setRequestedSessionId(sessionId);
+        valve.invoke(request, null);
+        return request.getRequestedSessionId();
+    }
+}